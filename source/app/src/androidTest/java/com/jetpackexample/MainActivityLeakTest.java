@@ -0,0 +1,117 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.Manifest;
+import android.os.Debug;
+import android.os.SystemClock;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.rule.GrantPermissionRule;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recreates MainActivity repeatedly, as configuration changes do, and checks that the managers and
+ * the service do not keep the destroyed instances alive.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MainActivityLeakTest {
+
+    private static final int RECREATIONS = 20;
+    private static final long GC_TIMEOUT_MS = 5000;
+
+    // An activity with its view hierarchy weighs far more than this, a leak of each instance shows
+    private static final long MAX_JAVA_HEAP_GROWTH_BYTES = 4 * 1024 * 1024;
+    private static final long MAX_NATIVE_HEAP_GROWTH_BYTES = 8 * 1024 * 1024;
+
+    @Rule
+    public GrantPermissionRule permissionRule = GrantPermissionRule.grant(
+            Manifest.permission.BLUETOOTH_SCAN,
+            Manifest.permission.BLUETOOTH_CONNECT,
+            Manifest.permission.ACCESS_COARSE_LOCATION,
+            Manifest.permission.ACCESS_FINE_LOCATION,
+            Manifest.permission.UWB_RANGING);
+
+    @Test
+    public void recreatedActivitiesAreReleased() {
+        final List<WeakReference<MainActivity>> activities = new ArrayList<>();
+
+        try (ActivityScenario<MainActivity> scenario = ActivityScenario.launch(MainActivity.class)) {
+            // First recreation warms up the caches and singletons that legitimately stay
+            scenario.recreate();
+            forceGc();
+            long javaHeapStart = usedJavaHeap();
+            long nativeHeapStart = Debug.getNativeHeapAllocatedSize();
+
+            for (int i = 0; i < RECREATIONS; i++) {
+                scenario.onActivity(activity -> activities.add(new WeakReference<>(activity)));
+                scenario.recreate();
+            }
+
+            // The references are cleared once nothing but the framework's pending work holds them
+            long deadline = SystemClock.uptimeMillis() + GC_TIMEOUT_MS;
+            int retained;
+            do {
+                forceGc();
+                retained = countRetained(activities);
+            } while (retained > 0 && SystemClock.uptimeMillis() < deadline);
+
+            assertEquals("Destroyed activities still reachable", 0, retained);
+
+            long javaHeapGrowth = usedJavaHeap() - javaHeapStart;
+            long nativeHeapGrowth = Debug.getNativeHeapAllocatedSize() - nativeHeapStart;
+            assertTrue("Java heap grew by " + javaHeapGrowth + " bytes", javaHeapGrowth < MAX_JAVA_HEAP_GROWTH_BYTES);
+            assertTrue("Native heap grew by " + nativeHeapGrowth + " bytes", nativeHeapGrowth < MAX_NATIVE_HEAP_GROWTH_BYTES);
+        }
+    }
+
+    private static int countRetained(List<WeakReference<MainActivity>> activities) {
+        int retained = 0;
+        for (WeakReference<MainActivity> activity : activities) {
+            if (activity.get() != null) {
+                retained++;
+            }
+        }
+
+        return retained;
+    }
+
+    private static long usedJavaHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void forceGc() {
+        // ART may skip a single explicit collection, finalizers release the native view resources
+        for (int i = 0; i < 3; i++) {
+            Runtime.getRuntime().gc();
+            System.runFinalization();
+            SystemClock.sleep(100);
+        }
+    }
+}
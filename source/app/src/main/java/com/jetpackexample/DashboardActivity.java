@@ -0,0 +1,124 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.jetpackexample.managers.UwbManagerImpl;
+import com.jetpackexample.ranging.RangingStatisticsEngine;
+import com.jetpackexample.views.PeerListAdapter;
+
+import io.reactivex.rxjava3.disposables.Disposable;
+
+/**
+ * Lists every peer ranged by the service with its live distance, bearing and update rate, and its
+ * distance statistics refreshed every STATISTICS_PERIOD_MS. The list is only fed while the activity
+ * is visible.
+ */
+public class DashboardActivity extends AppCompatActivity {
+
+    private static final long STATISTICS_PERIOD_MS = 1000;
+
+    private PeerListAdapter peerListAdapter = null;
+    private boolean serviceBound = false;
+    private Disposable rangingSampleDisposable = null;
+    private RangingStatisticsEngine rangingStatistics = null;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final Runnable updateStatistics = this::updateStatistics;
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            RangingService rangingService = ((RangingService.LocalBinder) service).getService();
+            rangingSampleDisposable = rangingService.getRangingSampleFlowable()
+                    .subscribe(peerListAdapter::onRangingSample);
+            rangingStatistics = rangingService.getRangingStatistics();
+            uiHandler.postDelayed(updateStatistics, STATISTICS_PERIOD_MS);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            detachFromService();
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_dashboard);
+
+        peerListAdapter = new PeerListAdapter(1000f / UwbManagerImpl.RANGING_UPDATE_PERIOD_MS);
+
+        RecyclerView peerList = findViewById(R.id.peer_list);
+        peerList.setLayoutManager(new LinearLayoutManager(this));
+        peerList.setHasFixedSize(true);
+        // Rows are rebound in place, the change animation would fade them at every update
+        peerList.setItemAnimator(null);
+        peerList.setAdapter(peerListAdapter);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+
+        serviceBound = bindService(new Intent(this, RangingService.class), serviceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+
+        detachFromService();
+        if (serviceBound) {
+            unbindService(serviceConnection);
+            serviceBound = false;
+        }
+
+        // Peers are listed again as their next samples arrive
+        peerListAdapter.clear();
+    }
+
+    private void detachFromService() {
+        if (rangingSampleDisposable != null) {
+            rangingSampleDisposable.dispose();
+            rangingSampleDisposable = null;
+        }
+
+        uiHandler.removeCallbacks(updateStatistics);
+        rangingStatistics = null;
+    }
+
+    private void updateStatistics() {
+        if (rangingStatistics == null) {
+            return;
+        }
+
+        peerListAdapter.onPeerStatistics(rangingStatistics.getStatistics());
+        uiHandler.postDelayed(updateStatistics, STATISTICS_PERIOD_MS);
+    }
+}
@@ -16,105 +16,108 @@
 
 package com.jetpackexample;
 
-import android.Manifest;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
-import android.widget.ImageView;
+import android.view.Choreographer;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.app.AppCompatDelegate;
-import androidx.core.app.ActivityCompat;
-import androidx.core.uwb.RangingResult;
 
-import com.jetpackexample.managers.BluetoothManagerImpl;
-import com.jetpackexample.managers.LocationManagerImpl;
-import com.jetpackexample.managers.UwbManagerImpl;
+import com.jetpackexample.managers.CapabilityCacheImpl;
+import com.jetpackexample.oob.ConnectionStateMachine.State;
+import com.jetpackexample.ranging.RangingMotionModel;
+import com.jetpackexample.ranging.RangingSample;
+import com.jetpackexample.ranging.RangingStreamServer;
+import com.jetpackexample.utils.StartupMetrics;
 import com.jetpackexample.utils.Utils;
+import com.jetpackexample.views.RangingView;
 
-public class MainActivity extends AppCompatActivity
-        implements BluetoothManagerImpl.BluetoothConnectionListener, BluetoothManagerImpl.BluetoothDataReceivedListener {
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+
+public class MainActivity extends AppCompatActivity implements RangingService.RangingServiceListener {
 
     private static final String TAG = MainActivity.class.getName();
 
     public static final int PERMISSION_REQUEST_CODE = 0x0001;
 
-    private LocationManagerImpl locationManagerImpl = null;
-    private BluetoothManagerImpl bluetoothManagerImpl = null;
-    private UwbManagerImpl uwbManagerImpl = null;
+    private static final int MOTION_MAX_PEERS = 4;
 
-    private String remoteDeviceName;
+    private CapabilityCacheImpl capabilityCache = null;
+    private RangingService rangingService = null;
+    private boolean serviceBound = false;
+    private boolean serviceStarted = false;
+    private Disposable rangingSampleDisposable = null;
 
     private TextView bleState;
     private TextView uwbState;
-    private TextView uwbDistanceInfo;
-    private TextView uwbAoaInfo;
-    private ImageView uwbAoaArrow;
+    private RangingView rangingView;
     private TextView uwbRangingDevice;
 
-    // App states
-    public enum AppState {
-        notStarted,
-        bleScanning,
-        bleConnected,
-        uwbConfiguring,
-        uwbStarted,
-        uwbStopped
-    }
-
-    // Android UWB OoB protocol
-    public enum MessageId {
-        // Messages from the Uwb device
-        uwbDeviceConfigurationData((byte) 0x01),
-        uwbDidStart((byte) 0x02),
-        uwbDidStop((byte) 0x03),
+    // Latest sample shown by displayRunnable, so that samples do not allocate a Runnable each
+    private volatile float displayedDistance = Float.NaN;
+    private volatile float displayedAzimuth = Float.NaN;
+    private final AtomicBoolean displayPending = new AtomicBoolean(false);
+    private final Runnable displayRunnable = this::updateRangingInfo;
 
-        // Messages from the Uwb phone
-        initialize((byte) 0xA5),
-        uwbPhoneConfigurationData((byte) 0x0B),
-        stop((byte) 0x0C);
+    // The arrow and the peers follow the motion model estimates every frame until they stop moving
+    private final RangingMotionModel rangingMotionModel = new RangingMotionModel(MOTION_MAX_PEERS,
+            RangingMotionModel.DEFAULT_MAX_EXTRAPOLATION_MS);
+    private final float[] motionEstimate = new float[3];
+    private boolean arrowAnimating = false;
+    private final Choreographer.FrameCallback arrowFrameCallback = this::animateArrow;
 
-        private final byte value;
-
-        MessageId(final byte newValue) {
-            value = newValue;
-        }
-
-        public byte getValue() {
-            return value;
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            rangingService = ((RangingService.LocalBinder) service).getService();
+            rangingService.addRangingServiceListener(MainActivity.this);
+            rangingSampleDisposable = rangingService.getRangingSampleFlowable()
+                    .subscribe(MainActivity.this::displayRangingSample);
+
+            // Show where the service is at, then automatically proceed with demo
+            onStateChanged(rangingService.getState());
+            initializeBleUwb();
         }
-    }
 
-    /*
-    Runnable mUpdater = new Runnable() {
         @Override
-        public void run() {
-            try {
-                updateRangingAoaInfo(new Random().nextInt(91) -45);
-                updateRangingDistanceInfo(new Random().nextFloat()*3);
-            } finally {
-                // 100% guarantee that this always happens, even if
-                // your update method throws an exception
-                mHandler.postDelayed(mUpdater, 1000);
-            }
+        public void onServiceDisconnected(ComponentName name) {
+            detachFromService();
         }
-    };*/
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        StartupMetrics.onActivityCreated();
         AppCompatDelegate.setDefaultNightMode(AppCompatDelegate.MODE_NIGHT_NO);
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_main);
 
-        uwbManagerImpl = UwbManagerImpl.getInstance(MainActivity.this);
-        locationManagerImpl = LocationManagerImpl.getInstance(MainActivity.this);
-        bluetoothManagerImpl = BluetoothManagerImpl.getInstance(MainActivity.this);
+        // When everything is in place, get the scan going while the UI inflates
+        capabilityCache = CapabilityCacheImpl.getInstance(this);
+        checkCapability(capability -> {
+            if (capability == CapabilityCacheImpl.Capability.ready) {
+                startRangingService();
+            }
+        });
+
+        setContentView(R.layout.activity_main);
 
         initViews();
     }
@@ -123,212 +126,204 @@ public class MainActivity extends AppCompatActivity
     protected void onStart() {
         super.onStart();
 
-        // Automatically proceed with demo
-        initializeBleUwb();
+        // Ranging runs in the service, we only observe it while visible
+        serviceBound = bindService(new Intent(this, RangingService.class), serviceConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
-    protected void onDestroy() {
-        super.onDestroy();
+    protected void onStop() {
+        super.onStop();
 
-        if (bluetoothManagerImpl != null) {
-            bluetoothManagerImpl.stopLeDeviceScan();
-            bluetoothManagerImpl.close();
+        detachFromService();
+        if (serviceBound) {
+            unbindService(serviceConnection);
+            serviceBound = false;
         }
+    }
 
-        if (uwbManagerImpl != null) {
-            uwbManagerImpl.close();
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        boolean bound = rangingService != null;
+        boolean exporting = bound && rangingService.isExporting();
+        String streamingEndpoint = bound ? rangingService.getStreamingEndpoint() : null;
+
+        MenuItem exportItem = menu.findItem(R.id.menu_export);
+        exportItem.setEnabled(bound);
+        exportItem.setTitle(exporting ? R.string.menu_stop_export : R.string.menu_start_export);
+
+        // The endpoint carries the token clients need
+        MenuItem streamingItem = menu.findItem(R.id.menu_streaming);
+        streamingItem.setEnabled(bound);
+        streamingItem.setTitle(streamingEndpoint != null
+                ? getString(R.string.menu_stop_streaming, streamingEndpoint)
+                : getString(R.string.menu_start_streaming));
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        if (item.getItemId() == R.id.menu_dashboard) {
+            startActivity(new Intent(this, DashboardActivity.class));
+            return true;
         }
 
-        updateAppState(AppState.notStarted);
-        resetRangingInfo();
+        if (item.getItemId() == R.id.menu_export && rangingService != null) {
+            if (rangingService.isExporting()) {
+                rangingService.stopExport();
+            } else {
+                rangingService.startExport(true);
+            }
+            return true;
+        }
+
+        if (item.getItemId() == R.id.menu_streaming && rangingService != null) {
+            if (rangingService.getStreamingEndpoint() != null) {
+                rangingService.stopStreaming();
+            } else {
+                rangingService.startStreaming(RangingStreamServer.DEFAULT_PORT);
+            }
+            return true;
+        }
+
+        return super.onOptionsItemSelected(item);
     }
 
     @Override
     public void onBackPressed() {
         super.onBackPressed();
 
-        if (bluetoothManagerImpl != null) {
-            bluetoothManagerImpl.stopLeDeviceScan();
-            bluetoothManagerImpl.close();
+        // Leaving the app ends the demo
+        if (rangingService != null) {
+            rangingService.stop();
         }
 
-        if (uwbManagerImpl != null) {
-            uwbManagerImpl.close();
+        updateAppState(State.idle);
+        resetRangingInfo();
+    }
+
+    private void detachFromService() {
+        if (arrowAnimating) {
+            Choreographer.getInstance().removeFrameCallback(arrowFrameCallback);
+            arrowAnimating = false;
         }
 
-        updateAppState(AppState.notStarted);
-        resetRangingInfo();
+        if (rangingSampleDisposable != null) {
+            rangingSampleDisposable.dispose();
+            rangingSampleDisposable = null;
+        }
+
+        if (rangingService != null) {
+            rangingService.removeRangingServiceListener(this);
+            rangingService = null;
+        }
     }
 
     private void initViews() {
         bleState = findViewById(R.id.ble_state);
         uwbState = findViewById(R.id.uwb_state);
-        uwbDistanceInfo = findViewById(R.id.uwb_distance_info);
-        uwbAoaInfo = findViewById(R.id.uwb_aoa_info);
-        uwbAoaArrow = findViewById(R.id.imgArrow);
+        rangingView = findViewById(R.id.ranging_view);
         uwbRangingDevice = findViewById(R.id.uwb_ranging_device);
     }
 
     private void initializeBleUwb() {
-        if (checkPermissions()) {
-            if (bluetoothManagerImpl.isSupported() && locationManagerImpl.isSupported() && uwbManagerImpl.isSupported()) {
-                if (bluetoothManagerImpl.isEnabled()) {
-                    if (locationManagerImpl.isEnabled()) {
-                        if (uwbManagerImpl.isEnabled()) {
-                            if (!bluetoothManagerImpl.isConnected()) {
-                                updateAppState(AppState.bleScanning);
-
-                                Log.d(TAG, "Start Bluetooth LE Device scanning");
-                                bluetoothManagerImpl.startLeDeviceScan(device -> {
-                                    if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
-                                        // Ignore devices that do not define name or address
-                                        if ((device.getName() == null) || (device.getAddress() == null)) {
-                                            return;
-                                        }
-
-                                        Log.d(TAG, "Let's proceed to connect to: " + device.getName());
-
-                                        // Stop scanning and further proceed to connect to the device
-                                        bluetoothManagerImpl.stopLeDeviceScan();
-                                        bluetoothManagerImpl.connect(device.getAddress());
-                                    } else {
-                                        Log.e(TAG, "Missing required permission to read Bluetooth device name!");
-                                    }
-                                });
-                            }
-                        } else {
-                            updateAppState(AppState.notStarted);
-                            enableUwbDialog();
-                        }
-                    } else {
-                        updateAppState(AppState.notStarted);
-                        enableLocationDialog();
-                    }
-                } else {
-                    updateAppState(AppState.notStarted);
-                    enableBluetoothDialog();
-                }
-            } else {
-                updateAppState(AppState.notStarted);
-                missingRequiredTechnologiesDialog();
-            }
-        } else {
-            updateAppState(AppState.notStarted);
-            requestPermissions();
-        }
+        checkCapability(this::onCapabilityChecked);
     }
 
-    public void processUwbRangingConfigurationData(byte[] data) {
-        byte messageId = data[0];
-
-        if (messageId == MessageId.uwbDeviceConfigurationData.getValue()) {
-            byte[] trimmedData = Utils.trimLeadingBytes(data, 1);
-            configureUwbRangingSession(trimmedData);
-        } else if (messageId == MessageId.uwbDidStart.getValue()) {
-            uwbRangingSessionStarted();
-        } else if (messageId == MessageId.uwbDidStop.getValue()) {
-            uwbRangingSessionStopped();
-        } else {
-            throw new IllegalArgumentException("Unexpected value");
+    private void onCapabilityChecked(CapabilityCacheImpl.Capability capability) {
+        if (rangingService == null) {
+            return;
         }
-    }
 
-    public void startUwbRangingConfiguration() {
-        bluetoothManagerImpl.transmit(new byte[]{MessageId.initialize.getValue()});
-    }
-
-    public void transmitUwbPhoneConfigData(UwbPhoneConfigData uwbPhoneConfigData) {
-        bluetoothManagerImpl.transmit(Utils.concat(
-                new byte[]{MessageId.uwbPhoneConfigurationData.getValue()},
-                uwbPhoneConfigData.toByteArray()));
-    }
-
-    public void transmitUwbRangingStop() {
-        bluetoothManagerImpl.transmit(new byte[]{MessageId.stop.getValue()});
-    }
-
-    public void configureUwbRangingSession(byte[] data) {
-        Log.d(TAG, "UWB Configure UwbDeviceConfigData: " + Utils.byteArrayToHexString(data));
-        updateAppState(AppState.uwbConfiguring);
+        switch (capability) {
+            case ready:
+                startRangingService();
+                break;
 
-        final UwbDeviceConfigData uwbDeviceConfigData = UwbDeviceConfigData.fromByteArray(data);
-        uwbManagerImpl.startRanging(uwbDeviceConfigData, new UwbManagerImpl.UwbRangingListener() {
-            @Override
-            public void onRangingStarted(UwbPhoneConfigData uwbPhoneConfigData) {
-                transmitUwbPhoneConfigData(uwbPhoneConfigData);
-            }
+            case missingPermissions:
+                updateAppState(State.idle);
+                requestPermissions();
+                break;
 
-            @Override
-            public void onRangingResult(RangingResult rangingResult) {
-                displayRangingResult(rangingResult);
-            }
+            case unsupported:
+                updateAppState(State.idle);
+                missingRequiredTechnologiesDialog();
+                break;
 
-            @Override
-            public void onRangingError(Throwable error) {
-                displayRangingError(error);
-            }
+            case bluetoothDisabled:
+                updateAppState(State.idle);
+                enableBluetoothDialog();
+                break;
 
-            @Override
-            public void onRangingComplete() {
-                // Do nothing
-            }
-        });
+            case locationDisabled:
+                updateAppState(State.idle);
+                enableLocationDialog();
+                break;
+        }
     }
 
-    private void uwbRangingSessionStarted() {
-        updateAppState(AppState.uwbStarted);
-        updateRangingPartner(remoteDeviceName);
+    /**
+     * Checks the capabilities off the main thread, as the check queries several system services
+     *
+     * @param callback Called on the main thread with the result, unless the activity is going away
+     */
+    private void checkCapability(Consumer<CapabilityCacheImpl.Capability> callback) {
+        Schedulers.io().scheduleDirect(() -> {
+            CapabilityCacheImpl.Capability capability = capabilityCache.getCapability();
+            runOnUiThread(() -> {
+                if (!isFinishing() && !isDestroyed()) {
+                    callback.accept(capability);
+                }
+            });
+        });
     }
 
-    public void uwbRangingSessionStopped() {
-        updateAppState(AppState.uwbStopped);
-    }
+    private void startRangingService() {
+        if (serviceStarted) {
+            return;
+        }
 
-    public void stopRanging() {
-        uwbManagerImpl.stopRanging();
+        // The service takes it from here and keeps running in the foreground
+        startForegroundService(new Intent(this, RangingService.class));
+        serviceStarted = true;
     }
 
-    private void displayRangingResult(RangingResult rangingResult) {
-        // Update UI
-        if (rangingResult instanceof RangingResult.RangingResultPosition) {
+    private void displayRangingSample(RangingSample rangingSample) {
+        // Update UI, called for every sample so nothing here may allocate
+        rangingMotionModel.onRangingSample(rangingSample);
 
-            RangingResult.RangingResultPosition rangingResultPosition = (RangingResult.RangingResultPosition) rangingResult;
-            if (rangingResultPosition.getPosition().getDistance() != null) {
-                float distance = rangingResultPosition.getPosition().getDistance().getValue();
-                Log.d(TAG, "Position distance: " + distance);
-                updateRangingDistanceInfo(distance);
+        if (rangingSample.getType() == RangingSample.Type.position) {
+            if (rangingSample.hasDistance()) {
+                displayedDistance = rangingSample.getDistance();
             } else {
                 Log.e(TAG, "Unexpected rangingResult value, distance is null!");
             }
-            if (rangingResultPosition.getPosition().getAzimuth() != null) {
-                float aoaAzimuth = rangingResultPosition.getPosition().getAzimuth().getValue();
-                Log.d(TAG, "Position AoA Azimuth: " + aoaAzimuth);
-                updateRangingAoaInfo(aoaAzimuth);
+            if (rangingSample.hasAzimuth()) {
+                displayedAzimuth = rangingSample.getAzimuth();
             } else {
                 Log.e(TAG, "Unexpected rangingResult value, Azimuth is null!");
             }
-            if (rangingResultPosition.getPosition().getElevation() != null) {
-                float aoaElevation = rangingResultPosition.getPosition().getElevation().getValue();
-                Log.d(TAG, "Position AoA Elevation: " + aoaElevation);
-            } else {
+            if (!rangingSample.hasElevation()) {
                 Log.e(TAG, "Unexpected rangingResult value, no Elevation value reported!");
             }
-        } else if (rangingResult instanceof RangingResult.RangingResultPeerDisconnected) {
-            Log.d(TAG, "Peer disconnected: address = " + rangingResult.getDevice().getAddress());
-        } else {
-            Log.d(TAG, "Received unknown rangingResult instance");
-        }
-    }
 
-    private void displayRangingError(Throwable error) {
-        Log.e(TAG, "Ranging error: " + error.getMessage());
-        error.printStackTrace();
+            // Samples arriving while the UI is busy are merged into one update
+            if (displayPending.compareAndSet(false, true)) {
+                runOnUiThread(displayRunnable);
+            }
+        } else if (rangingSample.getType() == RangingSample.Type.peerDisconnected) {
+            Log.d(TAG, "Peer disconnected: address = " + rangingSample.getDevice().getAddress());
+        }
     }
 
-    public void updateAppState(AppState state) {
+    public void updateAppState(State state) {
         switch (state) {
-            case notStarted:
+            case idle:
                 runOnUiThread(() -> {
                     bleState.setText(getResources().getString(R.string.ble_not_started));
                     uwbState.setText(getResources().getString(R.string.uwb_not_started));
@@ -336,7 +331,7 @@ public class MainActivity extends AppCompatActivity
 
                 break;
 
-            case bleScanning:
+            case scanning:
                 runOnUiThread(() -> {
                     bleState.setText(getResources().getString(R.string.ble_scanning));
                     uwbState.setText(getResources().getString(R.string.uwb_not_started));
@@ -344,7 +339,15 @@ public class MainActivity extends AppCompatActivity
 
                 break;
 
-            case bleConnected:
+            case connecting:
+                runOnUiThread(() -> {
+                    bleState.setText(getResources().getString(R.string.ble_connecting));
+                    uwbState.setText(getResources().getString(R.string.uwb_not_started));
+                });
+
+                break;
+
+            case connected:
                 runOnUiThread(() -> {
                     bleState.setText(getResources().getString(R.string.ble_connected));
                     uwbState.setText(getResources().getString(R.string.uwb_not_started));
@@ -352,7 +355,7 @@ public class MainActivity extends AppCompatActivity
 
                 break;
 
-            case uwbConfiguring:
+            case configuring:
                 runOnUiThread(() -> {
                     bleState.setText(getResources().getString(R.string.ble_connected));
                     uwbState.setText(getResources().getString(R.string.uwb_configuring));
@@ -360,7 +363,7 @@ public class MainActivity extends AppCompatActivity
 
                 break;
 
-            case uwbStarted:
+            case ranging:
                 runOnUiThread(() -> {
                     bleState.setText(getResources().getString(R.string.ble_connected));
                     uwbState.setText(getResources().getString(R.string.uwb_ranging));
@@ -368,7 +371,8 @@ public class MainActivity extends AppCompatActivity
 
                 break;
 
-            case uwbStopped:
+            case stopping:
+            case stopped:
                 runOnUiThread(() -> {
                     bleState.setText(getResources().getString(R.string.ble_connected));
                     uwbState.setText(getResources().getString(R.string.uwb_stopped));
@@ -386,31 +390,59 @@ public class MainActivity extends AppCompatActivity
         }
     }
 
-    public void updateRangingDistanceInfo(float distance) {
-        if(distance>1)
-            runOnUiThread(() -> uwbDistanceInfo.setText(getResources().getString(R.string.uwb_distance_value, distance)));
-        else
-            runOnUiThread(() -> uwbDistanceInfo.setText(getResources().getString(R.string.uwb_distance_value_cm, distance*100)));
+    // Runs on the UI thread
+    private void updateRangingInfo() {
+        displayPending.set(false);
 
-    }
+        float distance = displayedDistance;
+        if (!Float.isNaN(distance)) {
+            rangingView.setDistance(distance);
+        }
 
-    public void updateRangingAoaInfo(float aoa) {
-        runOnUiThread(() -> {
-            uwbAoaInfo.setText(getResources().getString(R.string.uwb_aoa_value, aoa));
-            uwbAoaArrow.setRotation((float) aoa);
-        });
+        float azimuth = displayedAzimuth;
+        if (!Float.isNaN(azimuth)) {
+            rangingView.setAzimuth(azimuth);
+        }
+
+        if (!arrowAnimating) {
+            arrowAnimating = true;
+            Choreographer.getInstance().postFrameCallback(arrowFrameCallback);
+        }
     }
 
+    // Runs on the UI thread, once per display frame while the estimate moves
+    private void animateArrow(long frameTimeNanos) {
+        // Samples are stamped with the elapsed realtime clock, the frame time is not
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (rangingMotionModel.predictLatest(now, motionEstimate)) {
+            rangingView.setArrowAzimuth(motionEstimate[RangingMotionModel.AZIMUTH]);
+        }
+
+        int peerCount = rangingMotionModel.getPeerCount();
+        for (int i = 0; i < peerCount; i++) {
+            if (rangingMotionModel.predictPeer(i, now, motionEstimate)) {
+                rangingView.setPeer(i, motionEstimate[RangingMotionModel.DISTANCE], motionEstimate[RangingMotionModel.AZIMUTH]);
+            }
+        }
+        rangingView.setPeerCount(peerCount);
+
+        if (rangingMotionModel.isMoving(now)) {
+            Choreographer.getInstance().postFrameCallback(arrowFrameCallback);
+        } else {
+            arrowAnimating = false;
+        }
+    }
 
     public void updateRangingPartner(String partner) {
         runOnUiThread(() -> uwbRangingDevice.setText(getResources().getString(R.string.uwb_ranging_device_value, partner)));
     }
 
     public void resetRangingInfo() {
+        displayedDistance = Float.NaN;
+        displayedAzimuth = Float.NaN;
+        rangingMotionModel.clear();
         runOnUiThread(() -> {
-            uwbDistanceInfo.setText(getResources().getString(R.string.uwb_distance_not_started));
-            uwbAoaInfo.setText(getResources().getString(R.string.uwb_aoa_not_started));
-            uwbAoaArrow.setRotation(0);
+            rangingView.reset();
             uwbRangingDevice.setText(getResources().getString(R.string.uwb_ranging_device_not_started));
         });
     }
@@ -449,40 +481,8 @@ public class MainActivity extends AppCompatActivity
                 (dialog, which) -> startActivity(new Intent(Settings.ACTION_LOCATION_SOURCE_SETTINGS)));
     }
 
-    public void enableUwbDialog() {
-        Utils.showDialog(MainActivity.this,
-                getResources().getString(R.string.app_name),
-                getResources().getString(R.string.request_enable_uwb),
-                getResources().getString(R.string.dialog_cancel),
-                (dialog, which) -> {
-                    // Nothing to do
-                },
-                getResources().getString(R.string.dialog_accept),
-                (dialog, which) -> startActivity(new Intent(Settings.ACTION_SETTINGS)));
-    }
-
-    private boolean checkPermissions() {
-        return (checkSelfPermission(Manifest.permission.BLUETOOTH) == PackageManager.PERMISSION_GRANTED)
-                && (checkSelfPermission(Manifest.permission.BLUETOOTH_ADMIN) == PackageManager.PERMISSION_GRANTED)
-                && (checkSelfPermission(Manifest.permission.BLUETOOTH_SCAN) == PackageManager.PERMISSION_GRANTED)
-                && (checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED)
-                && (checkSelfPermission(Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED)
-                && (checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED)
-                && (checkSelfPermission(Manifest.permission.UWB_RANGING) == PackageManager.PERMISSION_GRANTED);
-    }
-
     private void requestPermissions() {
-        String[] permissionsList = new String[]{
-                Manifest.permission.BLUETOOTH,
-                Manifest.permission.BLUETOOTH_ADMIN,
-                Manifest.permission.BLUETOOTH_SCAN,
-                Manifest.permission.BLUETOOTH_CONNECT,
-                Manifest.permission.ACCESS_COARSE_LOCATION,
-                Manifest.permission.ACCESS_FINE_LOCATION,
-                Manifest.permission.UWB_RANGING,
-        };
-
-        requestPermissions(permissionsList, PERMISSION_REQUEST_CODE);
+        requestPermissions(CapabilityCacheImpl.REQUIRED_PERMISSIONS, PERMISSION_REQUEST_CODE);
     }
 
     @Override
@@ -515,6 +515,7 @@ public class MainActivity extends AppCompatActivity
                                 (dialog, which) -> finish());
                     }
                 } else {
+                    capabilityCache.invalidate();
                     initializeBleUwb();
                 }
             }
@@ -522,32 +523,24 @@ public class MainActivity extends AppCompatActivity
     }
 
     @Override
-    public void onConnect(String remoteDeviceName) {
-        Toast.makeText(MainActivity.this, "Bluetooth connected!", Toast.LENGTH_LONG).show();
-        this.remoteDeviceName = remoteDeviceName;
-        updateAppState(AppState.bleConnected);
+    public void onStateChanged(State state) {
+        updateAppState(state);
 
-        // Let's proceed with the UWB session configuration
-        startUwbRangingConfiguration();
+        if (state == State.ranging && rangingService != null) {
+            updateRangingPartner(rangingService.getRemoteDeviceName());
+        }
     }
 
     @Override
-    public void onDisconnect() {
-        Toast.makeText(MainActivity.this, "Bluetooth disconnected!", Toast.LENGTH_LONG).show();
-        this.remoteDeviceName = null;
-
-        // Close UWB Session if this is ongoing
-        uwbManagerImpl.close();
-
-        // Let's restart the demo
-        resetRangingInfo();
-        initializeBleUwb();
+    public void onConnect(String remoteDeviceName) {
+        runOnUiThread(() -> Toast.makeText(MainActivity.this, "Bluetooth connected!", Toast.LENGTH_LONG).show());
     }
 
     @Override
-    public void onDataReceived(byte[] data) {
+    public void onDisconnect() {
+        runOnUiThread(() -> Toast.makeText(MainActivity.this, "Bluetooth disconnected!", Toast.LENGTH_LONG).show());
 
-        // Process the data received
-        processUwbRangingConfigurationData(data);
+        // The service restarts the demo on its own
+        resetRangingInfo();
     }
-}
\ No newline at end of file
+}
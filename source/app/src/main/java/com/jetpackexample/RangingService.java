@@ -0,0 +1,703 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample;
+
+import android.Manifest;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.util.Log;
+
+import androidx.core.app.ActivityCompat;
+import androidx.core.app.NotificationCompat;
+import androidx.core.uwb.RangingResult;
+
+import com.jetpackexample.managers.BluetoothManagerImpl;
+import com.jetpackexample.managers.LocationManagerImpl;
+import com.jetpackexample.managers.UwbManagerImpl;
+import com.jetpackexample.oob.ConnectionStateMachine;
+import com.jetpackexample.oob.ConnectionStateMachine.State;
+import com.jetpackexample.oob.MessageId;
+import com.jetpackexample.oob.OobMessageDispatcher;
+import com.jetpackexample.oob.OobTlv;
+import com.jetpackexample.ranging.GeofenceEngine;
+import com.jetpackexample.ranging.ProximityRuleEngine;
+import com.jetpackexample.ranging.RangingHealthMonitor;
+import com.jetpackexample.ranging.RangingSample;
+import com.jetpackexample.ranging.RangingSessionExporter;
+import com.jetpackexample.ranging.RangingStatisticsEngine;
+import com.jetpackexample.ranging.RangingStreamServer;
+import com.jetpackexample.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.disposables.Disposable;
+
+/**
+ * Foreground service owning the Bluetooth LE connection, the OoB exchange and the UWB ranging
+ * session, so that ranging keeps going while no Activity is shown.
+ * <p>
+ * Connection and session handling runs on the service worker thread, OoB messages from the
+ * accessory are checked against the connection state as they arrive. Activities bind to the
+ * service and register a RangingServiceListener to follow its state.
+ */
+public class RangingService extends Service
+        implements BluetoothManagerImpl.BluetoothConnectionListener, BluetoothManagerImpl.BluetoothDataReceivedListener {
+
+    private static final String TAG = RangingService.class.getName();
+
+    private static final String NOTIFICATION_CHANNEL_ID = "ranging_service";
+    private static final int NOTIFICATION_ID = 0x0001;
+    private static final String EXPORT_DIRECTORY = "exports";
+    private static final int STATISTICS_MAX_PEERS = 8;
+    private static final float HEALTH_LOSS_RATE_THRESHOLD = 0.2f;
+    private static final float HEALTH_RATE_SHORTFALL_THRESHOLD = 0.3f;
+    private static final float HEALTH_HYSTERESIS = 0.1f;
+    private static final int STREAMING_TOKEN_LENGTH = 16;
+    private static final float NEARBY_ENTER_DISTANCE = 1.0f;
+    private static final float NEARBY_EXIT_DISTANCE = 1.5f;
+    private static final long NEARBY_DWELL_MS = 500;
+    private static final int NEARBY_DEBOUNCE_SAMPLES = 3;
+    private static final int GEOFENCE_MAX_ZONES = 1;
+    private static final int GEOFENCE_MAX_TAGS = 8;
+    private static final float GEOFENCE_CELL_SIZE = 1.0f;
+
+    /**
+     * Callbacks may be called from any thread
+     */
+    public interface RangingServiceListener {
+        void onStateChanged(State state);
+
+        void onConnect(String remoteDeviceName);
+
+        void onDisconnect();
+    }
+
+    public class LocalBinder extends Binder {
+        public RangingService getService() {
+            return RangingService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final List<RangingServiceListener> rangingServiceListeners = new CopyOnWriteArrayList<>();
+
+    // Event loop messages
+    private static final int MSG_START_SCANNING = 1;
+    private static final int MSG_CONFIGURE_SESSION = 2;
+    private static final int MSG_TRANSMIT_PHONE_CONFIG = 3;
+    private static final int MSG_STOP_RANGING = 4;
+    private static final int MSG_CLOSE = 5;
+    private static final int MSG_START_EXPORT = 6;
+    private static final int MSG_STOP_EXPORT = 7;
+    private static final int MSG_START_STREAMING = 8;
+    private static final int MSG_STOP_STREAMING = 9;
+
+    // Runs on the Bluetooth event loop, which owns the connection and session state
+    private Handler workerHandler = null;
+
+    private LocationManagerImpl locationManagerImpl = null;
+    private BluetoothManagerImpl bluetoothManagerImpl = null;
+    private UwbManagerImpl uwbManagerImpl = null;
+
+    private final ConnectionStateMachine connectionStateMachine = new ConnectionStateMachine();
+    private final OobMessageDispatcher oobMessageDispatcher = new OobMessageDispatcher(connectionStateMachine);
+
+    private volatile String remoteDeviceName;
+    private String remoteDeviceAddress;
+
+    // Configuration of the current session, for the export metadata
+    private UwbDeviceConfigData uwbDeviceConfigData = null;
+    private UwbPhoneConfigData uwbPhoneConfigData = null;
+    // The accessory sent its capabilities as TLVs, the session configuration is answered the same way
+    private boolean tlvOob = false;
+    private volatile RangingSessionExporter rangingSessionExporter = null;
+    private RangingStreamServer rangingStreamServer = null;
+    private volatile String streamingEndpoint = null;
+
+    private final RangingStatisticsEngine rangingStatisticsEngine = new RangingStatisticsEngine(
+            RangingStatisticsEngine.DEFAULT_WINDOW_MS, RangingStatisticsEngine.DEFAULT_WINDOW_CAPACITY, STATISTICS_MAX_PEERS);
+    private Disposable rangingStatisticsDisposable = null;
+
+    private final ProximityRuleEngine proximityRuleEngine = new ProximityRuleEngine();
+    private Disposable proximityRuleDisposable = null;
+
+    private final GeofenceEngine geofenceEngine = new GeofenceEngine(GEOFENCE_MAX_ZONES, GEOFENCE_MAX_TAGS, GEOFENCE_CELL_SIZE);
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        uwbManagerImpl = UwbManagerImpl.getInstance(this);
+        locationManagerImpl = LocationManagerImpl.getInstance(this);
+        bluetoothManagerImpl = BluetoothManagerImpl.getInstance(this);
+
+        // Bluetooth callbacks already arrive on this loop, no further thread hop is needed for them
+        workerHandler = new Handler(bluetoothManagerImpl.getEventLooper(), this::handleMessage);
+
+        rangingStatisticsDisposable = uwbManagerImpl.getRangingSampleFlowable().subscribe(rangingStatisticsEngine::onRangingSample);
+
+        // The accessory is within reach, whatever the phone is pointing at
+        proximityRuleEngine.addRule(new ProximityRuleEngine.Rule("nearby", NEARBY_ENTER_DISTANCE, NEARBY_EXIT_DISTANCE,
+                ProximityRuleEngine.ANY_ANGLE, ProximityRuleEngine.ANY_ANGLE, NEARBY_DWELL_MS, NEARBY_DEBOUNCE_SAMPLES));
+        proximityRuleEngine.compile();
+        proximityRuleEngine.setProximityRuleListener((ruleIndex, ruleName, active, latencyNanos) ->
+                Log.d(TAG, "Proximity rule " + ruleName + (active ? " active" : " inactive")
+                        + " after " + latencyNanos / 1000000 + " ms"));
+        // The sample stream is serialized, so the rules are evaluated by one thread at a time
+        proximityRuleDisposable = uwbManagerImpl.getRangingSampleFlowable().subscribe(proximityRuleEngine::onRangingSample);
+
+        // Zones in the horizontal plane of the phone, x to the right and z forward
+        geofenceEngine.addZone("ahead", -0.5f, 0.3f, 0.5f, 2.0f, 0.2f, 2000);
+        geofenceEngine.build();
+        geofenceEngine.setGeofenceListener((tagIndex, zoneIndex, zoneName, event, timestampMs) ->
+                Log.d(TAG, "Peer " + tagIndex + " zone " + zoneName + ": " + event));
+        uwbManagerImpl.getCartesianPositionStream().addListener(geofenceEngine);
+
+        RangingHealthMonitor rangingHealthMonitor = uwbManagerImpl.getRangingHealthMonitor();
+        rangingHealthMonitor.setThreshold(RangingHealthMonitor.Metric.lossRate, HEALTH_LOSS_RATE_THRESHOLD, HEALTH_HYSTERESIS);
+        rangingHealthMonitor.setThreshold(RangingHealthMonitor.Metric.rateShortfall, HEALTH_RATE_SHORTFALL_THRESHOLD, HEALTH_HYSTERESIS);
+        rangingHealthMonitor.setHealthListener(new RangingHealthMonitor.HealthListener() {
+            @Override
+            public void onThresholdCrossed(RangingHealthMonitor.Metric metric, boolean above, float value) {
+                Log.w(TAG, "Ranging link " + metric + (above ? " degraded: " : " recovered: ") + value
+                        + ", " + rangingHealthMonitor.getHealth());
+            }
+
+            @Override
+            public void onGap(long gapMs) {
+            }
+        });
+
+        connectionStateMachine.setStateListener((previousState, state) -> {
+            Log.d(TAG, "Connection state: " + previousState + " -> " + state);
+            for (RangingServiceListener rangingServiceListener : rangingServiceListeners) {
+                rangingServiceListener.onStateChanged(state);
+            }
+        });
+
+        // Messages from the accessory, with the states in which they are expected
+        oobMessageDispatcher.register(MessageId.uwbDeviceConfigurationData,
+                ConnectionStateMachine.maskOf(State.connected, State.stopped), State.configuring,
+                message -> workerHandler.obtainMessage(MSG_CONFIGURE_SESSION, 0, 0, message).sendToTarget());
+        oobMessageDispatcher.register(MessageId.uwbDeviceCapabilities,
+                ConnectionStateMachine.maskOf(State.connected, State.stopped), State.configuring,
+                message -> workerHandler.obtainMessage(MSG_CONFIGURE_SESSION, 1, 0, message).sendToTarget());
+        oobMessageDispatcher.register(MessageId.uwbDidStart,
+                ConnectionStateMachine.maskOf(State.configuring, State.ranging), State.ranging,
+                message -> Log.d(TAG, "UWB ranging started on the accessory"));
+        oobMessageDispatcher.register(MessageId.uwbDidStop,
+                ConnectionStateMachine.maskOf(State.configuring, State.ranging, State.stopping), State.stopped,
+                message -> {
+                    Log.d(TAG, "UWB ranging stopped on the accessory");
+                    // Disarm the recovery supervisor, the accessory only rejoins with a new configuration
+                    uwbManagerImpl.stopRanging();
+                });
+
+        NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+                getString(R.string.ranging_service_channel), NotificationManager.IMPORTANCE_LOW);
+        getSystemService(NotificationManager.class).createNotificationChannel(channel);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification());
+
+        // Start scanning unless we are already busy with an accessory
+        workerHandler.sendEmptyMessage(MSG_START_SCANNING);
+
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        rangingStatisticsDisposable.dispose();
+        proximityRuleDisposable.dispose();
+        uwbManagerImpl.getCartesianPositionStream().removeListener(geofenceEngine);
+
+        // The managers outlive the service, none of them may keep a reference to it
+        uwbManagerImpl.getRangingHealthMonitor().setHealthListener(null);
+        rangingServiceListeners.clear();
+
+        // Stops the scan and closes the connections and session, releasing their listeners
+        workerHandler.sendEmptyMessage(MSG_CLOSE);
+    }
+
+    public void addRangingServiceListener(RangingServiceListener rangingServiceListener) {
+        rangingServiceListeners.add(rangingServiceListener);
+    }
+
+    public void removeRangingServiceListener(RangingServiceListener rangingServiceListener) {
+        rangingServiceListeners.remove(rangingServiceListener);
+    }
+
+    public State getState() {
+        return connectionStateMachine.getState();
+    }
+
+    public String getRemoteDeviceName() {
+        return remoteDeviceName;
+    }
+
+    public LocationManagerImpl getLocationManager() {
+        return locationManagerImpl;
+    }
+
+    public BluetoothManagerImpl getBluetoothManager() {
+        return bluetoothManagerImpl;
+    }
+
+    public UwbManagerImpl getUwbManager() {
+        return uwbManagerImpl;
+    }
+
+    public Flowable<RangingSample> getRangingSampleFlowable() {
+        return uwbManagerImpl.getRangingSampleFlowable();
+    }
+
+    /**
+     * @return the live statistics of the ranged peers, kept across sessions of the service
+     */
+    public RangingStatisticsEngine getRangingStatistics() {
+        return rangingStatisticsEngine;
+    }
+
+    /**
+     * Rules may be added from any thread, followed by compile()
+     *
+     * @return the proximity rules evaluated on the ranging samples, kept across sessions of the service
+     */
+    public ProximityRuleEngine getProximityRuleEngine() {
+        return proximityRuleEngine;
+    }
+
+    /**
+     * Stops ranging, closes the connection and stops the service
+     */
+    public void stop() {
+        workerHandler.sendEmptyMessage(MSG_CLOSE);
+        stopForeground(STOP_FOREGROUND_REMOVE);
+        stopSelf();
+    }
+
+    private boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MSG_START_SCANNING:
+                startScanning();
+                break;
+
+            case MSG_CONFIGURE_SESSION:
+                configureUwbRangingSession((byte[]) msg.obj, msg.arg1 != 0);
+                break;
+
+            case MSG_TRANSMIT_PHONE_CONFIG:
+                // A session restarted by the supervisor after the accessory stopped or disconnected must not be announced
+                State state = connectionStateMachine.getState();
+                if (state != State.configuring && state != State.ranging) {
+                    Log.w(TAG, "Dropping UWB phone configuration in state " + state);
+                    break;
+                }
+
+                uwbPhoneConfigData = (UwbPhoneConfigData) msg.obj;
+                transmitUwbPhoneConfigData(uwbPhoneConfigData);
+                break;
+
+            case MSG_STOP_RANGING:
+                if (connectionStateMachine.moveTo(State.stopping)) {
+                    transmitUwbRangingStop();
+                }
+
+                uwbManagerImpl.stopRanging();
+                break;
+
+            case MSG_CLOSE:
+                close();
+                break;
+
+            case MSG_START_EXPORT:
+                handleStartExport(msg.arg1 != 0);
+                break;
+
+            case MSG_STOP_EXPORT:
+                handleStopExport();
+                break;
+
+            case MSG_START_STREAMING:
+                handleStartStreaming(msg.arg1);
+                break;
+
+            case MSG_STOP_STREAMING:
+                handleStopStreaming();
+                break;
+
+            default:
+                return false;
+        }
+
+        return true;
+    }
+
+    private Notification buildNotification() {
+        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), PendingIntent.FLAG_IMMUTABLE);
+
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.ranging_service_running))
+                .setContentIntent(pendingIntent)
+                .setOngoing(true)
+                .build();
+    }
+
+    private void startScanning() {
+        if (!bluetoothManagerImpl.isEnabled() || bluetoothManagerImpl.isConnected()) {
+            return;
+        }
+
+        // Only from idle, we are otherwise already busy with an accessory
+        if (!connectionStateMachine.moveTo(State.scanning)) {
+            return;
+        }
+
+        Log.d(TAG, "Start Bluetooth LE Device scanning");
+        bluetoothManagerImpl.startLeDeviceScan(this::onDeviceScanned);
+    }
+
+    private void onDeviceScanned(BluetoothDevice device) {
+        if (connectionStateMachine.getState() != State.scanning || bluetoothManagerImpl.isConnected()) {
+            return;
+        }
+
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
+            // Ignore devices that do not define name or address
+            if ((device.getName() == null) || (device.getAddress() == null)) {
+                return;
+            }
+
+            Log.d(TAG, "Let's proceed to connect to: " + device.getName());
+
+            // Stop scanning and further proceed to connect to the device
+            if (!connectionStateMachine.moveTo(State.connecting)) {
+                return;
+            }
+
+            bluetoothManagerImpl.stopLeDeviceScan();
+            remoteDeviceAddress = device.getAddress();
+            if (!bluetoothManagerImpl.connect(remoteDeviceAddress, this, this)) {
+                remoteDeviceAddress = null;
+                connectionStateMachine.reset();
+                startScanning();
+                return;
+            }
+
+            // This link carries the OoB exchange and the UWB session, it must not make room for another
+            bluetoothManagerImpl.setPinned(remoteDeviceAddress, true);
+        } else {
+            Log.e(TAG, "Missing required permission to read Bluetooth device name!");
+        }
+    }
+
+    /**
+     * Exports the samples of the current session to the app external files, until stopExport()
+     * or the end of the session
+     *
+     * @param gzip Compress the binary export
+     */
+    public void startExport(boolean gzip) {
+        workerHandler.obtainMessage(MSG_START_EXPORT, gzip ? 1 : 0, 0).sendToTarget();
+    }
+
+    public void stopExport() {
+        workerHandler.sendEmptyMessage(MSG_STOP_EXPORT);
+    }
+
+    public boolean isExporting() {
+        return rangingSessionExporter != null;
+    }
+
+    private void handleStartExport(boolean gzip) {
+        if (rangingSessionExporter != null || uwbPhoneConfigData == null || uwbDeviceConfigData == null) {
+            Log.w(TAG, "No session to export, or already exporting");
+            return;
+        }
+
+        File directory = getExternalFilesDir(EXPORT_DIRECTORY);
+        if (directory == null) {
+            Log.e(TAG, "External storage not available for the export");
+            return;
+        }
+
+        String name = "ranging_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+        rangingSessionExporter = new RangingSessionExporter(
+                new File(directory, name + (gzip ? ".urb.gz" : ".urb")), gzip,
+                new File(directory, name + ".csv"),
+                RangingSessionExporter.DEFAULT_BATCH_SIZE);
+        rangingSessionExporter.start(uwbManagerImpl.getRangingSampleFlowable(), uwbPhoneConfigData, uwbDeviceConfigData);
+        Log.d(TAG, "Exporting session to " + directory + "/" + name);
+    }
+
+    private void handleStopExport() {
+        if (rangingSessionExporter != null) {
+            rangingSessionExporter.stop();
+            rangingSessionExporter = null;
+        }
+    }
+
+    /**
+     * Streams the ranging samples to clients on the local network, see RangingStreamServer
+     *
+     * @param port TCP port to listen on
+     */
+    public void startStreaming(int port) {
+        workerHandler.obtainMessage(MSG_START_STREAMING, port, 0).sendToTarget();
+    }
+
+    public void stopStreaming() {
+        workerHandler.sendEmptyMessage(MSG_STOP_STREAMING);
+    }
+
+    /**
+     * @return the WebSocket URL clients connect to, with its token, or null when not streaming
+     */
+    public String getStreamingEndpoint() {
+        return streamingEndpoint;
+    }
+
+    private void handleStartStreaming(int port) {
+        if (rangingStreamServer != null) {
+            Log.w(TAG, "Already streaming");
+            return;
+        }
+
+        try {
+            // Only reachable from the local network, never on the cellular or wildcard address
+            InetAddress address = RangingStreamServer.findLocalNetworkAddress();
+            if (address == null) {
+                Log.e(TAG, "Not connected to a local network, streaming not started");
+                return;
+            }
+
+            byte[] tokenBytes = new byte[STREAMING_TOKEN_LENGTH];
+            new SecureRandom().nextBytes(tokenBytes);
+            String token = Utils.byteArrayToHexString(tokenBytes);
+
+            RangingStreamServer server = new RangingStreamServer(address, port, RangingStreamServer.DEFAULT_QUEUE_CAPACITY, token);
+            server.start(uwbManagerImpl.getRangingSampleFlowable());
+            rangingStreamServer = server;
+            streamingEndpoint = "ws://" + address.getHostAddress() + ":" + server.getPort() + "/?token=" + token;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start streaming on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    private void handleStopStreaming() {
+        if (rangingStreamServer != null) {
+            rangingStreamServer.stop();
+            rangingStreamServer = null;
+            streamingEndpoint = null;
+        }
+    }
+
+    private void close() {
+        handleStopStreaming();
+        clearSession();
+
+        bluetoothManagerImpl.stopLeDeviceScan();
+        bluetoothManagerImpl.close();
+        uwbManagerImpl.close();
+
+        remoteDeviceName = null;
+        remoteDeviceAddress = null;
+        connectionStateMachine.reset();
+    }
+
+    /**
+     * Ends the export and forgets the configuration of the session with the current accessory
+     */
+    private void clearSession() {
+        handleStopExport();
+        uwbDeviceConfigData = null;
+        uwbPhoneConfigData = null;
+        tlvOob = false;
+    }
+
+    public void processUwbRangingConfigurationData(byte[] data) {
+        oobMessageDispatcher.dispatch(data);
+    }
+
+    public void startUwbRangingConfiguration() {
+        // The TLV version goes first in its own message, legacy accessories ignore it and answer the
+        // unchanged initialize with uwbDeviceConfigurationData. Writes are delivered in order.
+        bluetoothManagerImpl.transmit(remoteDeviceAddress, new byte[]{MessageId.oobTlvVersion.getValue(), OobTlv.VERSION});
+        bluetoothManagerImpl.transmit(remoteDeviceAddress, new byte[]{MessageId.initialize.getValue()});
+    }
+
+    public void transmitUwbPhoneConfigData(UwbPhoneConfigData uwbPhoneConfigData) {
+        if (tlvOob) {
+            bluetoothManagerImpl.transmit(remoteDeviceAddress, Utils.concat(
+                    new byte[]{MessageId.uwbPhoneSessionConfiguration.getValue()},
+                    uwbPhoneConfigData.toTlv()));
+        } else {
+            bluetoothManagerImpl.transmit(remoteDeviceAddress, Utils.concat(
+                    new byte[]{MessageId.uwbPhoneConfigurationData.getValue()},
+                    uwbPhoneConfigData.toByteArray()));
+        }
+    }
+
+    public void transmitUwbRangingStop() {
+        bluetoothManagerImpl.transmit(remoteDeviceAddress, new byte[]{MessageId.stop.getValue()});
+    }
+
+    /**
+     * @param message Configuration message received from the accessory, parsed in place after its message ID
+     * @param tlv     true for a uwbDeviceCapabilities message, false for uwbDeviceConfigurationData
+     */
+    public void configureUwbRangingSession(byte[] message, boolean tlv) {
+        Log.d(TAG, "UWB Configure UwbDeviceConfigData: " + Utils.byteArrayToHexString(message));
+
+        final UwbDeviceConfigData uwbDeviceConfigData;
+        try {
+            uwbDeviceConfigData = tlv ? UwbDeviceConfigData.fromTlv(message, 1) : UwbDeviceConfigData.fromByteArray(message, 1);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            // The accessory may send its configuration again
+            Log.e(TAG, "Invalid UWB device configuration: " + e.getMessage());
+            connectionStateMachine.moveTo(State.stopped);
+            return;
+        }
+
+        Log.d(TAG, "UWB device configuration: " + uwbDeviceConfigData);
+        this.uwbDeviceConfigData = uwbDeviceConfigData;
+        this.tlvOob = tlv;
+        uwbManagerImpl.startRanging(remoteDeviceAddress, uwbDeviceConfigData, new UwbManagerImpl.UwbRangingListener() {
+            @Override
+            public void onRangingStarted(UwbPhoneConfigData uwbPhoneConfigData) {
+                workerHandler.obtainMessage(MSG_TRANSMIT_PHONE_CONFIG, uwbPhoneConfigData).sendToTarget();
+            }
+
+            @Override
+            public void onRangingResult(RangingResult rangingResult) {
+                // Results are published on the ranging sample stream
+            }
+
+            @Override
+            public void onRangingError(Throwable error) {
+                Log.e(TAG, "Ranging error: " + error.getMessage());
+            }
+
+            @Override
+            public void onRangingRecovered(long recoveryTimeMs) {
+                Log.i(TAG, "Ranging recovered in " + recoveryTimeMs + " ms");
+            }
+
+            @Override
+            public void onRangingMigrated(long migrationTimeMs) {
+                Log.i(TAG, "Ranging migrated to a cleaner channel in " + migrationTimeMs + " ms");
+            }
+
+            @Override
+            public void onRangingComplete() {
+                // Do nothing
+            }
+
+            @Override
+            public boolean shouldRestart() {
+                State state = connectionStateMachine.getState();
+                return state == State.configuring || state == State.ranging;
+            }
+        });
+    }
+
+    public void stopRanging() {
+        workerHandler.sendEmptyMessage(MSG_STOP_RANGING);
+    }
+
+    @Override
+    public void onConnect(String remoteDeviceName) {
+        this.remoteDeviceName = remoteDeviceName;
+        if (!connectionStateMachine.moveTo(State.connected)) {
+            Log.w(TAG, "Unexpected connection in state " + connectionStateMachine.getState());
+            return;
+        }
+
+        for (RangingServiceListener rangingServiceListener : rangingServiceListeners) {
+            rangingServiceListener.onConnect(remoteDeviceName);
+        }
+
+        // Get the UWB session ready while the accessory answers, if we already know it
+        uwbManagerImpl.prepareSession(remoteDeviceAddress);
+
+        // Let's proceed with the UWB session configuration
+        startUwbRangingConfiguration();
+    }
+
+    @Override
+    public void onDisconnect(String address) {
+        if (!address.equals(remoteDeviceAddress)) {
+            // Another pooled connection, e.g. an idle one closed to make room, the session is not affected
+            Log.d(TAG, "Ignoring disconnection of " + address);
+            return;
+        }
+
+        this.remoteDeviceName = null;
+        this.remoteDeviceAddress = null;
+
+        // Close UWB Session if this is ongoing, the export belongs to it
+        uwbManagerImpl.close();
+        clearSession();
+        connectionStateMachine.reset();
+
+        for (RangingServiceListener rangingServiceListener : rangingServiceListeners) {
+            rangingServiceListener.onDisconnect();
+        }
+
+        // Let's look for the accessory again
+        startScanning();
+    }
+
+    @Override
+    public void onDataReceived(byte[] data) {
+
+        // Called on the Bluetooth event loop
+        processUwbRangingConfigurationData(data);
+    }
+}
@@ -16,97 +16,152 @@
 
 package com.jetpackexample;
 
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.jetpackexample.oob.OobTlv;
 import com.jetpackexample.utils.Utils;
 
-import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * UWB capabilities and address advertised by the accessory, immutable.
+ * <p>
+ * toByteArray()/fromByteArray() are the legacy OoB layout exchanged with the accessory and
+ * fromTlv() parses the extended capabilities message, which also advertises the supported channels
+ * and ranging interval and may carry an extended MAC address.
+ * toCompactByteArray()/fromCompactByteArray() are a versioned form for storage, with a
+ * length-prefixed MAC address, and the class is Parcelable for IPC. The hash code is computed once,
+ * configurations can be used as map keys.
+ */
+public final class UwbDeviceConfigData implements Parcelable {
 
-public class UwbDeviceConfigData implements Serializable {
-    public short specVerMajor;
-    public short specVerMinor;
-    public byte[] chipId = new byte[2];
-    public byte[] chipFwVersion = new byte[2];
-    public byte[] mwVersion = new byte[3];
-    public int supportedUwbProfileIds;
-    public byte supportedDeviceRangingRoles;
-    public byte[] deviceMacAddress;
+    // Version of the compact binary form, version 1 had no channels and ranging interval
+    private static final byte COMPACT_VERSION = 2;
+    private static final int COMPACT_FIXED_LENGTH = 1 + 2 + 2 + 2 + 2 + 3 + 4 + 1 + 4 + 4 + 1;
 
-    public UwbDeviceConfigData() {
+    // Set when the accessory does not advertise a capability
+    public static final int ANY_CHANNEL = 0;
+    public static final int ANY_RANGING_INTERVAL = 0;
 
-    }
+    private final short specVerMajor;
+    private final short specVerMinor;
+    private final byte[] chipId;
+    private final byte[] chipFwVersion;
+    private final byte[] mwVersion;
+    private final int supportedUwbProfileIds;
+    private final byte supportedDeviceRangingRoles;
+    private final byte[] deviceMacAddress;
+    private final int supportedChannels;
+    private final int minRangingIntervalMs;
+    private final int hashCode;
 
     public UwbDeviceConfigData(short specVerMajor, short specVerMinor, byte[] chipId, byte[] chipFwVersion, byte[] mwVersion, int supportedUwbProfileIds, byte supportedDeviceRangingRoles, byte[] deviceMacAddress) {
+        this(specVerMajor, specVerMinor, chipId, chipFwVersion, mwVersion, supportedUwbProfileIds, supportedDeviceRangingRoles,
+                deviceMacAddress, ANY_CHANNEL, ANY_RANGING_INTERVAL);
+    }
+
+    /**
+     * @param supportedChannels    Bit n set when channel n is supported, or ANY_CHANNEL
+     * @param minRangingIntervalMs Shortest ranging interval supported, or ANY_RANGING_INTERVAL
+     */
+    public UwbDeviceConfigData(short specVerMajor, short specVerMinor, byte[] chipId, byte[] chipFwVersion, byte[] mwVersion, int supportedUwbProfileIds, byte supportedDeviceRangingRoles, byte[] deviceMacAddress,
+                               int supportedChannels, int minRangingIntervalMs) {
+        if (chipId == null || chipId.length != 2 || chipFwVersion == null || chipFwVersion.length != 2
+                || mwVersion == null || mwVersion.length != 3 || deviceMacAddress == null) {
+            throw new IllegalArgumentException("Invalid UWB device configuration");
+        }
+
         this.specVerMajor = specVerMajor;
         this.specVerMinor = specVerMinor;
-        this.chipId = chipId;
-        this.chipFwVersion = chipFwVersion;
-        this.mwVersion = mwVersion;
+        this.chipId = chipId.clone();
+        this.chipFwVersion = chipFwVersion.clone();
+        this.mwVersion = mwVersion.clone();
         this.supportedUwbProfileIds = supportedUwbProfileIds;
         this.supportedDeviceRangingRoles = supportedDeviceRangingRoles;
-        this.deviceMacAddress = deviceMacAddress;
+        this.deviceMacAddress = deviceMacAddress.clone();
+        this.supportedChannels = supportedChannels;
+        this.minRangingIntervalMs = minRangingIntervalMs;
+
+        int hash = 31 * specVerMajor + specVerMinor;
+        hash = 31 * hash + Arrays.hashCode(this.chipId);
+        hash = 31 * hash + Arrays.hashCode(this.chipFwVersion);
+        hash = 31 * hash + Arrays.hashCode(this.mwVersion);
+        hash = 31 * hash + supportedUwbProfileIds;
+        hash = 31 * hash + supportedDeviceRangingRoles;
+        hash = 31 * hash + supportedChannels;
+        hash = 31 * hash + minRangingIntervalMs;
+        hashCode = 31 * hash + Arrays.hashCode(this.deviceMacAddress);
     }
 
     public short getSpecVerMajor() {
         return specVerMajor;
     }
 
-    public void setSpecVerMajor(short specVerMajor) {
-        this.specVerMajor = specVerMajor;
-    }
-
     public short getSpecVerMinor() {
         return specVerMinor;
     }
 
-    public void setSpecVerMinor(short specVerMinor) {
-        this.specVerMinor = specVerMinor;
-    }
-
     public byte[] getChipId() {
-        return chipId;
-    }
-
-    public void setChipId(byte[] chipId) {
-        this.chipId = chipId;
+        return chipId.clone();
     }
 
     public byte[] getChipFwVersion() {
-        return chipFwVersion;
-    }
-
-    public void setChipFwVersion(byte[] chipFwVersion) {
-        this.chipFwVersion = chipFwVersion;
+        return chipFwVersion.clone();
     }
 
     public byte[] getMwVersion() {
-        return mwVersion;
-    }
-
-    public void setMwVersion(byte[] mwVersion) {
-        this.mwVersion = mwVersion;
+        return mwVersion.clone();
     }
 
     public int getSupportedUwbProfileIds() {
         return supportedUwbProfileIds;
     }
 
-    public void setSupportedUwbProfileIds(int supportedUwbProfileIds) {
-        this.supportedUwbProfileIds = supportedUwbProfileIds;
-    }
-
     public byte getSupportedDeviceRangingRoles() {
         return supportedDeviceRangingRoles;
     }
 
-    public void setSupportedDeviceRangingRoles(byte supportedDeviceRangingRoles) {
-        this.supportedDeviceRangingRoles = supportedDeviceRangingRoles;
+    public byte[] getDeviceMacAddress() {
+        return deviceMacAddress.clone();
     }
 
-    public byte[] getDeviceMacAddress() {
-        return deviceMacAddress;
+    /**
+     * @param channel UWB channel
+     * @return true if the accessory supports the channel or did not advertise its channels
+     */
+    public boolean supportsChannel(int channel) {
+        return supportedChannels == ANY_CHANNEL || (channel < 32 && (supportedChannels & (1 << channel)) != 0);
+    }
+
+    public int getSupportedChannels() {
+        return supportedChannels;
+    }
+
+    public int getMinRangingIntervalMs() {
+        return minRangingIntervalMs;
     }
 
-    public void setDeviceMacAddress(byte[] deviceMacAddress) {
-        this.deviceMacAddress = deviceMacAddress;
+    /**
+     * Compares everything but the MAC address, which the accessory may change between sessions
+     *
+     * @param other Configuration to compare with
+     * @return true if both configurations advertise the same chip, versions, profiles, roles,
+     * channels and ranging interval
+     */
+    public boolean hasSameCapabilities(UwbDeviceConfigData other) {
+        return other != null
+                && specVerMajor == other.specVerMajor
+                && specVerMinor == other.specVerMinor
+                && Arrays.equals(chipId, other.chipId)
+                && Arrays.equals(chipFwVersion, other.chipFwVersion)
+                && Arrays.equals(mwVersion, other.mwVersion)
+                && supportedUwbProfileIds == other.supportedUwbProfileIds
+                && supportedDeviceRangingRoles == other.supportedDeviceRangingRoles
+                && supportedChannels == other.supportedChannels
+                && minRangingIntervalMs == other.minRangingIntervalMs;
     }
 
     public byte[] toByteArray() {
@@ -124,16 +179,241 @@ public class UwbDeviceConfigData implements Serializable {
     }
 
     public static UwbDeviceConfigData fromByteArray(byte[] data) {
-        UwbDeviceConfigData uwbDeviceConfigData = new UwbDeviceConfigData();
-        uwbDeviceConfigData.setSpecVerMajor(Utils.byteArrayToShort(Utils.extract(data, 2, 0)));
-        uwbDeviceConfigData.setSpecVerMinor(Utils.byteArrayToShort(Utils.extract(data, 2, 2)));
-        uwbDeviceConfigData.setChipId(Utils.extract(data, 2, 4));
-        uwbDeviceConfigData.setChipFwVersion(Utils.extract(data, 2, 6));
-        uwbDeviceConfigData.setMwVersion(Utils.extract(data, 3, 8));
-        uwbDeviceConfigData.setSupportedUwbProfileIds(Utils.byteArrayToInt(Utils.extract(data, 4, 11)));
-        uwbDeviceConfigData.setSupportedDeviceRangingRoles(Utils.byteArrayToByte(Utils.extract(data, 1, 15)));
-        uwbDeviceConfigData.setDeviceMacAddress(Utils.extract(data, 2, 16));
-
-        return uwbDeviceConfigData;
+        return fromByteArray(data, 0);
     }
+
+    /**
+     * @param message Buffer holding the legacy layout
+     * @param offset  Start of the configuration in the buffer, so that a message is parsed in place
+     * @return the configuration
+     */
+    public static UwbDeviceConfigData fromByteArray(byte[] message, int offset) {
+        return new UwbDeviceConfigData(
+                Utils.byteArrayToShort(Utils.extract(message, 2, offset)),
+                Utils.byteArrayToShort(Utils.extract(message, 2, offset + 2)),
+                Utils.extract(message, 2, offset + 4),
+                Utils.extract(message, 2, offset + 6),
+                Utils.extract(message, 3, offset + 8),
+                Utils.byteArrayToInt(Utils.extract(message, 4, offset + 11)),
+                Utils.byteArrayToByte(Utils.extract(message, 1, offset + 15)),
+                Utils.extract(message, 2, offset + 16));
+    }
+
+    /**
+     * @return the versioned compact form, for storage
+     */
+    public byte[] toCompactByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(COMPACT_FIXED_LENGTH + deviceMacAddress.length);
+        buffer.put(COMPACT_VERSION);
+        buffer.putShort(specVerMajor);
+        buffer.putShort(specVerMinor);
+        buffer.put(chipId);
+        buffer.put(chipFwVersion);
+        buffer.put(mwVersion);
+        buffer.putInt(supportedUwbProfileIds);
+        buffer.put(supportedDeviceRangingRoles);
+        buffer.putInt(supportedChannels);
+        buffer.putInt(minRangingIntervalMs);
+        buffer.put((byte) deviceMacAddress.length);
+        buffer.put(deviceMacAddress);
+
+        return buffer.array();
+    }
+
+    /**
+     * Parses the compact form written by toCompactByteArray()
+     *
+     * @param data Compact form
+     * @return the configuration
+     * @throws IllegalArgumentException if the version is unknown or the data is truncated
+     */
+    public static UwbDeviceConfigData fromCompactByteArray(byte[] data) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            byte version = buffer.get();
+            if (version < 1 || version > COMPACT_VERSION) {
+                throw new IllegalArgumentException("Unknown UWB device configuration version");
+            }
+
+            short specVerMajor = buffer.getShort();
+            short specVerMinor = buffer.getShort();
+            byte[] chipId = new byte[2];
+            buffer.get(chipId);
+            byte[] chipFwVersion = new byte[2];
+            buffer.get(chipFwVersion);
+            byte[] mwVersion = new byte[3];
+            buffer.get(mwVersion);
+            int supportedUwbProfileIds = buffer.getInt();
+            byte supportedDeviceRangingRoles = buffer.get();
+            int supportedChannels = ANY_CHANNEL;
+            int minRangingIntervalMs = ANY_RANGING_INTERVAL;
+            if (version >= 2) {
+                supportedChannels = buffer.getInt();
+                minRangingIntervalMs = buffer.getInt();
+            }
+            byte[] deviceMacAddress = new byte[buffer.get() & 0xFF];
+            buffer.get(deviceMacAddress);
+            if (buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes in UWB device configuration");
+            }
+
+            return new UwbDeviceConfigData(specVerMajor, specVerMinor, chipId, chipFwVersion, mwVersion,
+                    supportedUwbProfileIds, supportedDeviceRangingRoles, deviceMacAddress, supportedChannels, minRangingIntervalMs);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated UWB device configuration");
+        }
+    }
+
+    /**
+     * Parses the payload of a uwbDeviceCapabilities message
+     *
+     * @param payload Payload, starting with the TLV version
+     * @return the configuration
+     * @throws IllegalArgumentException if a mandatory parameter is missing or malformed
+     */
+    public static UwbDeviceConfigData fromTlv(byte[] payload) {
+        return fromTlv(payload, 0);
+    }
+
+    /**
+     * Parses the payload of a uwbDeviceCapabilities message in place
+     *
+     * @param message Buffer holding the payload
+     * @param offset  Start of the payload in the buffer, at the TLV version
+     * @return the configuration
+     * @throws IllegalArgumentException if a mandatory parameter is missing or malformed
+     */
+    public static UwbDeviceConfigData fromTlv(byte[] message, int offset) {
+        short specVerMajor = 0;
+        short specVerMinor = 0;
+        byte[] chipId = null;
+        byte[] chipFwVersion = null;
+        byte[] mwVersion = null;
+        int supportedUwbProfileIds = 0;
+        byte supportedDeviceRangingRoles = 0;
+        byte[] deviceMacAddress = null;
+        int supportedChannels = ANY_CHANNEL;
+        int minRangingIntervalMs = ANY_RANGING_INTERVAL;
+        boolean hasSpecVersion = false;
+        boolean hasProfiles = false;
+        boolean hasRoles = false;
+
+        OobTlv.Reader reader = new OobTlv.Reader(message, offset);
+        while (reader.next()) {
+            switch (reader.getTag()) {
+                case OobTlv.TAG_SPEC_VERSION:
+                    int specVersion = reader.getInt();
+                    specVerMajor = (short) (specVersion >> 16);
+                    specVerMinor = (short) specVersion;
+                    hasSpecVersion = true;
+                    break;
+                case OobTlv.TAG_MAC_ADDRESS:
+                    if (reader.getLength() != 2 && reader.getLength() != 8) {
+                        throw new IllegalArgumentException("Invalid MAC address length: " + reader.getLength());
+                    }
+                    deviceMacAddress = reader.getBytes();
+                    break;
+                case OobTlv.TAG_CHIP_ID:
+                    chipId = reader.getBytes(2);
+                    break;
+                case OobTlv.TAG_CHIP_FW_VERSION:
+                    chipFwVersion = reader.getBytes(2);
+                    break;
+                case OobTlv.TAG_MW_VERSION:
+                    mwVersion = reader.getBytes(3);
+                    break;
+                case OobTlv.TAG_SUPPORTED_PROFILE_IDS:
+                    supportedUwbProfileIds = reader.getInt();
+                    hasProfiles = true;
+                    break;
+                case OobTlv.TAG_SUPPORTED_DEVICE_RANGING_ROLES:
+                    supportedDeviceRangingRoles = reader.getByte();
+                    hasRoles = true;
+                    break;
+                case OobTlv.TAG_SUPPORTED_CHANNELS:
+                    supportedChannels = reader.getInt();
+                    break;
+                case OobTlv.TAG_MIN_RANGING_INTERVAL_MS:
+                    minRangingIntervalMs = reader.getShort() & 0xFFFF;
+                    break;
+                default:
+                    // Added by a later version
+                    break;
+            }
+        }
+
+        if (!hasSpecVersion || chipId == null || chipFwVersion == null || mwVersion == null
+                || !hasProfiles || !hasRoles || deviceMacAddress == null) {
+            throw new IllegalArgumentException("Missing UWB device capabilities");
+        }
+
+        return new UwbDeviceConfigData(specVerMajor, specVerMinor, chipId, chipFwVersion, mwVersion,
+                supportedUwbProfileIds, supportedDeviceRangingRoles, deviceMacAddress, supportedChannels, minRangingIntervalMs);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UwbDeviceConfigData)) {
+            return false;
+        }
+
+        UwbDeviceConfigData other = (UwbDeviceConfigData) o;
+        return hashCode == other.hashCode
+                && hasSameCapabilities(other)
+                && Arrays.equals(deviceMacAddress, other.deviceMacAddress);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return "specVer: " + Integer.toHexString(specVerMajor & 0xFFFF) + "." + Integer.toHexString(specVerMinor & 0xFFFF)
+                + " chipId: " + Utils.byteArrayToHexString(chipId)
+                + " chipFwVersion: " + Utils.byteArrayToHexString(chipFwVersion)
+                + " mwVersion: " + Utils.byteArrayToHexString(mwVersion)
+                + " profiles: " + Integer.toHexString(supportedUwbProfileIds)
+                + " roles: " + Integer.toHexString(supportedDeviceRangingRoles & 0xFF)
+                + " channels: " + Integer.toHexString(supportedChannels)
+                + " minRangingIntervalMs: " + minRangingIntervalMs
+                + " mac: " + Utils.byteArrayToHexString(deviceMacAddress);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(specVerMajor);
+        dest.writeInt(specVerMinor);
+        dest.writeByteArray(chipId);
+        dest.writeByteArray(chipFwVersion);
+        dest.writeByteArray(mwVersion);
+        dest.writeInt(supportedUwbProfileIds);
+        dest.writeByte(supportedDeviceRangingRoles);
+        dest.writeByteArray(deviceMacAddress);
+        dest.writeInt(supportedChannels);
+        dest.writeInt(minRangingIntervalMs);
+    }
+
+    public static final Creator<UwbDeviceConfigData> CREATOR = new Creator<UwbDeviceConfigData>() {
+        @Override
+        public UwbDeviceConfigData createFromParcel(Parcel source) {
+            return new UwbDeviceConfigData((short) source.readInt(), (short) source.readInt(),
+                    source.createByteArray(), source.createByteArray(), source.createByteArray(),
+                    source.readInt(), source.readByte(), source.createByteArray(), source.readInt(), source.readInt());
+        }
+
+        @Override
+        public UwbDeviceConfigData[] newArray(int size) {
+            return new UwbDeviceConfigData[size];
+        }
+    };
 }
@@ -16,25 +16,59 @@
 
 package com.jetpackexample;
 
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.jetpackexample.oob.OobTlv;
 import com.jetpackexample.utils.Utils;
 
-import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * UWB session configuration selected by the phone and sent to the accessory, immutable.
+ * <p>
+ * toByteArray()/fromByteArray() are the legacy OoB layout exchanged with the accessory and
+ * toTlv() builds the extended session configuration message, which also carries the ranging interval
+ * and may carry an extended MAC address.
+ * toCompactByteArray()/fromCompactByteArray() are a versioned form for storage, with a
+ * length-prefixed MAC address, and the class is Parcelable for IPC. The hash code is computed once,
+ * configurations can be used as map keys.
+ */
+public final class UwbPhoneConfigData implements Parcelable {
 
-public class UwbPhoneConfigData implements Serializable {
-    short specVerMajor;
-    short specVerMinor;
-    int sessionId;
-    byte preambleId;
-    byte channel;
-    byte profileId;
-    byte deviceRangingRole;
-    byte[] phoneMacAddress;
+    // Version of the compact binary form, version 1 had no ranging interval
+    private static final byte COMPACT_VERSION = 2;
+    private static final int COMPACT_FIXED_LENGTH = 1 + 2 + 2 + 4 + 1 + 1 + 1 + 1 + 4 + 1;
 
-    public UwbPhoneConfigData() {
+    // Upper bound of the TLV form
+    private static final int TLV_CAPACITY = 64;
 
-    }
+    private final short specVerMajor;
+    private final short specVerMinor;
+    private final int sessionId;
+    private final byte preambleId;
+    private final byte channel;
+    private final byte profileId;
+    private final byte deviceRangingRole;
+    private final byte[] phoneMacAddress;
+    private final int rangingIntervalMs;
+    private final int hashCode;
 
     public UwbPhoneConfigData(short specVerMajor, short specVerMinor, int sessionId, byte preambleId, byte channel, byte profileId, byte deviceRangingRole, byte[] phoneMacAddress) {
+        this(specVerMajor, specVerMinor, sessionId, preambleId, channel, profileId, deviceRangingRole, phoneMacAddress, 0);
+    }
+
+    /**
+     * @param rangingIntervalMs Expected interval between ranging rounds, 0 if unknown
+     */
+    public UwbPhoneConfigData(short specVerMajor, short specVerMinor, int sessionId, byte preambleId, byte channel, byte profileId, byte deviceRangingRole, byte[] phoneMacAddress,
+                              int rangingIntervalMs) {
+        if (phoneMacAddress == null) {
+            throw new IllegalArgumentException("Invalid UWB phone configuration");
+        }
+
         this.specVerMajor = specVerMajor;
         this.specVerMinor = specVerMinor;
         this.sessionId = sessionId;
@@ -42,71 +76,53 @@ public class UwbPhoneConfigData implements Serializable {
         this.channel = channel;
         this.profileId = profileId;
         this.deviceRangingRole = deviceRangingRole;
-        this.phoneMacAddress = phoneMacAddress;
+        this.phoneMacAddress = phoneMacAddress.clone();
+        this.rangingIntervalMs = rangingIntervalMs;
+
+        int hash = 31 * specVerMajor + specVerMinor;
+        hash = 31 * hash + sessionId;
+        hash = 31 * hash + preambleId;
+        hash = 31 * hash + channel;
+        hash = 31 * hash + profileId;
+        hash = 31 * hash + deviceRangingRole;
+        hash = 31 * hash + rangingIntervalMs;
+        hashCode = 31 * hash + Arrays.hashCode(this.phoneMacAddress);
     }
 
     public short getSpecVerMajor() {
         return specVerMajor;
     }
 
-    public void setSpecVerMajor(short specVerMajor) {
-        this.specVerMajor = specVerMajor;
-    }
-
     public short getSpecVerMinor() {
         return specVerMinor;
     }
 
-    public void setSpecVerMinor(short specVerMinor) {
-        this.specVerMinor = specVerMinor;
-    }
-
     public int getSessionId() {
         return sessionId;
     }
 
-    public void setSessionId(int sessionId) {
-        this.sessionId = sessionId;
-    }
-
     public byte getPreambleId() {
         return preambleId;
     }
 
-    public void setPreambleId(byte preambleId) {
-        this.preambleId = preambleId;
-    }
-
     public byte getChannel() {
         return channel;
     }
 
-    public void setChannel(byte channel) {
-        this.channel = channel;
-    }
-
     public byte getProfileId() {
         return profileId;
     }
 
-    public void setProfileId(byte profileId) {
-        this.profileId = profileId;
-    }
-
     public byte getDeviceRangingRole() {
         return deviceRangingRole;
     }
 
-    public void setDeviceRangingRole(byte deviceRangingRole) {
-        this.deviceRangingRole = deviceRangingRole;
-    }
-
     public byte[] getPhoneMacAddress() {
-        return phoneMacAddress;
+        return phoneMacAddress.clone();
     }
 
-    public void setPhoneMacAddress(byte[] phoneMacAddress) {
-        this.phoneMacAddress = phoneMacAddress;
+    public int getRangingIntervalMs() {
+        return rangingIntervalMs;
     }
 
     public byte[] toByteArray() {
@@ -124,16 +140,160 @@ public class UwbPhoneConfigData implements Serializable {
     }
 
     public static UwbPhoneConfigData fromByteArray(byte[] data) {
-        UwbPhoneConfigData uwbPhoneConfigData = new UwbPhoneConfigData();
-        uwbPhoneConfigData.setSpecVerMajor(Utils.byteArrayToShort(Utils.extract(data, 2, 0)));
-        uwbPhoneConfigData.setSpecVerMinor(Utils.byteArrayToShort(Utils.extract(data, 2, 2)));
-        uwbPhoneConfigData.setSessionId(Utils.byteArrayToShort(Utils.extract(data, 4, 4)));
-        uwbPhoneConfigData.setPreambleId(Utils.byteArrayToByte(Utils.extract(data, 1, 8)));
-        uwbPhoneConfigData.setChannel(Utils.byteArrayToByte(Utils.extract(data, 1, 9)));
-        uwbPhoneConfigData.setProfileId(Utils.byteArrayToByte(Utils.extract(data, 1, 10)));
-        uwbPhoneConfigData.setDeviceRangingRole(Utils.byteArrayToByte(Utils.extract(data, 1, 11)));
-        uwbPhoneConfigData.setPhoneMacAddress(Utils.extract(data, 2, 12));
-
-        return uwbPhoneConfigData;
+        return new UwbPhoneConfigData(
+                Utils.byteArrayToShort(Utils.extract(data, 2, 0)),
+                Utils.byteArrayToShort(Utils.extract(data, 2, 2)),
+                Utils.byteArrayToInt(Utils.extract(data, 4, 4)),
+                Utils.byteArrayToByte(Utils.extract(data, 1, 8)),
+                Utils.byteArrayToByte(Utils.extract(data, 1, 9)),
+                Utils.byteArrayToByte(Utils.extract(data, 1, 10)),
+                Utils.byteArrayToByte(Utils.extract(data, 1, 11)),
+                Utils.extract(data, 2, 12));
+    }
+
+    /**
+     * @return the versioned compact form, for storage
+     */
+    public byte[] toCompactByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(COMPACT_FIXED_LENGTH + phoneMacAddress.length);
+        buffer.put(COMPACT_VERSION);
+        buffer.putShort(specVerMajor);
+        buffer.putShort(specVerMinor);
+        buffer.putInt(sessionId);
+        buffer.put(preambleId);
+        buffer.put(channel);
+        buffer.put(profileId);
+        buffer.put(deviceRangingRole);
+        buffer.putInt(rangingIntervalMs);
+        buffer.put((byte) phoneMacAddress.length);
+        buffer.put(phoneMacAddress);
+
+        return buffer.array();
+    }
+
+    /**
+     * Parses the compact form written by toCompactByteArray()
+     *
+     * @param data Compact form
+     * @return the configuration
+     * @throws IllegalArgumentException if the version is unknown or the data is truncated
+     */
+    public static UwbPhoneConfigData fromCompactByteArray(byte[] data) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            byte version = buffer.get();
+            if (version < 1 || version > COMPACT_VERSION) {
+                throw new IllegalArgumentException("Unknown UWB phone configuration version");
+            }
+
+            short specVerMajor = buffer.getShort();
+            short specVerMinor = buffer.getShort();
+            int sessionId = buffer.getInt();
+            byte preambleId = buffer.get();
+            byte channel = buffer.get();
+            byte profileId = buffer.get();
+            byte deviceRangingRole = buffer.get();
+            int rangingIntervalMs = version >= 2 ? buffer.getInt() : 0;
+            byte[] phoneMacAddress = new byte[buffer.get() & 0xFF];
+            buffer.get(phoneMacAddress);
+            if (buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Trailing bytes in UWB phone configuration");
+            }
+
+            return new UwbPhoneConfigData(specVerMajor, specVerMinor, sessionId, preambleId, channel, profileId,
+                    deviceRangingRole, phoneMacAddress, rangingIntervalMs);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated UWB phone configuration");
+        }
+    }
+
+    /**
+     * @return the payload of a uwbPhoneSessionConfiguration message, starting with the TLV version
+     */
+    public byte[] toTlv() {
+        OobTlv.Writer writer = new OobTlv.Writer(TLV_CAPACITY)
+                .putInt(OobTlv.TAG_SPEC_VERSION, (specVerMajor << 16) | (specVerMinor & 0xFFFF))
+                .putInt(OobTlv.TAG_SESSION_ID, sessionId)
+                .putByte(OobTlv.TAG_CHANNEL, channel)
+                .putByte(OobTlv.TAG_PREAMBLE_ID, preambleId)
+                .putByte(OobTlv.TAG_PROFILE_ID, profileId)
+                .putByte(OobTlv.TAG_DEVICE_RANGING_ROLE, deviceRangingRole)
+                .putBytes(OobTlv.TAG_MAC_ADDRESS, phoneMacAddress);
+        if (rangingIntervalMs > 0) {
+            writer.putShort(OobTlv.TAG_RANGING_INTERVAL_MS, (short) Math.min(rangingIntervalMs, 0xFFFF));
+        }
+
+        return writer.toByteArray();
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof UwbPhoneConfigData)) {
+            return false;
+        }
+
+        UwbPhoneConfigData other = (UwbPhoneConfigData) o;
+        return hashCode == other.hashCode
+                && specVerMajor == other.specVerMajor
+                && specVerMinor == other.specVerMinor
+                && sessionId == other.sessionId
+                && preambleId == other.preambleId
+                && channel == other.channel
+                && profileId == other.profileId
+                && deviceRangingRole == other.deviceRangingRole
+                && rangingIntervalMs == other.rangingIntervalMs
+                && Arrays.equals(phoneMacAddress, other.phoneMacAddress);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return "specVer: " + Integer.toHexString(specVerMajor & 0xFFFF) + "." + Integer.toHexString(specVerMinor & 0xFFFF)
+                + " sessionId: " + sessionId
+                + " channel: " + channel
+                + " preambleId: " + preambleId
+                + " profileId: " + profileId
+                + " deviceRangingRole: " + deviceRangingRole
+                + " rangingIntervalMs: " + rangingIntervalMs
+                + " mac: " + Utils.byteArrayToHexString(phoneMacAddress);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(specVerMajor);
+        dest.writeInt(specVerMinor);
+        dest.writeInt(sessionId);
+        dest.writeByte(preambleId);
+        dest.writeByte(channel);
+        dest.writeByte(profileId);
+        dest.writeByte(deviceRangingRole);
+        dest.writeByteArray(phoneMacAddress);
+        dest.writeInt(rangingIntervalMs);
+    }
+
+    public static final Creator<UwbPhoneConfigData> CREATOR = new Creator<UwbPhoneConfigData>() {
+        @Override
+        public UwbPhoneConfigData createFromParcel(Parcel source) {
+            return new UwbPhoneConfigData((short) source.readInt(), (short) source.readInt(), source.readInt(),
+                    source.readByte(), source.readByte(), source.readByte(), source.readByte(),
+                    source.createByteArray(), source.readInt());
+        }
+
+        @Override
+        public UwbPhoneConfigData[] newArray(int size) {
+            return new UwbPhoneConfigData[size];
+        }
+    };
 }
@@ -34,15 +34,22 @@ import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Message;
 import android.os.ParcelUuid;
 import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
 
+import com.jetpackexample.BuildConfig;
+import com.jetpackexample.utils.StartupMetrics;
 import com.jetpackexample.utils.Utils;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.UUID;
 
@@ -56,17 +63,38 @@ public class BluetoothManagerImpl {
     protected static UUID txCharacteristicUUID = UUID.fromString("6E400003-B5A3-F393-E0A9-E50E24DCCA9E");
     protected static UUID descriptorUUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
-    private Context context;
+    // Android controllers handle up to 7 simultaneous LE links, fewer once UWB and audio share the radio
+    public static final int MAX_CONNECTIONS_LIMIT = 7;
+    private static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    // Event loop messages
+    private static final int MSG_SCAN_RESULT = 1;
+    private static final int MSG_CONNECT = 2;
+    private static final int MSG_CONNECTION_STATE_CHANGED = 3;
+    private static final int MSG_SERVICES_DISCOVERED = 4;
+    private static final int MSG_DESCRIPTOR_WRITTEN = 5;
+    private static final int MSG_MTU_CHANGED = 6;
+    private static final int MSG_DATA_RECEIVED = 7;
+    private static final int MSG_TRANSMIT = 8;
+    private static final int MSG_CHARACTERISTIC_WRITTEN = 9;
+    private static final int MSG_CLOSE = 10;
+    private static final int MSG_CLOSE_ALL = 11;
+
+    // Application context, the instance outlives the components using it
+    private final Context context;
     private BluetoothManager bluetoothManager = null;
     private BluetoothAdapter bluetoothAdapter = null;
     private BluetoothLeScanner bluetoothLeScanner = null;
-    private BluetoothScanListener bluetoothScanListener = null;
-    private BluetoothConnectionListener bluetoothConnectionListener = null;
-    private BluetoothDataReceivedListener bluetoothDataReceivedListener = null;
+    // Set while scanning only, connection listeners are held by their connection until it is closed
+    private volatile BluetoothScanListener bluetoothScanListener = null;
 
-    private BluetoothGatt bluetoothGatt;
-    private BluetoothGattCharacteristic txCharacteristic;
-    private BluetoothGattCharacteristic rxCharacteristic;
+    // Connection pool keyed by address, in least recently used order.
+    // Entries are added by connect() to reserve their slot, the GATT state is only modified on the event loop.
+    private final LinkedHashMap<String, Connection> connections = new LinkedHashMap<>(8, 0.75f, true);
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    private final HandlerThread eventThread;
+    private final Handler eventHandler;
 
     private static BluetoothManagerImpl mInstance = null;
 
@@ -77,26 +105,67 @@ public class BluetoothManagerImpl {
     public interface BluetoothConnectionListener {
         void onConnect(String remoteDeviceName);
 
-        void onDisconnect();
+        /**
+         * @param address Bluetooth MAC address of the connection that was closed, listeners may be
+         *                registered for several connections
+         */
+        void onDisconnect(String address);
     }
 
     public interface BluetoothDataReceivedListener {
         void onDataReceived(byte[] data);
     }
 
+    /**
+     * State of one accessory connection
+     */
+    private static class Connection {
+        final BluetoothDevice device;
+        final BluetoothConnectionListener connectionListener;
+        final BluetoothDataReceivedListener dataReceivedListener;
+
+        volatile BluetoothGatt gatt;
+        BluetoothGattCharacteristic txCharacteristic;
+        BluetoothGattCharacteristic rxCharacteristic;
+        boolean ready = false;
+        // Never evicted to make room for another connection, guarded by the connections lock
+        boolean pinned = false;
+
+        // GATT allows a single outstanding write, the others wait here.
+        // Both queues are filled from other threads and drained on the event loop.
+        final ArrayDeque<byte[]> writeQueue = new ArrayDeque<>();
+        final ArrayDeque<byte[]> receiveQueue = new ArrayDeque<>();
+        boolean writeInFlight = false;
+
+        Connection(BluetoothDevice device, BluetoothConnectionListener connectionListener, BluetoothDataReceivedListener dataReceivedListener) {
+            this.device = device;
+            this.connectionListener = connectionListener;
+            this.dataReceivedListener = dataReceivedListener;
+        }
+
+        boolean isIdle() {
+            synchronized (writeQueue) {
+                return ready && !writeInFlight && writeQueue.isEmpty();
+            }
+        }
+    }
+
     /**
      * This class is the entry point for Bluetooth LE Communication.
      *
-     * @param context Application context
+     * @param context Any context, only its application context is kept
      */
     private BluetoothManagerImpl(final Context context) {
-        this.context = context;
+        this.context = context.getApplicationContext();
 
-        this.bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        this.bluetoothManager = (BluetoothManager) this.context.getSystemService(Context.BLUETOOTH_SERVICE);
         this.bluetoothAdapter = bluetoothManager.getAdapter();
         this.bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
-        this.bluetoothConnectionListener = (BluetoothConnectionListener) context;
-        this.bluetoothDataReceivedListener = (BluetoothDataReceivedListener) context;
+
+        // All Bluetooth callbacks are funneled into this loop as pooled messages
+        this.eventThread = new HandlerThread(TAG);
+        this.eventThread.start();
+        this.eventHandler = new Handler(eventThread.getLooper(), this::handleMessage);
     }
 
     public static synchronized BluetoothManagerImpl getInstance(final Context context) {
@@ -119,12 +188,64 @@ public class BluetoothManagerImpl {
         return bluetoothAdapter != null && bluetoothAdapter.isDiscovering();
     }
 
+    /**
+     * @return true if any accessory is connected or being connected
+     */
     public boolean isConnected() {
-        return bluetoothGatt != null && bluetoothGatt.getDevice() != null;
+        synchronized (connections) {
+            return !connections.isEmpty();
+        }
     }
 
-    public BluetoothDevice getRemoteDevice() {
-        return bluetoothGatt.getDevice();
+    /**
+     * @param address Bluetooth device MAC address
+     * @return true if this accessory is connected or being connected
+     */
+    public boolean isConnected(String address) {
+        synchronized (connections) {
+            return connections.containsKey(address);
+        }
+    }
+
+    /**
+     * @return the addresses of the connected accessories, least recently used first
+     */
+    public List<String> getConnectedAddresses() {
+        synchronized (connections) {
+            return new ArrayList<>(connections.keySet());
+        }
+    }
+
+    public int getMaxConnections() {
+        synchronized (connections) {
+            return maxConnections;
+        }
+    }
+
+    /**
+     * Sets how many accessories may be connected at the same time. Connections above the new limit
+     * are not closed, but no new connection is accepted until the pool is back below it.
+     *
+     * @param maxConnections Maximum concurrent connections, between 1 and MAX_CONNECTIONS_LIMIT
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1 || maxConnections > MAX_CONNECTIONS_LIMIT) {
+            throw new IllegalArgumentException("Invalid maximum connection count " + maxConnections);
+        }
+
+        synchronized (connections) {
+            this.maxConnections = maxConnections;
+        }
+    }
+
+    /**
+     * Listener callbacks are called on this looper, which owns the connection state.
+     * Callers may use it to process the callbacks without another thread hop.
+     *
+     * @return the Bluetooth event loop looper
+     */
+    public Looper getEventLooper() {
+        return eventThread.getLooper();
     }
 
     /**
@@ -148,6 +269,7 @@ public class BluetoothManagerImpl {
             if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) == PackageManager.PERMISSION_GRANTED) {
                 Log.d(TAG, "Bluetooth SCAN successfully started");
                 bluetoothLeScanner.startScan(filters, settings.build(), scanCallback);
+                StartupMetrics.onScanStarted();
             } else {
                 Log.d(TAG, "Missing required permission to scan for BLE devices");
             }
@@ -155,10 +277,11 @@ public class BluetoothManagerImpl {
     }
 
     /**
-     * Stop scanning for BLE devices
+     * Stop scanning for BLE devices, the scan listener is released
      */
     public void stopLeDeviceScan() {
         Log.d(TAG, "Bluetooth stopping LE Scanning");
+        bluetoothScanListener = null;
 
         if (bluetoothLeScanner != null) {
             if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_SCAN) == PackageManager.PERMISSION_GRANTED) {
@@ -175,88 +298,26 @@ public class BluetoothManagerImpl {
         public void onScanResult(int callbackType, ScanResult result) {
             Log.d(TAG, "New device discovered");
             if (ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED) {
-                onScan(result.getDevice());
+                eventHandler.obtainMessage(MSG_SCAN_RESULT, result.getDevice()).sendToTarget();
             }
         }
     };
 
+    // Gatt callbacks come on a binder thread, forward them to the event loop
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
 
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
 
             Log.d(TAG, "BluetoothGattCallback onConnectionStateChange. Status: " + status + " State: " + newState);
-
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (newState == BluetoothProfile.STATE_CONNECTED) {
-
-                    // Look for target Service
-                    bluetoothGatt.discoverServices();
-
-                } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                    onDisconnect();
-
-                    if (bluetoothGatt != null) {
-                        bluetoothGatt.close();
-                        bluetoothGatt = null;
-                    }
-                }
-            } else {
-                //If wearable devices showdown or removed from plug
-                onDisconnect();
-
-                if (bluetoothGatt != null) {
-                    bluetoothGatt.close();
-                    bluetoothGatt = null;
-                }
-            }
+            eventHandler.obtainMessage(MSG_CONNECTION_STATE_CHANGED, status, newState, gatt).sendToTarget();
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
 
             Log.d(TAG, "BluetoothGattCallback onServicesDiscovered status: " + status);
-
-            BluetoothGattService service = gatt.getService(serviceUUID);
-            if (service == null) {
-                Log.d(TAG, "Service not found");
-                return;
-            }
-
-            List<BluetoothGattCharacteristic> bluetoothGattCharacteristics = service.getCharacteristics();
-            for (int j = 0; j < bluetoothGattCharacteristics.size(); j++) {
-                BluetoothGattCharacteristic bluetoothGattCharacteristic = bluetoothGattCharacteristics.get(j);
-                if (bluetoothGattCharacteristic.getUuid().equals(rxCharacteristicUUID)) {
-                    Log.i(TAG, "Write characteristic found, UUID is: " + bluetoothGattCharacteristic.getUuid().toString());
-                    rxCharacteristic = bluetoothGattCharacteristic;
-                } else if (bluetoothGattCharacteristic.getUuid().equals(txCharacteristicUUID)) {
-                    Log.i(TAG, "Notify characteristic found, UUID is " + bluetoothGattCharacteristic.getUuid().toString());
-                    txCharacteristic = bluetoothGattCharacteristic;
-                }
-            }
-
-            if (!gatt.setCharacteristicNotification(txCharacteristic, true)) {
-                Log.d(TAG, "Failed setCharacteristicNotification txCharacteristic");
-            }
-
-            if (!gatt.setCharacteristicNotification(rxCharacteristic, true)) {
-                Log.d(TAG, "Failed setCharacteristicNotification rxCharacteristic");
-            }
-
-            try {
-                BluetoothGattDescriptor descriptor = txCharacteristic.getDescriptor(descriptorUUID);
-                if (descriptor != null) {
-                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                    bluetoothGatt.writeDescriptor(descriptor);
-                    Log.d(TAG, "descriptor written");
-                } else {
-                    Log.d(TAG, "descriptor is null");
-                }
-            } catch (NullPointerException e) {
-                Log.d(TAG, "NullPointerException!" + e);
-            } catch (IllegalArgumentException e) {
-                Log.d(TAG, "IllegalArgumentException!" + e);
-            }
+            eventHandler.obtainMessage(MSG_SERVICES_DISCOVERED, status, 0, gatt).sendToTarget();
         }
 
         @Override
@@ -269,24 +330,27 @@ public class BluetoothManagerImpl {
             }
 
             final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                Log.d(TAG, "Bluetooth LE Data received: " + Utils.byteArrayToHexString(data));
-                bluetoothDataReceivedListener.onDataReceived(data);
+            Connection connection = connectionOf(gatt);
+            if (connection != null && data != null && data.length > 0) {
+                synchronized (connection.receiveQueue) {
+                    connection.receiveQueue.add(data);
+                }
+
+                eventHandler.obtainMessage(MSG_DATA_RECEIVED, connection).sendToTarget();
             }
         }
 
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             Log.d(TAG, "onDescriptorWrite status: " + status);
-
-            // Request MTU update
-            gatt.requestMtu(84);
+            eventHandler.obtainMessage(MSG_DESCRIPTOR_WRITTEN, status, 0, gatt).sendToTarget();
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
 
             Log.d(TAG, "onCharacteristicWrite status: " + status);
+            eventHandler.obtainMessage(MSG_CHARACTERISTIC_WRITTEN, status, 0, gatt).sendToTarget();
         }
 
         @Override
@@ -306,19 +370,255 @@ public class BluetoothManagerImpl {
                                  int mtu,
                                  int status) {
             Log.d(TAG, "onMtuChanged status: " + status + " mtu: " + mtu);
-
-            // We are done establishing the connection
-            onConnect(gatt.getDevice().getName());
+            eventHandler.obtainMessage(MSG_MTU_CHANGED, mtu, status, gatt).sendToTarget();
         }
     };
 
+    private boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MSG_SCAN_RESULT:
+                BluetoothScanListener bluetoothScanListener = this.bluetoothScanListener;
+                if (bluetoothScanListener != null) {
+                    bluetoothScanListener.onDeviceScanned((BluetoothDevice) msg.obj);
+                }
+                break;
+
+            case MSG_CONNECT:
+                handleConnect((Connection) msg.obj);
+                break;
+
+            case MSG_CONNECTION_STATE_CHANGED:
+                handleConnectionStateChange((BluetoothGatt) msg.obj, msg.arg1, msg.arg2);
+                break;
+
+            case MSG_SERVICES_DISCOVERED:
+                handleServicesDiscovered((BluetoothGatt) msg.obj);
+                break;
+
+            case MSG_DESCRIPTOR_WRITTEN:
+                if (connectionOf((BluetoothGatt) msg.obj) != null) {
+                    // Request MTU update
+                    ((BluetoothGatt) msg.obj).requestMtu(84);
+                }
+                break;
+
+            case MSG_MTU_CHANGED:
+                handleMtuChanged((BluetoothGatt) msg.obj);
+                break;
+
+            case MSG_DATA_RECEIVED:
+                handleDataReceived((Connection) msg.obj);
+                break;
+
+            case MSG_TRANSMIT:
+                writeNext((Connection) msg.obj);
+                break;
+
+            case MSG_CHARACTERISTIC_WRITTEN:
+                handleCharacteristicWritten((BluetoothGatt) msg.obj);
+                break;
+
+            case MSG_CLOSE:
+                handleClose((Connection) msg.obj, msg.arg1 != 0);
+                break;
+
+            case MSG_CLOSE_ALL:
+                handleCloseAll();
+                break;
+
+            default:
+                return false;
+        }
+
+        return true;
+    }
+
+    // Also marks the connection as recently used
+    private Connection connectionOf(BluetoothGatt gatt) {
+        Connection connection;
+        synchronized (connections) {
+            connection = connections.get(gatt.getDevice().getAddress());
+        }
+
+        if (connection == null || connection.gatt != gatt) {
+            // Late event of a connection we already closed
+            return null;
+        }
+
+        return connection;
+    }
+
+    private void handleConnect(Connection connection) {
+        synchronized (connections) {
+            if (connections.get(connection.device.getAddress()) != connection) {
+                // Closed before we got to it
+                return;
+            }
+        }
+
+        connection.gatt = connection.device.connectGatt(context, false, mGattCallback, BluetoothDevice.TRANSPORT_LE);
+    }
+
+    private void handleConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        Connection connection = connectionOf(gatt);
+        if (connection == null) {
+            gatt.close();
+            return;
+        }
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+
+                // Look for target Service
+                gatt.discoverServices();
+
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                handleClose(connection, true);
+            }
+        } else {
+            //If wearable devices showdown or removed from plug
+            handleClose(connection, true);
+        }
+    }
+
+    private void handleServicesDiscovered(BluetoothGatt gatt) {
+        Connection connection = connectionOf(gatt);
+        if (connection == null) {
+            return;
+        }
+
+        BluetoothGattService service = gatt.getService(serviceUUID);
+        if (service == null) {
+            Log.d(TAG, "Service not found");
+            return;
+        }
+
+        List<BluetoothGattCharacteristic> bluetoothGattCharacteristics = service.getCharacteristics();
+        for (int j = 0; j < bluetoothGattCharacteristics.size(); j++) {
+            BluetoothGattCharacteristic bluetoothGattCharacteristic = bluetoothGattCharacteristics.get(j);
+            if (bluetoothGattCharacteristic.getUuid().equals(rxCharacteristicUUID)) {
+                Log.i(TAG, "Write characteristic found, UUID is: " + bluetoothGattCharacteristic.getUuid().toString());
+                connection.rxCharacteristic = bluetoothGattCharacteristic;
+            } else if (bluetoothGattCharacteristic.getUuid().equals(txCharacteristicUUID)) {
+                Log.i(TAG, "Notify characteristic found, UUID is " + bluetoothGattCharacteristic.getUuid().toString());
+                connection.txCharacteristic = bluetoothGattCharacteristic;
+            }
+        }
+
+        if (!gatt.setCharacteristicNotification(connection.txCharacteristic, true)) {
+            Log.d(TAG, "Failed setCharacteristicNotification txCharacteristic");
+        }
+
+        if (!gatt.setCharacteristicNotification(connection.rxCharacteristic, true)) {
+            Log.d(TAG, "Failed setCharacteristicNotification rxCharacteristic");
+        }
+
+        try {
+            BluetoothGattDescriptor descriptor = connection.txCharacteristic.getDescriptor(descriptorUUID);
+            if (descriptor != null) {
+                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                gatt.writeDescriptor(descriptor);
+                Log.d(TAG, "descriptor written");
+            } else {
+                Log.d(TAG, "descriptor is null");
+            }
+        } catch (NullPointerException e) {
+            Log.d(TAG, "NullPointerException!" + e);
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "IllegalArgumentException!" + e);
+        }
+    }
+
+    private void handleMtuChanged(BluetoothGatt gatt) {
+        Connection connection = connectionOf(gatt);
+        if (connection == null || connection.ready) {
+            return;
+        }
+
+        // We are done establishing the connection
+        synchronized (connection.writeQueue) {
+            connection.ready = true;
+        }
+
+        connection.connectionListener.onConnect(gatt.getDevice().getName());
+
+        // Writes queued during the handshake
+        writeNext(connection);
+    }
+
+    private void handleDataReceived(Connection connection) {
+        byte[] data;
+        synchronized (connection.receiveQueue) {
+            data = connection.receiveQueue.poll();
+        }
+
+        if (data == null || connection.gatt == null) {
+            // Closed meanwhile
+            return;
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Bluetooth LE Data received from " + connection.device.getAddress() + ": " + Utils.byteArrayToHexString(data));
+        }
+        connection.dataReceivedListener.onDataReceived(data);
+    }
+
+    private void handleCharacteristicWritten(BluetoothGatt gatt) {
+        Connection connection = connectionOf(gatt);
+        if (connection == null) {
+            return;
+        }
+
+        synchronized (connection.writeQueue) {
+            connection.writeInFlight = false;
+        }
+
+        writeNext(connection);
+    }
+
+    private void writeNext(Connection connection) {
+        byte[] data;
+        synchronized (connection.writeQueue) {
+            if (!connection.ready || connection.writeInFlight || connection.rxCharacteristic == null) {
+                return;
+            }
+
+            data = connection.writeQueue.poll();
+            if (data == null) {
+                return;
+            }
+
+            // Keeps the connection from being evicted until the write completes
+            connection.writeInFlight = true;
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Bluetooth LE Data to transmit to " + connection.device.getAddress() + ": " + Utils.byteArrayToHexString(data));
+        }
+
+        connection.rxCharacteristic.setValue(data);
+        connection.rxCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        if (!connection.gatt.writeCharacteristic(connection.rxCharacteristic)) {
+            Log.d(TAG, "Failed to write characteristic, dropping data");
+            synchronized (connection.writeQueue) {
+                connection.writeInFlight = false;
+            }
+
+            writeNext(connection);
+        }
+    }
+
     /**
-     * Connects to a Bluetooth device given by its Bluetooth MAC Address
+     * Connects to a Bluetooth device given by its Bluetooth MAC Address.
+     * When the pool is full the least recently used idle connection is closed to make room.
+     * The listeners are held until the connection is closed.
      *
-     * @param address Bluetooth device MAC address
-     * @return true if connection was launched, else false
+     * @param address              Bluetooth device MAC address
+     * @param connectionListener   Listener of this connection
+     * @param dataReceivedListener Listener of the data received on this connection
+     * @return true if connection was launched, false if the device is unknown or no connection slot is available
      */
-    public boolean connect(final String address) {
+    public boolean connect(final String address, BluetoothConnectionListener connectionListener, BluetoothDataReceivedListener dataReceivedListener) {
 
         if (bluetoothAdapter == null || address == null) {
             Log.d(TAG, "BluetoothAdapter not initialized or unspecified address.");
@@ -329,82 +629,139 @@ public class BluetoothManagerImpl {
         if (device == null) {
             Log.d(TAG, "Device not found. Unable to connect.");
             return false;
-        } else {
-            bluetoothGatt = device.connectGatt(context, false, mGattCallback);
-            // bluetoothGatt.requestMtu(84);
-            return true;
         }
-    }
 
-    public void transmit(byte[] data) {
+        Connection connection = new Connection(device, connectionListener, dataReceivedListener);
+        synchronized (connections) {
+            if (connections.containsKey(address)) {
+                Log.d(TAG, "Already connected to " + address);
+                return false;
+            }
 
-        if (bluetoothGatt == null || rxCharacteristic == null) {
-            return;
-        }
+            if (connections.size() >= maxConnections && !evictIdleConnection()) {
+                Log.d(TAG, "No connection slot available for " + address);
+                return false;
+            }
 
-        Log.d(TAG, "Bluetooth LE Data to transmit: " + Utils.byteArrayToHexString(data));
+            // Reserve the slot now, so that parallel connects cannot exceed the limit
+            connections.put(address, connection);
+        }
 
-        rxCharacteristic.setValue(data);
-        txCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-        bluetoothGatt.writeCharacteristic(rxCharacteristic);
+        eventHandler.obtainMessage(MSG_CONNECT, connection).sendToTarget();
+        return true;
     }
 
     /**
-     * Closes bluetooth managed
+     * Keeps a connection out of the idle eviction, e.g. the one carrying the current UWB session,
+     * whose link is mostly idle while ranging. The pin is dropped when the connection is closed.
+     *
+     * @param address Bluetooth device MAC address
+     * @param pinned  true to never evict the connection
      */
-    public void close() {
+    public void setPinned(String address, boolean pinned) {
+        synchronized (connections) {
+            Connection connection = connections.get(address);
+            if (connection != null) {
+                connection.pinned = pinned;
+            }
+        }
+    }
 
-        if (bluetoothGatt != null) {
-            bluetoothGatt.close();
+    // Called with the connections lock held
+    private boolean evictIdleConnection() {
+        Iterator<Connection> iterator = connections.values().iterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if (!connection.pinned && connection.isIdle()) {
+                Log.d(TAG, "Closing idle connection to " + connection.device.getAddress());
+                iterator.remove();
+                eventHandler.obtainMessage(MSG_CLOSE, 1, 0, connection).sendToTarget();
+                return true;
+            }
         }
 
-        bluetoothGatt = null;
+        return false;
     }
 
     /**
-     * Calls onScan method on SEScanListener object
-     * Call is done on the Main UI Thread to get out of the Bluetooth Binder thread
+     * Sends data to a connected device. Writes are queued per connection, so they are never
+     * dropped because a previous write is still in flight.
      *
-     * @param device Bluetooth device
+     * @param address Bluetooth device MAC address
+     * @param data    Data to transmit
      */
-    private void onScan(final BluetoothDevice device) {
-        // Send callback to app on the UI Thread
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
-            @Override
-            public void run() {
-                // Send callback to app on the UI Thread
-                bluetoothScanListener.onDeviceScanned(device);
-            }
-        });
+    public void transmit(String address, byte[] data) {
+        Connection connection;
+        synchronized (connections) {
+            connection = connections.get(address);
+        }
+
+        if (connection == null) {
+            Log.d(TAG, "Not connected to " + address + ", dropping data");
+            return;
+        }
+
+        synchronized (connection.writeQueue) {
+            connection.writeQueue.add(data);
+        }
+
+        eventHandler.obtainMessage(MSG_TRANSMIT, connection).sendToTarget();
     }
 
     /**
-     * Calls onConnect method on SEConnectionListener object
-     * Call is done on the Main UI Thread to get out of the Bluetooth Binder thread
+     * Closes the connection to a device, its listener is not called
+     *
+     * @param address Bluetooth device MAC address
      */
-    private void onConnect(final String name) {
-        // Send callback to app on the UI Thread
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
-            @Override
-            public void run() {
-                // Send callback to app on the UI Thread
-                bluetoothConnectionListener.onConnect(name);
-            }
-        });
+    public void close(String address) {
+        Connection connection;
+        synchronized (connections) {
+            connection = connections.remove(address);
+        }
+
+        if (connection != null) {
+            eventHandler.obtainMessage(MSG_CLOSE, 0, 0, connection).sendToTarget();
+        }
     }
 
     /**
-     * Calls onDisconnect method on SEConnectionListener object
-     * Call is done on the Main UI Thread to get out of the Bluetooth Binder thread
+     * Closes all the connections without calling their listeners, which are then released
      */
-    private void onDisconnect() {
-        // Send callback to app on the UI Thread
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
-            @Override
-            public void run() {
-                // Send callback to app on the UI Thread
-                bluetoothConnectionListener.onDisconnect();
+    public void close() {
+        eventHandler.sendEmptyMessage(MSG_CLOSE_ALL);
+    }
+
+    private void handleClose(Connection connection, boolean notifyListener) {
+        synchronized (connections) {
+            if (connections.get(connection.device.getAddress()) == connection) {
+                connections.remove(connection.device.getAddress());
             }
-        });
+        }
+
+        if (connection.gatt != null) {
+            connection.gatt.close();
+            connection.gatt = null;
+        }
+
+        synchronized (connection.writeQueue) {
+            connection.ready = false;
+            connection.writeQueue.clear();
+        }
+
+        if (notifyListener) {
+            connection.connectionListener.onDisconnect(connection.device.getAddress());
+        }
+    }
+
+    private void handleCloseAll() {
+        List<Connection> closing;
+        synchronized (connections) {
+            closing = new ArrayList<>(connections.values());
+            connections.clear();
+        }
+
+        for (Connection connection : closing) {
+            handleClose(connection, false);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.managers;
+
+import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.location.LocationManager;
+import android.util.Log;
+
+/**
+ * Caches whether the demo can run on this device: permissions granted, technologies supported and
+ * enabled. The result is computed on first use and kept until a Bluetooth or location state change
+ * broadcast, or an explicit invalidate() after a permission request.
+ * <p>
+ * Runtime permissions can only be revoked from the system settings, which kills the process, so
+ * they do not need a broadcast.
+ */
+public class CapabilityCacheImpl {
+
+    private static final String TAG = CapabilityCacheImpl.class.getName();
+
+    public static final String[] REQUIRED_PERMISSIONS = new String[]{
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+            Manifest.permission.BLUETOOTH_SCAN,
+            Manifest.permission.BLUETOOTH_CONNECT,
+            Manifest.permission.ACCESS_COARSE_LOCATION,
+            Manifest.permission.ACCESS_FINE_LOCATION,
+            Manifest.permission.UWB_RANGING,
+    };
+
+    public enum Capability {
+        ready,
+        missingPermissions,
+        unsupported,
+        bluetoothDisabled,
+        locationDisabled
+    }
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final LocationManager locationManager;
+    private final boolean uwbSupported;
+
+    private volatile Capability capability = null;
+
+    private static CapabilityCacheImpl mInstance = null;
+
+    private final BroadcastReceiver stateChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(TAG, "Invalidating capabilities on " + intent.getAction());
+            invalidate();
+        }
+    };
+
+    private CapabilityCacheImpl(final Context context) {
+        this.context = context.getApplicationContext();
+
+        BluetoothManager bluetoothManager = (BluetoothManager) this.context.getSystemService(Context.BLUETOOTH_SERVICE);
+        this.bluetoothAdapter = bluetoothManager != null ? bluetoothManager.getAdapter() : null;
+        this.locationManager = (LocationManager) this.context.getSystemService(Context.LOCATION_SERVICE);
+        this.uwbSupported = this.context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_UWB);
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        filter.addAction(LocationManager.MODE_CHANGED_ACTION);
+        filter.addAction(LocationManager.PROVIDERS_CHANGED_ACTION);
+        this.context.registerReceiver(stateChangedReceiver, filter);
+    }
+
+    public static synchronized CapabilityCacheImpl getInstance(final Context context) {
+        if (mInstance == null) {
+            mInstance = new CapabilityCacheImpl(context);
+        }
+
+        return mInstance;
+    }
+
+    /**
+     * Returns the cached capability, checking it first if needed
+     *
+     * @return ready if the demo can run, else the first missing requirement
+     */
+    public Capability getCapability() {
+        Capability current = capability;
+        if (current == null) {
+            current = check();
+            capability = current;
+            Log.d(TAG, "Capability: " + current);
+        }
+
+        return current;
+    }
+
+    /**
+     * Forces the next getCapability() to check again
+     */
+    public void invalidate() {
+        capability = null;
+    }
+
+    private Capability check() {
+        for (String permission : REQUIRED_PERMISSIONS) {
+            if (context.checkSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
+                return Capability.missingPermissions;
+            }
+        }
+
+        if (bluetoothAdapter == null || locationManager == null || !uwbSupported) {
+            return Capability.unsupported;
+        }
+
+        if (!bluetoothAdapter.isEnabled()) {
+            return Capability.bluetoothDisabled;
+        }
+
+        if (!locationManager.isLocationEnabled()) {
+            return Capability.locationDisabled;
+        }
+
+        // UWB has no public state to check yet, the session fails if it is off
+        return Capability.ready;
+    }
+}
@@ -28,7 +28,7 @@ public class LocationManagerImpl {
     private static LocationManagerImpl mInstance = null;
 
     private LocationManagerImpl(final Context context) {
-        locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        locationManager = (LocationManager) context.getApplicationContext().getSystemService(Context.LOCATION_SERVICE);
     }
 
     public static synchronized LocationManagerImpl getInstance(final Context context) {
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.managers;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Hands out the channel, preamble index and session ID of UWB sessions.
+ * <p>
+ * Every channel and preamble index pair is a slot. A new session gets the slot with the fewest live
+ * sessions and the lowest recent loss rate, ties are broken randomly so that co-located phones
+ * running this allocator independently spread over the slots as well. Session IDs are unique
+ * across live sessions.
+ * <p>
+ * Sessions report their loss rate, which is kept per slot and decays over time. When the loss rate
+ * of a session slot climbs above MIGRATION_LOSS_RATE while a clearly cleaner slot is available,
+ * shouldMigrate() tells the session to restart on a new allocation.
+ */
+public class UwbChannelAllocator {
+
+    private static final String TAG = UwbChannelAllocator.class.getName();
+
+    public static final int[] CHANNELS = {5, 9};
+    // BPRF preamble codes
+    public static final int[] PREAMBLE_INDEXES = {9, 10, 11, 12};
+
+    private static final int SLOT_COUNT = CHANNELS.length * PREAMBLE_INDEXES.length;
+
+    public static final float MIGRATION_LOSS_RATE = 0.3f;
+    // A slot must be at least this much cleaner to be worth a session restart
+    private static final float MIGRATION_MARGIN = 0.15f;
+    private static final float LOSS_SMOOTHING = 0.5f;
+    private static final long LOSS_DECAY_MS = 30000;
+
+    // Score of one live session on the slot, and on another slot of the same channel
+    private static final float SLOT_LOAD_WEIGHT = 1.0f;
+    private static final float CHANNEL_LOAD_WEIGHT = 0.1f;
+
+    private final int[] slotSessions = new int[SLOT_COUNT];
+    private final int[] channelSessions = new int[CHANNELS.length];
+    private final float[] slotLossRate = new float[SLOT_COUNT];
+    private final long[] slotLossUpdatedAt = new long[SLOT_COUNT];
+    private final Set<Integer> liveSessionIds = new HashSet<>();
+    private final Random random = new Random();
+
+    private static UwbChannelAllocator mInstance = null;
+
+    public static class Allocation {
+        private final int slot;
+        private final int sessionId;
+        // Bit i set when CHANNELS[i] may be used
+        private final int channelMask;
+
+        private Allocation(int slot, int sessionId, int channelMask) {
+            this.slot = slot;
+            this.sessionId = sessionId;
+            this.channelMask = channelMask;
+        }
+
+        public int getSessionId() {
+            return sessionId;
+        }
+
+        public int getChannel() {
+            return CHANNELS[slot / PREAMBLE_INDEXES.length];
+        }
+
+        public int getPreambleIndex() {
+            return PREAMBLE_INDEXES[slot % PREAMBLE_INDEXES.length];
+        }
+
+        @Override
+        public String toString() {
+            return "sessionId: " + sessionId + " channel: " + getChannel() + " preambleIndex: " + getPreambleIndex();
+        }
+    }
+
+    public static synchronized UwbChannelAllocator getInstance() {
+        if (mInstance == null) {
+            mInstance = new UwbChannelAllocator();
+        }
+
+        return mInstance;
+    }
+
+    /**
+     * Allocates a slot and session ID for a new session
+     *
+     * @param previous          Allocation of the session being restarted, released first, or null
+     * @param supportedChannels Bit n set when the accessory supports channel n, 0 for any channel
+     * @return the allocation, to be released when the session ends
+     */
+    public synchronized Allocation allocate(Allocation previous, int supportedChannels) {
+        if (previous != null) {
+            release(previous);
+        }
+
+        // An accessory supporting none of our channels gets the usual choice, it may still range
+        int channelMask = 0;
+        for (int i = 0; i < CHANNELS.length; i++) {
+            if (supportedChannels == 0 || (supportedChannels & (1 << CHANNELS[i])) != 0) {
+                channelMask |= 1 << i;
+            }
+        }
+        if (channelMask == 0) {
+            Log.w(TAG, "No supported channel in " + Integer.toHexString(supportedChannels));
+            channelMask = (1 << CHANNELS.length) - 1;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        float bestScore = Float.MAX_VALUE;
+        int bestSlot = 0;
+        int bestCount = 0;
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if ((channelMask & (1 << (slot / PREAMBLE_INDEXES.length))) == 0) {
+                continue;
+            }
+
+            float score = scoreOf(slot, now);
+            if (previous != null && slot == previous.slot) {
+                // Only stay when nothing else is as good
+                score += MIGRATION_MARGIN;
+            }
+
+            if (score < bestScore) {
+                bestScore = score;
+                bestSlot = slot;
+                bestCount = 1;
+            } else if (score == bestScore && random.nextInt(++bestCount) == 0) {
+                bestSlot = slot;
+            }
+        }
+
+        int sessionId;
+        do {
+            sessionId = random.nextInt();
+        } while (sessionId == 0 || liveSessionIds.contains(sessionId));
+
+        Allocation allocation = new Allocation(bestSlot, sessionId, channelMask);
+        liveSessionIds.add(sessionId);
+        slotSessions[bestSlot]++;
+        channelSessions[bestSlot / PREAMBLE_INDEXES.length]++;
+
+        Log.d(TAG, "Allocated " + allocation);
+        return allocation;
+    }
+
+    /**
+     * Releases the slot and session ID of an ended session
+     *
+     * @param allocation Allocation returned by allocate
+     */
+    public synchronized void release(Allocation allocation) {
+        if (!liveSessionIds.remove(allocation.sessionId)) {
+            return;
+        }
+
+        slotSessions[allocation.slot]--;
+        channelSessions[allocation.slot / PREAMBLE_INDEXES.length]--;
+    }
+
+    /**
+     * Reports the loss rate a session measured over its last window
+     *
+     * @param allocation Allocation of the session
+     * @param lossRate   Ratio of missed or failed ranging results, between 0 and 1
+     */
+    public synchronized void reportLossRate(Allocation allocation, float lossRate) {
+        long now = SystemClock.elapsedRealtime();
+        int slot = allocation.slot;
+        slotLossRate[slot] = decayedLossRate(slot, now) * (1 - LOSS_SMOOTHING) + lossRate * LOSS_SMOOTHING;
+        slotLossUpdatedAt[slot] = now;
+    }
+
+    /**
+     * @param allocation Allocation of a live session
+     * @return true if the session loss rate is high and a clearly cleaner slot is available
+     */
+    public synchronized boolean shouldMigrate(Allocation allocation) {
+        long now = SystemClock.elapsedRealtime();
+        float lossRate = decayedLossRate(allocation.slot, now);
+        if (lossRate < MIGRATION_LOSS_RATE) {
+            return false;
+        }
+
+        // The session itself counts as load on its current slot only
+        float currentScore = scoreOf(allocation.slot, now) - SLOT_LOAD_WEIGHT - CHANNEL_LOAD_WEIGHT;
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if (slot != allocation.slot && (allocation.channelMask & (1 << (slot / PREAMBLE_INDEXES.length))) != 0
+                    && scoreOf(slot, now) + MIGRATION_MARGIN < currentScore) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private float scoreOf(int slot, long now) {
+        return slotSessions[slot] * SLOT_LOAD_WEIGHT
+                + channelSessions[slot / PREAMBLE_INDEXES.length] * CHANNEL_LOAD_WEIGHT
+                + decayedLossRate(slot, now);
+    }
+
+    private float decayedLossRate(int slot, long now) {
+        long age = now - slotLossUpdatedAt[slot];
+        if (age <= 0) {
+            return slotLossRate[slot];
+        }
+
+        return slotLossRate[slot] * (float) Math.exp(-(double) age / LOSS_DECAY_MS);
+    }
+}
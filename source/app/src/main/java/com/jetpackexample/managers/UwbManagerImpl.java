@@ -18,11 +18,13 @@ package com.jetpackexample.managers;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.core.uwb.RangingParameters;
 import androidx.core.uwb.RangingResult;
 import androidx.core.uwb.UwbAddress;
+import androidx.core.uwb.UwbClientSessionScope;
 import androidx.core.uwb.UwbComplexChannel;
 import androidx.core.uwb.UwbControleeSessionScope;
 import androidx.core.uwb.UwbControllerSessionScope;
@@ -31,29 +33,58 @@ import androidx.core.uwb.UwbManager;
 import androidx.core.uwb.rxjava3.UwbClientSessionScopeRx;
 import androidx.core.uwb.rxjava3.UwbManagerRx;
 
+import com.jetpackexample.ranging.CartesianPositionStream;
+import com.jetpackexample.ranging.RangingHealthMonitor;
+import com.jetpackexample.ranging.RangingSample;
 import com.jetpackexample.utils.Utils;
 import com.jetpackexample.UwbDeviceConfigData;
 import com.jetpackexample.UwbPhoneConfigData;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import io.reactivex.rxjava3.core.Flowable;
 import io.reactivex.rxjava3.core.Single;
 import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.processors.FlowableProcessor;
+import io.reactivex.rxjava3.processors.PublishProcessor;
+import io.reactivex.rxjava3.schedulers.Schedulers;
 import io.reactivex.rxjava3.subscribers.DisposableSubscriber;
 
 public class UwbManagerImpl {
 
     private static final String TAG = UwbManagerImpl.class.getName();
 
-    public static final int UWB_CHANNEL = 9;
-    public static final int UWB_PREAMBLE_INDEX = 10;
+    // https://developer.android.com/guide/topics/connectivity/uwb#known_issue_byte_order_reversed_for_mac_address_and_static_sts_vendor_id_fields
+    // GMS Core update is doing byte reverse as per UCI spec
+    // SessionKey is used to match Vendor ID in UWB Device firmware
+    private static final byte[] SESSION_KEY = Utils.hexStringToByteArray("0807010203040506");
+    private static final byte[] SUB_SESSION_KEY_INFO = Utils.hexStringToByteArray("0807010203040506");
 
+    // Expected period between ranging results with RANGING_UPDATE_RATE_AUTOMATIC
+    public static final long RANGING_UPDATE_PERIOD_MS = 200;
+
+    // Session recovery: a session is considered stalled after this many missed update periods
+    private static final int STALL_UPDATE_PERIODS = 5;
+    private static final long SESSION_START_TIMEOUT_MS = 3000;
+    private static final long RECOVERY_BASE_DELAY_MS = 100;
+    private static final long RECOVERY_MAX_DELAY_MS = 1600;
+
+    // Loss rate measured and reported to the channel allocator over windows of this many update periods
+    private static final int LOSS_WINDOW_UPDATE_PERIODS = 25;
+
+    private final Context context;
+    private final boolean supported;
+    // Created on first use, off the main thread
     private UwbManager uwbManager = null;
+    private UwbSessionCacheImpl uwbSessionCache = null;
+    private final UwbChannelAllocator uwbChannelAllocator = UwbChannelAllocator.getInstance();
+    private final UwbSessionNegotiator uwbSessionNegotiator = new UwbSessionNegotiator(UwbSessionNegotiator.Objective.lowestLatency, true);
+    private final CartesianPositionStream cartesianPositionStream = new CartesianPositionStream();
+    private final RangingHealthMonitor rangingHealthMonitor = new RangingHealthMonitor(RANGING_UPDATE_PERIOD_MS, LOSS_WINDOW_UPDATE_PERIODS);
+    private final FlowableProcessor<RangingSample> rangingSampleProcessor = PublishProcessor.<RangingSample>create().toSerialized();
 
     private Single<UwbControllerSessionScope> controllerSessionScopeSingle = null;
     private UwbControllerSessionScope controllerSessionScope = null;
@@ -61,25 +92,72 @@ public class UwbManagerImpl {
     private UwbControleeSessionScope controleeSessionScope = null;
     private Disposable disposable = null;
 
+    // Session scope prepared ahead of the OoB exchange for an already known accessory
+    private final Object preparedSessionLock = new Object();
+    private String preparedAccessoryAddress = null;
+    private byte preparedDeviceRangingRole = 0;
+    private Single<? extends UwbClientSessionScope> preparedSessionScopeSingle = null;
+
+    // Recovery supervisor state, the listener is kept across restarts so that consumers keep their state
+    private final Object sessionLock = new Object();
+    private String activeAccessoryAddress = null;
+    private UwbDeviceConfigData activeDeviceConfigData = null;
+    private UwbRangingListener activeRangingListener = null;
+    private UwbChannelAllocator.Allocation activeAllocation = null;
+    private int sessionGeneration = 0;
+    private int recoveryAttempt = 0;
+    private long recoveryStartedAt = 0;
+    private long migrationStartedAt = 0;
+    private Disposable recoveryDisposable = null;
 
     private static UwbManagerImpl mInstance = null;
 
     public interface UwbRangingListener {
+        /**
+         * Called each time a session is configured, including after an automatic restart.
+         * The accessory must be sent the new configuration.
+         */
         void onRangingStarted(UwbPhoneConfigData uwbPhoneConfigData);
 
         void onRangingResult(RangingResult rangingResult);
 
         void onRangingError(Throwable error);
 
+        /**
+         * Called with the first ranging result received after a session restart
+         *
+         * @param recoveryTimeMs Time from failure detection until ranging resumed
+         */
+        void onRangingRecovered(long recoveryTimeMs);
+
+        /**
+         * Called with the first ranging result received after the session moved away from a lossy channel
+         *
+         * @param migrationTimeMs Time from the migration decision until ranging resumed
+         */
+        void onRangingMigrated(long migrationTimeMs);
+
         void onRangingComplete();
+
+        /**
+         * Asked before each automatic restart or migration, on the thread that detected it
+         *
+         * @return false to give the session up, e.g. when the accessory is no longer ranging
+         */
+        boolean shouldRestart();
     }
 
     private UwbManagerImpl(final Context context) {
-        // Create the Uwb Manager if supported by this device
+        this.context = context.getApplicationContext();
+
+        // The Uwb Manager is only created when a session needs it, if supported by this device
         PackageManager packageManager = context.getPackageManager();
-        if (packageManager.hasSystemFeature("android.hardware.uwb")) {
-            uwbManager = UwbManager.createInstance(context);
-        }
+        supported = packageManager.hasSystemFeature(PackageManager.FEATURE_UWB);
+
+        uwbSessionCache = UwbSessionCacheImpl.getInstance(context);
+
+        // Positions are derived from the samples, for as long as this manager lives
+        getRangingSampleFlowable().subscribe(cartesianPositionStream::onRangingSample);
     }
 
     public static synchronized UwbManagerImpl getInstance(final Context context) {
@@ -91,42 +169,192 @@ public class UwbManagerImpl {
     }
 
     public boolean isSupported() {
-        return uwbManager != null;
+        return supported;
+    }
+
+    private synchronized UwbManager getUwbManager() {
+        if (uwbManager == null && supported) {
+            uwbManager = UwbManager.createInstance(context);
+        }
+
+        return uwbManager;
     }
 
     public boolean isEnabled() {
         return true;
     }
 
-    public void startRanging(UwbDeviceConfigData uwbDeviceConfigData, UwbRangingListener uwbRangingListener) {
-        Thread t = new Thread(() -> {
+    /**
+     * Hot stream of the ranging samples of the current session, shared by all subscribers and kept
+     * across session restarts. Each subscriber only keeps the latest sample when it falls behind;
+     * subscribers doing heavy work should observeOn their own scheduler so as not to delay the others.
+     *
+     * @return the ranging sample stream
+     */
+    public Flowable<RangingSample> getRangingSampleFlowable() {
+        return rangingSampleProcessor.onBackpressureLatest();
+    }
 
-            byte uwbDeviceRangingRole = selectUwbDeviceRangingRole(uwbDeviceConfigData.getSupportedDeviceRangingRoles());
-            Log.d(TAG, "Uwb device supported ranging roles: " + uwbDeviceConfigData.getSupportedDeviceRangingRoles() + ", selected role for UWB device: " + uwbDeviceRangingRole);
+    /**
+     * @return the negotiator picking the profile and role of the next sessions
+     */
+    public UwbSessionNegotiator getSessionNegotiator() {
+        return uwbSessionNegotiator;
+    }
+
+    /**
+     * @return the stream of the ranging samples converted to device frame coordinates, delivered on
+     * the thread publishing the samples
+     */
+    public CartesianPositionStream getCartesianPositionStream() {
+        return cartesianPositionStream;
+    }
+
+    /**
+     * @return the link health monitor of the current session, reset on every session start
+     */
+    public RangingHealthMonitor getRangingHealthMonitor() {
+        return rangingHealthMonitor;
+    }
+
+    /**
+     * Prepares the UWB session scope for an accessory we already negotiated with, so that it is
+     * ready by the time its UwbDeviceConfigData is received.
+     *
+     * @param accessoryAddress Bluetooth MAC address of the accessory
+     */
+    public void prepareSession(String accessoryAddress) {
+        UwbSessionCacheImpl.Entry entry = uwbSessionCache.get(accessoryAddress);
+        if (entry == null || !supported) {
+            return;
+        }
+
+        Log.d(TAG, "Preparing UWB session scope for known accessory: " + accessoryAddress);
 
-            int uwbProfileId = selectUwbProfileId(uwbDeviceConfigData.getSupportedUwbProfileIds());
+        Single<? extends UwbClientSessionScope> sessionScopeSingle;
+        if (entry.getDeviceRangingRole() == UwbSessionNegotiator.ROLE_PHONE_CONTROLEE) {
+            sessionScopeSingle = UwbManagerRx.controleeSessionScopeSingle(getUwbManager());
+        } else {
+            sessionScopeSingle = UwbManagerRx.controllerSessionScopeSingle(getUwbManager());
+        }
+
+        // Start acquiring the scope right away and keep the result for startRanging
+        sessionScopeSingle = sessionScopeSingle.subscribeOn(Schedulers.io()).cache();
+        sessionScopeSingle.subscribe(
+                sessionScope -> Log.d(TAG, "UWB session scope prepared for: " + accessoryAddress),
+                error -> Log.e(TAG, "Failed to prepare UWB session scope: " + error.getMessage()));
+
+        synchronized (preparedSessionLock) {
+            preparedAccessoryAddress = accessoryAddress;
+            preparedDeviceRangingRole = entry.getDeviceRangingRole();
+            preparedSessionScopeSingle = sessionScopeSingle;
+        }
+    }
+
+    public void startRanging(String accessoryAddress, UwbDeviceConfigData uwbDeviceConfigData, UwbRangingListener uwbRangingListener) {
+        final int generation;
+        synchronized (sessionLock) {
+            cancelSession();
+            activeAccessoryAddress = accessoryAddress;
+            activeDeviceConfigData = uwbDeviceConfigData;
+            activeRangingListener = uwbRangingListener;
+            recoveryAttempt = 0;
+            recoveryStartedAt = 0;
+            migrationStartedAt = 0;
+            generation = sessionGeneration;
+        }
+
+        Thread t = new Thread(() -> startSession(generation, accessoryAddress, uwbDeviceConfigData, uwbRangingListener));
+        t.start();
+    }
+
+    private void startSession(int generation, String accessoryAddress, UwbDeviceConfigData uwbDeviceConfigData, UwbRangingListener uwbRangingListener) {
+        final UwbChannelAllocator.Allocation allocation;
+        synchronized (sessionLock) {
+            if (generation != sessionGeneration) {
+                return;
+            }
+
+            if (!uwbRangingListener.shouldRestart()) {
+                // The accessory stopped while a restart was pending
+                Log.d(TAG, "UWB session not started as the accessory is not ranging");
+                cancelSession();
+                return;
+            }
+
+            // Restarts get a new session ID and possibly a cleaner channel
+            allocation = uwbChannelAllocator.allocate(activeAllocation, uwbDeviceConfigData.getSupportedChannels());
+            activeAllocation = allocation;
+        }
+
+        try {
+            byte uwbDeviceRangingRole;
+            int uwbProfileId;
+
+            // Negotiation is cheap, it is redone so that objective changes apply to known accessories
+            UwbSessionNegotiator.Selection selection = uwbSessionNegotiator.negotiate(uwbDeviceConfigData);
+            if (selection == null) {
+                // Retrying would not help, the accessory has to be updated. No restart will reuse the allocation.
+                synchronized (sessionLock) {
+                    if (activeAllocation == allocation) {
+                        uwbChannelAllocator.release(allocation);
+                        activeAllocation = null;
+                    }
+                }
+
+                uwbRangingListener.onRangingError(new IllegalStateException("No usable UWB profile and role"));
+                return;
+            }
+
+            uwbDeviceRangingRole = selection.getDeviceRangingRole();
+            uwbProfileId = selection.getProfileId();
+            Log.d(TAG, "Uwb device supported ranging roles: " + uwbDeviceConfigData.getSupportedDeviceRangingRoles() + ", selected role for UWB device: " + uwbDeviceRangingRole);
             Log.d(TAG, "Uwb device supported UWB profile IDs: " + uwbDeviceConfigData.getSupportedUwbProfileIds() + ", selected UWB profile ID: " + uwbProfileId);
 
+            // Never ask the accessory to range faster than it supports
+            final long rangingIntervalMs = Math.max(RANGING_UPDATE_PERIOD_MS, uwbDeviceConfigData.getMinRangingIntervalMs());
+            if (rangingIntervalMs != RANGING_UPDATE_PERIOD_MS) {
+                Log.w(TAG, "Uwb device minimum ranging interval is " + rangingIntervalMs
+                        + " ms, longer than the update period of " + RANGING_UPDATE_PERIOD_MS + " ms");
+            }
+
+            // Keep the cache up to date for the session scope preparation
+            UwbSessionCacheImpl.Entry entry = uwbSessionCache.get(accessoryAddress);
+            if (entry == null || !entry.isValidFor(uwbDeviceConfigData)
+                    || entry.getDeviceRangingRole() != uwbDeviceRangingRole || entry.getProfileId() != uwbProfileId) {
+                uwbSessionCache.put(accessoryAddress, uwbDeviceConfigData, uwbDeviceRangingRole, (byte) uwbProfileId);
+            }
+
+            Single<? extends UwbClientSessionScope> preparedSingle = takePreparedSessionScope(accessoryAddress, uwbDeviceRangingRole);
+
             UwbAddress localAddress;
-            if (uwbDeviceRangingRole == 0x01) {
+            if (uwbDeviceRangingRole == UwbSessionNegotiator.ROLE_PHONE_CONTROLEE) {
                 Log.d(TAG, "Android device will act as Controlee!");
-                controleeSessionScopeSingle = UwbManagerRx.controleeSessionScopeSingle(uwbManager);
-                controleeSessionScope = controleeSessionScopeSingle.blockingGet();
+                if (preparedSingle != null) {
+                    controleeSessionScope = (UwbControleeSessionScope) preparedSingle.blockingGet();
+                } else {
+                    controleeSessionScopeSingle = UwbManagerRx.controleeSessionScopeSingle(getUwbManager());
+                    controleeSessionScope = controleeSessionScopeSingle.blockingGet();
+                }
                 localAddress = controleeSessionScope.getLocalAddress();
             } else {
                 Log.d(TAG, "Android device will act as Controller!");
-                controllerSessionScopeSingle = UwbManagerRx.controllerSessionScopeSingle(uwbManager);
-                controllerSessionScope = controllerSessionScopeSingle.blockingGet();
+                if (preparedSingle != null) {
+                    controllerSessionScope = (UwbControllerSessionScope) preparedSingle.blockingGet();
+                } else {
+                    controllerSessionScopeSingle = UwbManagerRx.controllerSessionScopeSingle(getUwbManager());
+                    controllerSessionScope = controllerSessionScopeSingle.blockingGet();
+                }
                 localAddress = controllerSessionScope.getLocalAddress();
             }
 
-            // Assign a random Session ID
-            int sessionId = new Random().nextInt();
-            int subSessionId = new Random().nextInt();
+            // Session ID, channel and preamble unique across live sessions
+            int sessionId = allocation.getSessionId();
+            int subSessionId = sessionId;
             Log.d(TAG, "UWB sessionId: " + sessionId);
 
-            UwbComplexChannel uwbComplexChannel = new UwbComplexChannel(UWB_CHANNEL, UWB_PREAMBLE_INDEX);
-            Log.d(TAG, "UWB Channel params, Channel: " + UWB_CHANNEL + " preambleIndex: " + UWB_PREAMBLE_INDEX);
+            UwbComplexChannel uwbComplexChannel = new UwbComplexChannel(allocation.getChannel(), allocation.getPreambleIndex());
+            Log.d(TAG, "UWB Channel params, Channel: " + allocation.getChannel() + " preambleIndex: " + allocation.getPreambleIndex());
 
             // Need to pass the local address to the other peer
             Log.d(TAG, "UWB Local Address: " + localAddress);
@@ -139,27 +367,20 @@ public class UwbManagerImpl {
             List<UwbDevice> listUwbDevices = new ArrayList<>();
             listUwbDevices.add(shieldUwbDevice);
 
-            // https://developer.android.com/guide/topics/connectivity/uwb#known_issue_byte_order_reversed_for_mac_address_and_static_sts_vendor_id_fields
-            // GMS Core update is doing byte reverse as per UCI spec
-            // SessionKey is used to match Vendor ID in UWB Device firmware
-            byte[] sessionKey = Utils.hexStringToByteArray("0807010203040506");
-            int subSessionId = sessionId;
-            byte[] subSessionKeyInfo = Utils.hexStringToByteArray("0807010203040506");
-
             Log.d(TAG, "Configure ranging parameters for Profile ID: " + uwbProfileId);
             RangingParameters rangingParameters = new RangingParameters(
                     uwbProfileId,
                     sessionId,
                     subSessionId,
-                    sessionKey,
-                    subSessionKeyInfo,
+                    SESSION_KEY,
+                    SUB_SESSION_KEY_INFO,
                     uwbComplexChannel,
                     listUwbDevices,
                     RangingParameters.RANGING_UPDATE_RATE_AUTOMATIC
             );
 
             Flowable<RangingResult> rangingResultFlowable;
-            if (uwbDeviceRangingRole == 0x01) {
+            if (uwbDeviceRangingRole == UwbSessionNegotiator.ROLE_PHONE_CONTROLEE) {
                 Log.d(TAG, "Configure controlee flowable");
                 rangingResultFlowable =
                         UwbClientSessionScopeRx.rangingResultsFlowable(controleeSessionScope,
@@ -171,27 +392,73 @@ public class UwbManagerImpl {
                                 rangingParameters);
             }
 
-            // Consume ranging results from Flowable using Disposable
-            disposable = rangingResultFlowable
-                    .delay(199, TimeUnit.MILLISECONDS)
+            // Consume ranging results from Flowable using Disposable, a session that stops
+            // delivering results is reported as a TimeoutException
+            Disposable sessionDisposable = rangingResultFlowable
+                    .timeout(Flowable.timer(SESSION_START_TIMEOUT_MS, TimeUnit.MILLISECONDS),
+                            rangingResult -> Flowable.timer(STALL_UPDATE_PERIODS * rangingIntervalMs, TimeUnit.MILLISECONDS))
                     .subscribeWith(new DisposableSubscriber<RangingResult>() {
                         @Override
                         public void onStart() {
                             Log.d(TAG, "UWB Disposable started");
+                            rangingHealthMonitor.reset(rangingIntervalMs);
                             request(1);
                         }
 
                         @Override
                         public void onNext(RangingResult rangingResult) {
                             Log.d(TAG, "UWB Ranging notification received");
+                            if (rangingResult instanceof RangingResult.RangingResultPosition) {
+                                long recoveryTimeMs = markSessionRecovered(generation);
+                                if (recoveryTimeMs >= 0) {
+                                    uwbRangingListener.onRangingRecovered(recoveryTimeMs);
+                                }
+
+                                long migrationTimeMs = markSessionMigrated(generation);
+                                if (migrationTimeMs >= 0) {
+                                    uwbRangingListener.onRangingMigrated(migrationTimeMs);
+                                }
+                            }
+
                             uwbRangingListener.onRangingResult(rangingResult);
-                            request(1);
+
+                            RangingSample rangingSample = RangingSample.fromRangingResult(rangingResult, SystemClock.elapsedRealtimeNanos());
+                            if (rangingSample != null) {
+                                rangingSampleProcessor.onNext(rangingSample);
+                            }
+
+                            if (rangingResult instanceof RangingResult.RangingResultPeerDisconnected) {
+                                onSessionFailure(generation, "peer disconnected");
+                            } else if (!updateLossRate(rangingSample)) {
+                                onSessionMigration(generation, allocation);
+                            } else {
+                                request(1);
+                            }
+                        }
+
+                        /**
+                         * @return false if the session should move to a cleaner channel
+                         */
+                        private boolean updateLossRate(RangingSample rangingSample) {
+                            boolean measured = rangingSample != null && rangingSample.hasDistance();
+                            if (!rangingHealthMonitor.onResult(SystemClock.elapsedRealtimeNanos(), measured)) {
+                                return true;
+                            }
+
+                            uwbChannelAllocator.reportLossRate(allocation, rangingHealthMonitor.getLossRate());
+                            return !uwbChannelAllocator.shouldMigrate(allocation);
                         }
 
                         @Override
                         public void onError(Throwable error) {
                             Log.d(TAG, "UWB Ranging error received");
+                            if (error instanceof TimeoutException) {
+                                // Nothing got through on this channel
+                                uwbChannelAllocator.reportLossRate(allocation, 1f);
+                            }
+
                             uwbRangingListener.onRangingError(error);
+                            onSessionFailure(generation, error.toString());
                         }
 
                         @Override
@@ -202,50 +469,178 @@ public class UwbManagerImpl {
                     });
 
             // Create ShareableData with configured UWB Session params
-            UwbPhoneConfigData uwbPhoneConfigData = new UwbPhoneConfigData();
-            uwbPhoneConfigData.setSpecVerMajor((short) 0x0100);
-            uwbPhoneConfigData.setSpecVerMinor((short) 0x0000);
-            uwbPhoneConfigData.setSessionId(sessionId);
-            uwbPhoneConfigData.setPreambleId((byte) UWB_PREAMBLE_INDEX);
-            uwbPhoneConfigData.setChannel((byte) UWB_CHANNEL);
-            uwbPhoneConfigData.setProfileId((byte)uwbProfileId);
-            uwbPhoneConfigData.setDeviceRangingRole(uwbDeviceRangingRole);
-            uwbPhoneConfigData.setPhoneMacAddress(localAddress.getAddress());
+            UwbPhoneConfigData uwbPhoneConfigData = new UwbPhoneConfigData((short) 0x0100, (short) 0x0000, sessionId,
+                    (byte) allocation.getPreambleIndex(), (byte) allocation.getChannel(), (byte) uwbProfileId,
+                    uwbDeviceRangingRole, localAddress.getAddress(), (int) rangingIntervalMs);
+
+            synchronized (sessionLock) {
+                if (generation != sessionGeneration) {
+                    // Stopped or restarted while configuring
+                    sessionDisposable.dispose();
+                    return;
+                }
+
+                disposable = sessionDisposable;
+            }
 
             // Send the UWB ranging session configuration data back to the listener
             uwbRangingListener.onRangingStarted(uwbPhoneConfigData);
-        });
+        } catch (RuntimeException e) {
+            Log.e(TAG, "UWB session configuration failed: " + e.getMessage());
+            uwbRangingListener.onRangingError(e);
+            onSessionFailure(generation, e.toString());
+        }
+    }
 
-        t.start();
+    /**
+     * Tears down a failed session and schedules a restart with the parameters of the active one.
+     * Restarts are delayed with an exponential backoff bounded by RECOVERY_MAX_DELAY_MS.
+     */
+    private void onSessionFailure(int generation, String reason) {
+        synchronized (sessionLock) {
+            if (generation != sessionGeneration || activeRangingListener == null) {
+                return;
+            }
+
+            if (!activeRangingListener.shouldRestart()) {
+                Log.d(TAG, "UWB session failed (" + reason + "), not restarted as the accessory is not ranging");
+                cancelSession();
+                return;
+            }
+
+            if (recoveryStartedAt == 0) {
+                recoveryStartedAt = SystemClock.elapsedRealtime();
+            }
+
+            long delay = Math.min(RECOVERY_BASE_DELAY_MS << Math.min(recoveryAttempt, 16), RECOVERY_MAX_DELAY_MS);
+            recoveryAttempt++;
+            Log.d(TAG, "UWB session failed (" + reason + "), restart attempt " + recoveryAttempt + " in " + delay + " ms");
+            scheduleRestart(delay);
+        }
     }
 
-    public void stopRanging() {
-        if (disposable != null) {
-            disposable.dispose();
+    /**
+     * Restarts a healthy but lossy session right away on a new allocation, a migration is not a
+     * failure and does not count towards the recovery backoff.
+     */
+    private void onSessionMigration(int generation, UwbChannelAllocator.Allocation allocation) {
+        synchronized (sessionLock) {
+            if (generation != sessionGeneration || activeRangingListener == null) {
+                return;
+            }
+
+            if (!activeRangingListener.shouldRestart()) {
+                Log.d(TAG, "UWB session not migrated as the accessory is not ranging");
+                cancelSession();
+                return;
+            }
+
+            if (migrationStartedAt == 0) {
+                migrationStartedAt = SystemClock.elapsedRealtime();
+            }
+
+            Log.d(TAG, "UWB session migrating away from " + allocation + " (loss rate " + rangingHealthMonitor.getLossRate() + ")");
+            scheduleRestart(0);
         }
     }
 
-    public void close() {
+    /**
+     * Invalidates the current session and starts the active one again after the given delay,
+     * must be called with sessionLock held
+     */
+    private void scheduleRestart(long delay) {
+        // Invalidate callbacks from the current session
+        sessionGeneration++;
         if (disposable != null) {
             disposable.dispose();
+            disposable = null;
         }
+
+        final int nextGeneration = sessionGeneration;
+        final String accessoryAddress = activeAccessoryAddress;
+        final UwbDeviceConfigData uwbDeviceConfigData = activeDeviceConfigData;
+        final UwbRangingListener uwbRangingListener = activeRangingListener;
+        recoveryDisposable = Schedulers.io().scheduleDirect(
+                () -> startSession(nextGeneration, accessoryAddress, uwbDeviceConfigData, uwbRangingListener),
+                delay, TimeUnit.MILLISECONDS);
     }
 
-    private byte selectUwbProfileId(int supportedUwbProfileIds) {
-        if (BigInteger.valueOf(supportedUwbProfileIds).testBit(RangingParameters.CONFIG_UNICAST_DS_TWR)) {
-            return (byte) RangingParameters.CONFIG_UNICAST_DS_TWR;
+    /**
+     * @return the recovery time if the given session is the first to deliver results after a failure, else -1
+     */
+    private long markSessionRecovered(int generation) {
+        synchronized (sessionLock) {
+            if (generation != sessionGeneration || recoveryStartedAt == 0) {
+                return -1;
+            }
+
+            long recoveryTimeMs = SystemClock.elapsedRealtime() - recoveryStartedAt;
+            Log.d(TAG, "UWB session recovered after " + recoveryAttempt + " attempt(s) in " + recoveryTimeMs + " ms");
+            recoveryStartedAt = 0;
+            recoveryAttempt = 0;
+            return recoveryTimeMs;
         }
+    }
+
+    /**
+     * @return the migration time if the given session is the first to deliver results after a migration, else -1
+     */
+    private long markSessionMigrated(int generation) {
+        synchronized (sessionLock) {
+            if (generation != sessionGeneration || migrationStartedAt == 0) {
+                return -1;
+            }
+
+            long migrationTimeMs = SystemClock.elapsedRealtime() - migrationStartedAt;
+            Log.d(TAG, "UWB session migrated to " + activeAllocation + " in " + migrationTimeMs + " ms");
+            migrationStartedAt = 0;
+            return migrationTimeMs;
+        }
+    }
+
+    private void cancelSession() {
+        synchronized (sessionLock) {
+            sessionGeneration++;
+            activeRangingListener = null;
 
-        return 0;
+            if (activeAllocation != null) {
+                uwbChannelAllocator.release(activeAllocation);
+                activeAllocation = null;
+            }
+
+            if (recoveryDisposable != null) {
+                recoveryDisposable.dispose();
+                recoveryDisposable = null;
+            }
+
+            if (disposable != null) {
+                disposable.dispose();
+                disposable = null;
+            }
+        }
     }
 
-    private byte selectUwbDeviceRangingRole(int supportedUwbDeviceRangingRoles) {
-        if (BigInteger.valueOf(supportedUwbDeviceRangingRoles).testBit(0)) {
-            return 1;
-        } else if (BigInteger.valueOf(supportedUwbDeviceRangingRoles).testBit(1)) {
-            return 2;
+    private Single<? extends UwbClientSessionScope> takePreparedSessionScope(String accessoryAddress, byte uwbDeviceRangingRole) {
+        synchronized (preparedSessionLock) {
+            Single<? extends UwbClientSessionScope> sessionScopeSingle = null;
+            if (preparedSessionScopeSingle != null
+                    && accessoryAddress != null
+                    && accessoryAddress.equals(preparedAccessoryAddress)
+                    && preparedDeviceRangingRole == uwbDeviceRangingRole) {
+                sessionScopeSingle = preparedSessionScopeSingle;
+            }
+
+            preparedAccessoryAddress = null;
+            preparedSessionScopeSingle = null;
+            return sessionScopeSingle;
         }
+    }
+
+    public void stopRanging() {
+        cancelSession();
+    }
 
-        return 0;
+    public void close() {
+        cancelSession();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.managers;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.jetpackexample.UwbDeviceConfigData;
+import com.jetpackexample.utils.Utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the UWB session parameters negotiated with each accessory, keyed by its Bluetooth address.
+ * An entry only stands while the accessory keeps reporting the same capabilities (chip ID,
+ * firmware and middleware versions, supported profiles and roles).
+ * <p>
+ * The only use of an entry is to prepare the session scope of the cached role as soon as the
+ * accessory is connected, before it sends its configuration. The selection step is not skipped:
+ * the profile and role are negotiated again for every session, which costs no I/O, so that
+ * objective changes apply to known accessories. When the outcome differs from the entry, the
+ * prepared scope is dropped and the entry is updated. Channel, preamble and session ID are not
+ * cached either, they are allocated for every session and restart.
+ */
+public class UwbSessionCacheImpl {
+
+    private static final String TAG = UwbSessionCacheImpl.class.getName();
+
+    private static final String PREFERENCES_NAME = "uwb_session_cache_v2";
+    // Entries of the OoB layout, before the compact form was stored
+    private static final String LEGACY_PREFERENCES_NAME = "uwb_session_cache";
+
+    private final SharedPreferences preferences;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private static UwbSessionCacheImpl mInstance = null;
+
+    public static class Entry {
+        private final UwbDeviceConfigData uwbDeviceConfigData;
+        private final byte deviceRangingRole;
+        private final byte profileId;
+
+        public Entry(UwbDeviceConfigData uwbDeviceConfigData, byte deviceRangingRole, byte profileId) {
+            this.uwbDeviceConfigData = uwbDeviceConfigData;
+            this.deviceRangingRole = deviceRangingRole;
+            this.profileId = profileId;
+        }
+
+        public UwbDeviceConfigData getUwbDeviceConfigData() {
+            return uwbDeviceConfigData;
+        }
+
+        public byte getDeviceRangingRole() {
+            return deviceRangingRole;
+        }
+
+        public byte getProfileId() {
+            return profileId;
+        }
+
+        /**
+         * Checks whether the accessory still advertises the capabilities this entry was negotiated for.
+         * The device MAC address is not part of the check as the accessory may change it between sessions.
+         *
+         * @param other Device configuration just received from the accessory
+         * @return true if the cached role and profile can be reused
+         */
+        public boolean isValidFor(UwbDeviceConfigData other) {
+            return uwbDeviceConfigData.hasSameCapabilities(other);
+        }
+    }
+
+    private UwbSessionCacheImpl(final Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        context.deleteSharedPreferences(LEGACY_PREFERENCES_NAME);
+    }
+
+    public static synchronized UwbSessionCacheImpl getInstance(final Context context) {
+        if (mInstance == null) {
+            mInstance = new UwbSessionCacheImpl(context);
+        }
+
+        return mInstance;
+    }
+
+    /**
+     * Returns the cached entry for the given accessory
+     *
+     * @param accessoryAddress Bluetooth MAC address of the accessory
+     * @return the cached entry or null if the accessory was never negotiated with
+     */
+    public synchronized Entry get(String accessoryAddress) {
+        if (accessoryAddress == null) {
+            return null;
+        }
+
+        Entry entry = entries.get(accessoryAddress);
+        if (entry == null) {
+            entry = load(accessoryAddress);
+            if (entry != null) {
+                entries.put(accessoryAddress, entry);
+            }
+        }
+
+        return entry;
+    }
+
+    /**
+     * Stores the parameters negotiated with the given accessory
+     *
+     * @param accessoryAddress    Bluetooth MAC address of the accessory
+     * @param uwbDeviceConfigData Device configuration received from the accessory
+     * @param deviceRangingRole   Selected ranging role for the accessory
+     * @param profileId           Selected UWB profile ID
+     */
+    public synchronized void put(String accessoryAddress, UwbDeviceConfigData uwbDeviceConfigData, byte deviceRangingRole, byte profileId) {
+        if (accessoryAddress == null) {
+            return;
+        }
+
+        entries.put(accessoryAddress, new Entry(uwbDeviceConfigData, deviceRangingRole, profileId));
+        preferences.edit()
+                .putString(accessoryAddress, Utils.byteArrayToHexString(Utils.concat(
+                        new byte[]{deviceRangingRole, profileId},
+                        uwbDeviceConfigData.toCompactByteArray())))
+                .apply();
+    }
+
+    /**
+     * Drops the cached entry of the given accessory
+     *
+     * @param accessoryAddress Bluetooth MAC address of the accessory
+     */
+    public synchronized void remove(String accessoryAddress) {
+        if (accessoryAddress == null) {
+            return;
+        }
+
+        entries.remove(accessoryAddress);
+        preferences.edit().remove(accessoryAddress).apply();
+    }
+
+    private Entry load(String accessoryAddress) {
+        String value = preferences.getString(accessoryAddress, null);
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            byte[] data = Utils.hexStringToByteArray(value);
+            return new Entry(UwbDeviceConfigData.fromCompactByteArray(Utils.trimLeadingBytes(data, 2)), data[0], data[1]);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            Log.e(TAG, "Discarding corrupted cache entry for " + accessoryAddress);
+            preferences.edit().remove(accessoryAddress).apply();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.managers;
+
+import android.util.Log;
+
+import androidx.core.uwb.RangingParameters;
+
+import com.jetpackexample.UwbDeviceConfigData;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks the UWB profile and device ranging role of a session among the ones the accessory
+ * advertises in its UwbDeviceConfigData.
+ * <p>
+ * Every supported profile and role combination is scored against the objective, after removing
+ * the ones known not to work with the accessory chip and firmware. Profiles with provisioned STS
+ * are never picked, the app only uses static STS keys.
+ */
+public class UwbSessionNegotiator {
+
+    private static final String TAG = UwbSessionNegotiator.class.getName();
+
+    // Device ranging roles, as bits of UwbDeviceConfigData.supportedDeviceRangingRoles,
+    // named after the role the phone takes in the session
+    public static final byte ROLE_PHONE_CONTROLEE = 1;
+    public static final byte ROLE_PHONE_CONTROLLER = 2;
+
+    public enum Objective {
+        lowestLatency,
+        highestRate,
+        multicast
+    }
+
+    // Profile properties, indexed by profile ID
+    private static final int PROFILE_COUNT = 4;
+    private static final int[] PROFILE_LATENCY_SCORE = new int[PROFILE_COUNT];
+    private static final int[] PROFILE_RATE_SCORE = new int[PROFILE_COUNT];
+    private static final boolean[] PROFILE_MULTICAST = new boolean[PROFILE_COUNT];
+    private static final boolean[] PROFILE_AOA = new boolean[PROFILE_COUNT];
+
+    static {
+        // Without AoA the ranging rounds are shorter
+        setProfile(RangingParameters.CONFIG_UNICAST_DS_TWR, 2, 2, false, true);
+        setProfile(RangingParameters.CONFIG_MULTICAST_DS_TWR, 1, 2, true, true);
+        setProfile(RangingParameters.CONFIG_UNICAST_DS_TWR_NO_AOA, 3, 3, false, false);
+    }
+
+    private static class Quirk {
+        final byte[] chipId;
+        final int fwVersionBelow;
+        final int excludedProfiles;
+        final int excludedRoles;
+
+        Quirk(byte[] chipId, int fwVersionBelow, int excludedProfiles, int excludedRoles) {
+            this.chipId = chipId;
+            this.fwVersionBelow = fwVersionBelow;
+            this.excludedProfiles = excludedProfiles;
+            this.excludedRoles = excludedRoles;
+        }
+    }
+
+    private static final List<Quirk> quirks = new ArrayList<>();
+
+    public static class Selection {
+        private final int profileId;
+        private final byte deviceRangingRole;
+        private final int score;
+
+        private Selection(int profileId, byte deviceRangingRole, int score) {
+            this.profileId = profileId;
+            this.deviceRangingRole = deviceRangingRole;
+            this.score = score;
+        }
+
+        public int getProfileId() {
+            return profileId;
+        }
+
+        public byte getDeviceRangingRole() {
+            return deviceRangingRole;
+        }
+
+        public int getScore() {
+            return score;
+        }
+    }
+
+    private volatile Objective objective;
+    private volatile boolean requireAoa;
+
+    /**
+     * @param objective  What to optimize the session for
+     * @param requireAoa Only pick profiles reporting the angle of arrival
+     */
+    public UwbSessionNegotiator(Objective objective, boolean requireAoa) {
+        this.objective = objective;
+        this.requireAoa = requireAoa;
+    }
+
+    public Objective getObjective() {
+        return objective;
+    }
+
+    public void setObjective(Objective objective) {
+        this.objective = objective;
+    }
+
+    public boolean isAoaRequired() {
+        return requireAoa;
+    }
+
+    public void setAoaRequired(boolean requireAoa) {
+        this.requireAoa = requireAoa;
+    }
+
+    /**
+     * Excludes profiles and roles for accessories of a given chip with a firmware older than a version
+     *
+     * @param chipId           Chip ID reported by the accessory
+     * @param fwVersionBelow   Firmware version, big endian, the quirk applies to older firmwares
+     * @param excludedProfiles Bitmask of the profile IDs that do not work
+     * @param excludedRoles    Bitmask of the device ranging roles that do not work
+     */
+    public static synchronized void addQuirk(byte[] chipId, int fwVersionBelow, int excludedProfiles, int excludedRoles) {
+        quirks.add(new Quirk(chipId.clone(), fwVersionBelow, excludedProfiles, excludedRoles));
+    }
+
+    /**
+     * Scores all profile and role combinations supported by the accessory
+     *
+     * @param uwbDeviceConfigData Device configuration received from the accessory
+     * @return the best combination, or null if the accessory supports none we can use
+     */
+    public Selection negotiate(UwbDeviceConfigData uwbDeviceConfigData) {
+        int profiles = uwbDeviceConfigData.getSupportedUwbProfileIds() & ((1 << PROFILE_COUNT) - 1);
+        int roles = uwbDeviceConfigData.getSupportedDeviceRangingRoles() & (ROLE_PHONE_CONTROLEE | ROLE_PHONE_CONTROLLER);
+
+        synchronized (UwbSessionNegotiator.class) {
+            int fwVersion = toInt(uwbDeviceConfigData.getChipFwVersion());
+            for (int i = 0; i < quirks.size(); i++) {
+                Quirk quirk = quirks.get(i);
+                if (sameChip(quirk.chipId, uwbDeviceConfigData.getChipId()) && fwVersion < quirk.fwVersionBelow) {
+                    profiles &= ~quirk.excludedProfiles;
+                    roles &= ~quirk.excludedRoles;
+                }
+            }
+        }
+
+        Objective objective = this.objective;
+        boolean requireAoa = this.requireAoa;
+        int bestProfile = -1;
+        int bestRole = 0;
+        int bestScore = Integer.MIN_VALUE;
+
+        for (int remainingProfiles = profiles; remainingProfiles != 0; remainingProfiles &= remainingProfiles - 1) {
+            int profileId = Integer.numberOfTrailingZeros(remainingProfiles);
+            if (PROFILE_LATENCY_SCORE[profileId] == 0 || (requireAoa && !PROFILE_AOA[profileId])) {
+                continue;
+            }
+
+            for (int remainingRoles = roles; remainingRoles != 0; remainingRoles &= remainingRoles - 1) {
+                int role = Integer.lowestOneBit(remainingRoles);
+                int score = score(objective, profileId, role);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestProfile = profileId;
+                    bestRole = role;
+                }
+            }
+        }
+
+        if (bestProfile < 0) {
+            Log.d(TAG, "No usable profile in " + Integer.toHexString(uwbDeviceConfigData.getSupportedUwbProfileIds())
+                    + " with roles " + Integer.toHexString(uwbDeviceConfigData.getSupportedDeviceRangingRoles()));
+            return null;
+        }
+
+        Log.d(TAG, "Selected profile ID: " + bestProfile + ", role: " + bestRole + " for " + objective);
+        return new Selection(bestProfile, (byte) bestRole, bestScore);
+    }
+
+    private static int score(Objective objective, int profileId, int role) {
+        switch (objective) {
+            case highestRate:
+                return PROFILE_RATE_SCORE[profileId] * 4 + PROFILE_LATENCY_SCORE[profileId] * 2 + roleScore(role);
+            case multicast:
+                // Only a controller phone can range with several accessories at once
+                return (PROFILE_MULTICAST[profileId] && role == ROLE_PHONE_CONTROLLER ? 16 : 0)
+                        + PROFILE_LATENCY_SCORE[profileId] * 2 + roleScore(role);
+            case lowestLatency:
+            default:
+                return PROFILE_LATENCY_SCORE[profileId] * 4 + PROFILE_RATE_SCORE[profileId] * 2 + roleScore(role);
+        }
+    }
+
+    // Keeps the lowest role bit when all else is equal, as it used to be
+    private static int roleScore(int role) {
+        return role == ROLE_PHONE_CONTROLEE ? 1 : 0;
+    }
+
+    private static void setProfile(int profileId, int latencyScore, int rateScore, boolean multicast, boolean aoa) {
+        PROFILE_LATENCY_SCORE[profileId] = latencyScore;
+        PROFILE_RATE_SCORE[profileId] = rateScore;
+        PROFILE_MULTICAST[profileId] = multicast;
+        PROFILE_AOA[profileId] = aoa;
+    }
+
+    private static boolean sameChip(byte[] chipId, byte[] other) {
+        if (other == null || other.length != chipId.length) {
+            return false;
+        }
+
+        for (int i = 0; i < chipId.length; i++) {
+            if (chipId[i] != other[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int toInt(byte[] data) {
+        int value = 0;
+        if (data != null) {
+            for (byte b : data) {
+                value = (value << 8) | (b & 0xFF);
+            }
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.oob;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection and ranging session state of the accessory link.
+ * <p>
+ * Only the transitions declared in the transition table are accepted, and each transition is a
+ * single compare-and-set, so the state can be driven from any thread including Bluetooth binder
+ * threads. Moving to idle is always allowed.
+ */
+public class ConnectionStateMachine {
+
+    public enum State {
+        idle,
+        scanning,
+        connecting,
+        connected,
+        configuring,
+        ranging,
+        stopping,
+        stopped
+    }
+
+    /**
+     * Called on the thread that made the transition
+     */
+    public interface StateListener {
+        void onStateChanged(State previousState, State state);
+    }
+
+    private static final State[] STATES = State.values();
+
+    // Bit n of TRANSITIONS[s] is set when moving from state s to state n is allowed
+    private static final int[] TRANSITIONS = new int[STATES.length];
+
+    static {
+        allow(State.idle, State.scanning);
+        allow(State.scanning, State.connecting);
+        allow(State.connecting, State.connected);
+        allow(State.connected, State.configuring);
+        allow(State.configuring, State.ranging, State.stopped);
+        // A restarted session is announced again with uwbDidStart
+        allow(State.ranging, State.ranging, State.stopping, State.stopped);
+        allow(State.stopping, State.stopped);
+        allow(State.stopped, State.configuring);
+
+        for (State state : STATES) {
+            allow(state, State.idle);
+        }
+    }
+
+    private final AtomicInteger state = new AtomicInteger(State.idle.ordinal());
+    private volatile StateListener stateListener = null;
+
+    private static void allow(State from, State... to) {
+        TRANSITIONS[from.ordinal()] |= maskOf(to);
+    }
+
+    /**
+     * @param states States to include
+     * @return the bit mask of the given states
+     */
+    public static int maskOf(State... states) {
+        int mask = 0;
+        for (State state : states) {
+            mask |= 1 << state.ordinal();
+        }
+
+        return mask;
+    }
+
+    public void setStateListener(StateListener stateListener) {
+        this.stateListener = stateListener;
+    }
+
+    public State getState() {
+        return STATES[state.get()];
+    }
+
+    /**
+     * Moves to the given state if the transition from the current state is allowed
+     *
+     * @param next Target state
+     * @return true if the transition was made
+     */
+    public boolean moveTo(State next) {
+        return moveTo(-1, next);
+    }
+
+    /**
+     * Moves to the given state if the current state is one of fromStates and the transition is allowed
+     *
+     * @param fromStates Bit mask of the states the transition may start from, see maskOf
+     * @param next       Target state
+     * @return true if the transition was made
+     */
+    public boolean moveTo(int fromStates, State next) {
+        int nextBit = 1 << next.ordinal();
+
+        while (true) {
+            int current = state.get();
+            if ((fromStates & (1 << current)) == 0 || (TRANSITIONS[current] & nextBit) == 0) {
+                return false;
+            }
+
+            if (state.compareAndSet(current, next.ordinal())) {
+                StateListener listener = stateListener;
+                if (listener != null && current != next.ordinal()) {
+                    listener.onStateChanged(STATES[current], next);
+                }
+
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Moves back to idle from any state
+     */
+    public void reset() {
+        moveTo(State.idle);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.oob;
+
+// Android UWB OoB protocol
+// oobTlvVersion, sent just before initialize, carries the OobTlv version supported by the phone.
+// Accessories supporting it answer initialize with uwbDeviceCapabilities instead of
+// uwbDeviceConfigurationData and get a uwbPhoneSessionConfiguration. Legacy accessories ignore it and
+// still receive the single byte initialize they expect.
+public enum MessageId {
+    // Messages from the Uwb device
+    uwbDeviceConfigurationData((byte) 0x01),
+    uwbDidStart((byte) 0x02),
+    uwbDidStop((byte) 0x03),
+    uwbDeviceCapabilities((byte) 0x04),
+
+    // Messages from the Uwb phone
+    initialize((byte) 0xA5),
+    uwbPhoneConfigurationData((byte) 0x0B),
+    stop((byte) 0x0C),
+    uwbPhoneSessionConfiguration((byte) 0x0D),
+    oobTlvVersion((byte) 0x0E);
+
+    private final byte value;
+
+    MessageId(final byte newValue) {
+        value = newValue;
+    }
+
+    public byte getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.oob;
+
+import android.util.Log;
+
+/**
+ * Dispatches the OoB messages received from the accessory to their handlers.
+ * <p>
+ * Handlers are kept in a table indexed by the message ID byte. Each entry also declares the
+ * connection states in which the message is expected and the state it leads to. Messages received
+ * in any other state are dropped, and so are unknown message IDs.
+ */
+public class OobMessageDispatcher {
+
+    private static final String TAG = OobMessageDispatcher.class.getName();
+
+    public interface MessageHandler {
+        /**
+         * @param message Full message, the payload starts after the message ID byte
+         */
+        void onMessage(byte[] message);
+    }
+
+    private final ConnectionStateMachine connectionStateMachine;
+    private final MessageHandler[] handlers = new MessageHandler[256];
+    private final int[] acceptedStates = new int[256];
+    private final ConnectionStateMachine.State[] nextStates = new ConnectionStateMachine.State[256];
+
+    public OobMessageDispatcher(ConnectionStateMachine connectionStateMachine) {
+        this.connectionStateMachine = connectionStateMachine;
+    }
+
+    /**
+     * Registers the handler of a message type
+     *
+     * @param messageId      Message ID
+     * @param acceptedStates Bit mask of the states in which the message is accepted, see ConnectionStateMachine.maskOf
+     * @param nextState      State to move to when the message is accepted
+     * @param handler        Handler to call with the message
+     */
+    public void register(MessageId messageId, int acceptedStates, ConnectionStateMachine.State nextState, MessageHandler handler) {
+        int index = messageId.getValue() & 0xFF;
+        this.acceptedStates[index] = acceptedStates;
+        this.nextStates[index] = nextState;
+        this.handlers[index] = handler;
+    }
+
+    /**
+     * Dispatches a received message
+     *
+     * @param message Received message
+     * @return true if the message was accepted and handled
+     */
+    public boolean dispatch(byte[] message) {
+        if (message == null || message.length == 0) {
+            Log.w(TAG, "Ignoring empty OoB message");
+            return false;
+        }
+
+        int index = message[0] & 0xFF;
+        MessageHandler handler = handlers[index];
+        if (handler == null) {
+            Log.w(TAG, "Ignoring unknown OoB message ID: " + index);
+            return false;
+        }
+
+        if (!connectionStateMachine.moveTo(acceptedStates[index], nextStates[index])) {
+            Log.w(TAG, "Ignoring OoB message ID " + index + " in state " + connectionStateMachine.getState());
+            return false;
+        }
+
+        handler.onMessage(message);
+        return true;
+    }
+}
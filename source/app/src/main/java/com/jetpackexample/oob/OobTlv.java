@@ -0,0 +1,232 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.oob;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Versioned TLV payload of the extended OoB messages.
+ * <p>
+ * A payload is a version byte followed by TLVs: a tag byte, a length byte and the value, integers
+ * big endian. Readers skip the tags they do not know and accept higher versions, new parameters are
+ * added as new tags without a new message or round-trip. Tags are shared by both directions.
+ */
+public final class OobTlv {
+
+    public static final byte VERSION = 1;
+
+    // Common
+    public static final int TAG_SPEC_VERSION = 0x01;
+    // 2 bytes, or 8 for an extended address
+    public static final int TAG_MAC_ADDRESS = 0x02;
+
+    // Accessory capabilities
+    public static final int TAG_CHIP_ID = 0x10;
+    public static final int TAG_CHIP_FW_VERSION = 0x11;
+    public static final int TAG_MW_VERSION = 0x12;
+    public static final int TAG_SUPPORTED_PROFILE_IDS = 0x13;
+    public static final int TAG_SUPPORTED_DEVICE_RANGING_ROLES = 0x14;
+    // Bit n set when channel n is supported
+    public static final int TAG_SUPPORTED_CHANNELS = 0x15;
+    public static final int TAG_MIN_RANGING_INTERVAL_MS = 0x16;
+
+    // Session configuration
+    public static final int TAG_SESSION_ID = 0x20;
+    public static final int TAG_CHANNEL = 0x21;
+    public static final int TAG_PREAMBLE_ID = 0x22;
+    public static final int TAG_PROFILE_ID = 0x23;
+    public static final int TAG_DEVICE_RANGING_ROLE = 0x24;
+    public static final int TAG_RANGING_INTERVAL_MS = 0x25;
+
+    private static final int MAX_VALUE_LENGTH = 0xFF;
+
+    private OobTlv() {
+    }
+
+    /**
+     * Builds a payload: version and TLVs
+     */
+    public static class Writer {
+        private final ByteBuffer buffer;
+
+        /**
+         * @param capacity Maximum size of the payload
+         */
+        public Writer(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+            buffer.put(VERSION);
+        }
+
+        public Writer putByte(int tag, byte value) {
+            header(tag, 1);
+            buffer.put(value);
+            return this;
+        }
+
+        public Writer putShort(int tag, short value) {
+            header(tag, 2);
+            buffer.putShort(value);
+            return this;
+        }
+
+        public Writer putInt(int tag, int value) {
+            header(tag, 4);
+            buffer.putInt(value);
+            return this;
+        }
+
+        public Writer putBytes(int tag, byte[] value) {
+            if (value.length > MAX_VALUE_LENGTH) {
+                throw new IllegalArgumentException("TLV value too long: " + value.length);
+            }
+
+            header(tag, value.length);
+            buffer.put(value);
+            return this;
+        }
+
+        public byte[] toByteArray() {
+            byte[] payload = new byte[buffer.position()];
+            System.arraycopy(buffer.array(), 0, payload, 0, payload.length);
+            return payload;
+        }
+
+        private void header(int tag, int length) {
+            buffer.put((byte) tag);
+            buffer.put((byte) length);
+        }
+    }
+
+    /**
+     * Iterates over the TLVs of a payload
+     * <pre>
+     * while (reader.next()) {
+     *     switch (reader.getTag()) { ... }
+     * }
+     * </pre>
+     * Getters check the value length and throw IllegalArgumentException on a mismatch.
+     */
+    public static class Reader {
+        private final ByteBuffer buffer;
+        private final int version;
+        private int tag = -1;
+        private int length = 0;
+        private int valueStart = 0;
+
+        /**
+         * @param payload Message payload, starting with the version byte
+         * @throws IllegalArgumentException if the payload is empty
+         */
+        public Reader(byte[] payload) {
+            this(payload, 0);
+        }
+
+        /**
+         * Reads the payload in place, without copying it out of its message
+         *
+         * @param message Buffer holding the payload
+         * @param offset  Start of the payload in the buffer, at the version byte
+         * @throws IllegalArgumentException if the payload is empty
+         */
+        public Reader(byte[] message, int offset) {
+            if (message == null || offset < 0 || offset >= message.length) {
+                throw new IllegalArgumentException("Empty TLV payload");
+            }
+
+            buffer = ByteBuffer.wrap(message, offset, message.length - offset);
+            version = buffer.get() & 0xFF;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * Moves to the next TLV, skipping the value of the current one if it was not read
+         *
+         * @return false at the end of the payload
+         * @throws IllegalArgumentException if the payload is truncated
+         */
+        public boolean next() {
+            if (tag >= 0) {
+                buffer.position(valueStart + length);
+            }
+
+            if (!buffer.hasRemaining()) {
+                tag = -1;
+                return false;
+            }
+
+            if (buffer.remaining() < 2) {
+                throw new IllegalArgumentException("Truncated TLV header");
+            }
+
+            tag = buffer.get() & 0xFF;
+            length = buffer.get() & 0xFF;
+            valueStart = buffer.position();
+            if (buffer.remaining() < length) {
+                throw new IllegalArgumentException("Truncated TLV value, tag " + tag);
+            }
+
+            return true;
+        }
+
+        public int getTag() {
+            return tag;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public byte getByte() {
+            expectLength(1);
+            return buffer.get(valueStart);
+        }
+
+        public short getShort() {
+            expectLength(2);
+            return buffer.getShort(valueStart);
+        }
+
+        public int getInt() {
+            expectLength(4);
+            return buffer.getInt(valueStart);
+        }
+
+        public byte[] getBytes() {
+            byte[] value = new byte[length];
+            System.arraycopy(buffer.array(), valueStart, value, 0, length);
+            return value;
+        }
+
+        /**
+         * @param expectedLength Required value length
+         * @return the value
+         */
+        public byte[] getBytes(int expectedLength) {
+            expectLength(expectedLength);
+            return getBytes();
+        }
+
+        private void expectLength(int expectedLength) {
+            if (length != expectedLength) {
+                throw new IllegalArgumentException("Invalid length " + length + " for tag " + tag);
+            }
+        }
+    }
+}
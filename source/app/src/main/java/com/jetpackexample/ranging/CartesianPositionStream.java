@@ -0,0 +1,137 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import androidx.core.uwb.UwbDevice;
+
+/**
+ * Converts each ranging sample (distance, azimuth, elevation) into a vector in the device frame
+ * and publishes it to the registered listeners.
+ * <p>
+ * Device frame: x points to the right of the phone, y up, z in the pointing direction.
+ * Positive azimuth is to the right, positive elevation is up. A missing elevation is taken as 0.
+ * <p>
+ * Sines and cosines come from a table with 0.1 degree resolution, so the conversion costs a few
+ * multiplications and nothing is allocated per sample.
+ */
+public class CartesianPositionStream {
+
+    private static final int TABLE_STEPS_PER_DEGREE = 10;
+    private static final int TABLE_SIZE = 360 * TABLE_STEPS_PER_DEGREE;
+    private static final float[] SIN_TABLE = new float[TABLE_SIZE + 1];
+
+    static {
+        for (int i = 0; i <= TABLE_SIZE; i++) {
+            SIN_TABLE[i] = (float) Math.sin(Math.toRadians((double) i / TABLE_STEPS_PER_DEGREE));
+        }
+    }
+
+    public interface PositionListener {
+        /**
+         * @param device               Ranging peer
+         * @param elapsedRealtimeNanos Time of the measurement
+         * @param x                    Right (m)
+         * @param y                    Up (m)
+         * @param z                    Forward (m)
+         */
+        void onPosition(UwbDevice device, long elapsedRealtimeNanos, float x, float y, float z);
+    }
+
+    private volatile PositionListener[] listeners = new PositionListener[0];
+
+    public synchronized void addListener(PositionListener listener) {
+        PositionListener[] current = listeners;
+        PositionListener[] updated = new PositionListener[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = listener;
+        listeners = updated;
+    }
+
+    public synchronized void removeListener(PositionListener listener) {
+        PositionListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                PositionListener[] updated = new PositionListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                listeners = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Converts and publishes a ranging sample, anything else than a position with distance is ignored
+     *
+     * @param rangingSample Ranging sample of the UWB session
+     */
+    public void onRangingSample(RangingSample rangingSample) {
+        if (rangingSample.getType() != RangingSample.Type.position || !rangingSample.hasDistance()) {
+            return;
+        }
+
+        PositionListener[] current = listeners;
+        if (current.length == 0) {
+            return;
+        }
+
+        float distance = rangingSample.getDistance();
+        float azimuth = rangingSample.hasAzimuth() ? rangingSample.getAzimuth() : 0;
+        float elevation = rangingSample.hasElevation() ? rangingSample.getElevation() : 0;
+
+        float cosElevation = cos(elevation);
+        float x = distance * cosElevation * sin(azimuth);
+        float y = distance * sin(elevation);
+        float z = distance * cosElevation * cos(azimuth);
+
+        for (PositionListener listener : current) {
+            listener.onPosition(rangingSample.getDevice(), rangingSample.getElapsedRealtimeNanos(), x, y, z);
+        }
+    }
+
+    /**
+     * Table based sine with linear interpolation
+     *
+     * @param degrees Angle in degrees
+     * @return the sine of the angle
+     */
+    public static float sin(float degrees) {
+        float steps = (degrees % 360f) * TABLE_STEPS_PER_DEGREE;
+        if (steps < 0) {
+            steps += TABLE_SIZE;
+        }
+
+        int index = (int) steps;
+        if (index >= TABLE_SIZE) {
+            index -= TABLE_SIZE;
+            steps -= TABLE_SIZE;
+        }
+
+        float fraction = steps - index;
+        return SIN_TABLE[index] + (SIN_TABLE[index + 1] - SIN_TABLE[index]) * fraction;
+    }
+
+    /**
+     * Table based cosine with linear interpolation
+     *
+     * @param degrees Angle in degrees
+     * @return the cosine of the angle
+     */
+    public static float cos(float degrees) {
+        return sin(degrees + 90f);
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import androidx.core.uwb.UwbDevice;
+
+/**
+ * Computes enter, exit and dwell events of tags against named rectangular zones.
+ * <p>
+ * Zones are indexed in a uniform grid built once by build(), so each sample is only tested against
+ * the zones overlapping its grid cell plus the zones the tag is currently in. A tag enters a zone
+ * when it is inside the rectangle and exits when it leaves the rectangle grown by the zone
+ * hysteresis margin. A dwell event is reported once per stay after the zone dwell time.
+ * <p>
+ * Events are delivered on the thread feeding the samples, which for ranging results is the UWB
+ * session thread and never the UI thread. Zones must be added and built before feeding samples,
+ * after that the engine does not allocate.
+ */
+public class GeofenceEngine implements CartesianPositionStream.PositionListener {
+
+    // Bounds the grid memory when zones are spread over a large area
+    static final int MAX_GRID_CELLS = 1 << 16;
+
+    public enum ZoneEvent {
+        enter,
+        exit,
+        dwell
+    }
+
+    public interface GeofenceListener {
+        void onZoneEvent(int tagIndex, int zoneIndex, String zoneName, ZoneEvent event, long timestampMs);
+    }
+
+    private final int maxZones;
+    private final int maxTags;
+    private final float configuredCellSize;
+    private GeofenceListener geofenceListener;
+
+    // Zones
+    private final String[] zoneNames;
+    private final float[] zoneMinX;
+    private final float[] zoneMinY;
+    private final float[] zoneMaxX;
+    private final float[] zoneMaxY;
+    private final float[] zoneHysteresis;
+    private final long[] zoneDwellMs;
+    private int zoneCount = 0;
+
+    // Grid index, zones of cell c are cellZones[cellStart[c] .. cellStart[c + 1] - 1]
+    private float gridMinX;
+    private float gridMinY;
+    private float cellSize;
+    private int gridColumns;
+    private int gridRows;
+    private int[] cellStart = null;
+    private int[] cellZones = null;
+
+    // Per tag state, indexed by tagIndex * maxZones + zoneIndex
+    private final boolean[] inside;
+    private final long[] enteredAt;
+    private final boolean[] dwellReported;
+    private final int[] activeZones;
+    private final int[] activeCount;
+
+    // Tags registered through the position stream
+    private final UwbDevice[] tagDevices;
+    private int tagCount = 0;
+
+    /**
+     * @param maxZones Maximum number of zones
+     * @param maxTags  Maximum number of tags tracked at the same time
+     * @param cellSize Grid cell size (m), typically the size of a typical zone
+     */
+    public GeofenceEngine(int maxZones, int maxTags, float cellSize) {
+        if (maxZones <= 0 || maxTags <= 0 || cellSize <= 0) {
+            throw new IllegalArgumentException("Invalid geofence dimensions");
+        }
+
+        this.maxZones = maxZones;
+        this.maxTags = maxTags;
+        this.configuredCellSize = cellSize;
+
+        zoneNames = new String[maxZones];
+        zoneMinX = new float[maxZones];
+        zoneMinY = new float[maxZones];
+        zoneMaxX = new float[maxZones];
+        zoneMaxY = new float[maxZones];
+        zoneHysteresis = new float[maxZones];
+        zoneDwellMs = new long[maxZones];
+
+        inside = new boolean[maxTags * maxZones];
+        enteredAt = new long[maxTags * maxZones];
+        dwellReported = new boolean[maxTags * maxZones];
+        activeZones = new int[maxTags * maxZones];
+        activeCount = new int[maxTags];
+
+        tagDevices = new UwbDevice[maxTags];
+    }
+
+    public void setGeofenceListener(GeofenceListener geofenceListener) {
+        this.geofenceListener = geofenceListener;
+    }
+
+    /**
+     * Adds a rectangular zone
+     *
+     * @param name       Zone name reported with its events
+     * @param minX       Left edge (m)
+     * @param minY       Bottom edge (m)
+     * @param maxX       Right edge (m)
+     * @param maxY       Top edge (m)
+     * @param hysteresis Distance (m) a tag must move out of the zone before it exits
+     * @param dwellMs    Time inside the zone before a dwell event, 0 to disable
+     * @return the zone index
+     */
+    public int addZone(String name, float minX, float minY, float maxX, float maxY, float hysteresis, long dwellMs) {
+        if (zoneCount == maxZones) {
+            throw new IllegalStateException("Too many zones");
+        }
+
+        if (minX > maxX || minY > maxY || hysteresis < 0) {
+            throw new IllegalArgumentException("Invalid zone " + name);
+        }
+
+        zoneNames[zoneCount] = name;
+        zoneMinX[zoneCount] = minX;
+        zoneMinY[zoneCount] = minY;
+        zoneMaxX[zoneCount] = maxX;
+        zoneMaxY[zoneCount] = maxY;
+        zoneHysteresis[zoneCount] = hysteresis;
+        zoneDwellMs[zoneCount] = dwellMs;
+        cellStart = null;
+        return zoneCount++;
+    }
+
+    public int getZoneCount() {
+        return zoneCount;
+    }
+
+    /**
+     * @return the cell size (m) of the built grid, larger than the configured one if the zones
+     * would have needed more than MAX_GRID_CELLS cells
+     */
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * @return the number of cells of the built grid
+     */
+    int getGridCellCount() {
+        return gridColumns * gridRows;
+    }
+
+    /**
+     * Builds the grid index, to be called after the zones have been added
+     */
+    public void build() {
+        if (zoneCount == 0) {
+            throw new IllegalStateException("No zones");
+        }
+
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (int zone = 0; zone < zoneCount; zone++) {
+            minX = Math.min(minX, zoneMinX[zone] - zoneHysteresis[zone]);
+            minY = Math.min(minY, zoneMinY[zone] - zoneHysteresis[zone]);
+            maxX = Math.max(maxX, zoneMaxX[zone] + zoneHysteresis[zone]);
+            maxY = Math.max(maxY, zoneMaxY[zone] + zoneHysteresis[zone]);
+        }
+
+        // Grow the cells if the area would need too many of them, starting from the configured size on each build
+        float effectiveCellSize = configuredCellSize;
+        while (((long) cellsFor(maxX - minX, effectiveCellSize)) * cellsFor(maxY - minY, effectiveCellSize) > MAX_GRID_CELLS) {
+            effectiveCellSize *= 2;
+        }
+
+        gridMinX = minX;
+        gridMinY = minY;
+        cellSize = effectiveCellSize;
+        gridColumns = cellsFor(maxX - minX, effectiveCellSize);
+        gridRows = cellsFor(maxY - minY, effectiveCellSize);
+
+        // Count the zones of each cell, then fill them in
+        int[] counts = new int[gridColumns * gridRows + 1];
+        for (int zone = 0; zone < zoneCount; zone++) {
+            for (int row = rowOf(zoneMinY[zone] - zoneHysteresis[zone]); row <= rowOf(zoneMaxY[zone] + zoneHysteresis[zone]); row++) {
+                for (int column = columnOf(zoneMinX[zone] - zoneHysteresis[zone]); column <= columnOf(zoneMaxX[zone] + zoneHysteresis[zone]); column++) {
+                    counts[row * gridColumns + column + 1]++;
+                }
+            }
+        }
+
+        for (int cell = 1; cell < counts.length; cell++) {
+            counts[cell] += counts[cell - 1];
+        }
+
+        int[] zones = new int[counts[counts.length - 1]];
+        int[] next = new int[gridColumns * gridRows];
+        System.arraycopy(counts, 0, next, 0, next.length);
+        for (int zone = 0; zone < zoneCount; zone++) {
+            for (int row = rowOf(zoneMinY[zone] - zoneHysteresis[zone]); row <= rowOf(zoneMaxY[zone] + zoneHysteresis[zone]); row++) {
+                for (int column = columnOf(zoneMinX[zone] - zoneHysteresis[zone]); column <= columnOf(zoneMaxX[zone] + zoneHysteresis[zone]); column++) {
+                    zones[next[row * gridColumns + column]++] = zone;
+                }
+            }
+        }
+
+        cellStart = counts;
+        cellZones = zones;
+    }
+
+    /**
+     * Forgets the zones every tag is in, without reporting exits
+     */
+    public void reset() {
+        for (int i = 0; i < inside.length; i++) {
+            inside[i] = false;
+            dwellReported[i] = false;
+        }
+
+        for (int tag = 0; tag < maxTags; tag++) {
+            activeCount[tag] = 0;
+        }
+    }
+
+    /**
+     * Evaluates a new position of a tag
+     *
+     * @param tagIndex    Tag index, between 0 and maxTags - 1
+     * @param timestampMs Time of the sample (ms)
+     * @param x           Tag x coordinate (m)
+     * @param y           Tag y coordinate (m)
+     */
+    public void update(int tagIndex, long timestampMs, float x, float y) {
+        if (cellStart == null) {
+            throw new IllegalStateException("Geofence not built");
+        }
+
+        if (tagIndex < 0 || tagIndex >= maxTags) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        int base = tagIndex * maxZones;
+
+        // Exits and dwell of the zones the tag is in
+        for (int i = activeCount[tagIndex] - 1; i >= 0; i--) {
+            int zone = activeZones[base + i];
+            if (!contains(zone, x, y, zoneHysteresis[zone])) {
+                inside[base + zone] = false;
+                activeZones[base + i] = activeZones[base + --activeCount[tagIndex]];
+                notify(tagIndex, zone, ZoneEvent.exit, timestampMs);
+            } else if (zoneDwellMs[zone] > 0 && !dwellReported[base + zone]
+                    && timestampMs - enteredAt[base + zone] >= zoneDwellMs[zone]) {
+                dwellReported[base + zone] = true;
+                notify(tagIndex, zone, ZoneEvent.dwell, timestampMs);
+            }
+        }
+
+        // Enters, only the zones of the tag cell are candidates
+        if (x < gridMinX || y < gridMinY) {
+            return;
+        }
+
+        int column = (int) ((x - gridMinX) / cellSize);
+        int row = (int) ((y - gridMinY) / cellSize);
+        if (column >= gridColumns || row >= gridRows) {
+            return;
+        }
+
+        int cell = row * gridColumns + column;
+        for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+            int zone = cellZones[k];
+            if (!inside[base + zone] && contains(zone, x, y, 0)) {
+                inside[base + zone] = true;
+                enteredAt[base + zone] = timestampMs;
+                dwellReported[base + zone] = false;
+                activeZones[base + activeCount[tagIndex]++] = zone;
+                notify(tagIndex, zone, ZoneEvent.enter, timestampMs);
+            }
+        }
+    }
+
+    /**
+     * Feeds device frame positions, using the horizontal plane (x to the right, z forward).
+     * Peers are assigned tag indexes in order of appearance.
+     */
+    @Override
+    public void onPosition(UwbDevice device, long elapsedRealtimeNanos, float x, float y, float z) {
+        int tagIndex = tagIndexOf(device);
+        if (tagIndex >= 0) {
+            update(tagIndex, elapsedRealtimeNanos / 1000000L, x, z);
+        }
+    }
+
+    private int tagIndexOf(UwbDevice device) {
+        for (int tag = 0; tag < tagCount; tag++) {
+            if (tagDevices[tag].equals(device)) {
+                return tag;
+            }
+        }
+
+        if (tagCount == maxTags) {
+            return -1;
+        }
+
+        tagDevices[tagCount] = device;
+        return tagCount++;
+    }
+
+    private boolean contains(int zone, float x, float y, float margin) {
+        return x >= zoneMinX[zone] - margin && x <= zoneMaxX[zone] + margin
+                && y >= zoneMinY[zone] - margin && y <= zoneMaxY[zone] + margin;
+    }
+
+    private void notify(int tagIndex, int zone, ZoneEvent event, long timestampMs) {
+        if (geofenceListener != null) {
+            geofenceListener.onZoneEvent(tagIndex, zone, zoneNames[zone], event, timestampMs);
+        }
+    }
+
+    private static int cellsFor(float length, float cellSize) {
+        return Math.max(1, (int) (length / cellSize) + 1);
+    }
+
+    private int columnOf(float x) {
+        return Math.min(gridColumns - 1, Math.max(0, (int) ((x - gridMinX) / cellSize)));
+    }
+
+    private int rowOf(float y) {
+        return Math.min(gridRows - 1, Math.max(0, (int) ((y - gridMinY) / cellSize)));
+    }
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+/**
+ * Estimates a 2D or 3D position from the distances to several anchors at known coordinates
+ * using Gauss-Newton least squares.
+ * <p>
+ * Distances are fed one at a time as they arrive and the position is refined starting from the
+ * previous solution, so that a handful of iterations is enough per update. All solver state is
+ * kept in preallocated primitive arrays, no allocation happens after construction. An update that
+ * does not converge within MAX_ITERATIONS is not reported as a position.
+ * <p>
+ * In 3D, when the anchors in use are coplanar (e.g. all mounted at the same height) the normal
+ * equations are singular across the plane. The position is then solved in 2D within the anchor
+ * plane, its distance to the plane being estimated from the residual ranges. Which side of the plane
+ * cannot be observed, the side of the previous solution is kept, the side towards +z initially.
+ * <p>
+ * This class is not thread safe, it is meant to be fed from a single ranging thread.
+ */
+public class MultilaterationEngine {
+
+    private static final int MAX_ITERATIONS = 10;
+    private static final double CONVERGENCE_THRESHOLD = 1e-4;
+    // Small Levenberg damping keeps the normal matrix invertible with poorly spread anchors
+    private static final double DAMPING = 1e-6;
+    private static final double MIN_RANGE = 1e-9;
+    // Anchors closer than this to a common plane are solved in that plane (m)
+    private static final double COPLANAR_TOLERANCE = 0.01;
+
+    private final int dimensions;
+    private final long maxSampleAgeMs;
+
+    // Anchors
+    private final double[] anchorX;
+    private final double[] anchorY;
+    private final double[] anchorZ;
+    private int anchorCount = 0;
+
+    // Latest distance per anchor
+    private final double[] distances;
+    private final long[] timestamps;
+    private final boolean[] hasDistance;
+
+    // Indexes of the anchors used by the current solve
+    private final int[] used;
+    private int usedCount = 0;
+
+    // Coordinates of the anchors in use in the solver frame, which is the anchor plane when planar
+    private final double[] solverX;
+    private final double[] solverY;
+    private final double[] solverZ;
+    private int solverDimensions;
+    private boolean planar = false;
+
+    // Anchor plane: origin, in-plane axes and normal
+    private final double[] planeOrigin = new double[3];
+    private final double[] planeU = new double[3];
+    private final double[] planeV = new double[3];
+    private final double[] planeNormal = new double[3];
+
+    // Position in the solver frame, distance to the anchor plane when planar
+    private double solverPositionX;
+    private double solverPositionY;
+    private double solverPositionZ;
+    private double height;
+
+    // Normal equations (J^T J) delta = -J^T r
+    private final double[] normal = new double[9];
+    private final double[] gradient = new double[3];
+    private final double[] delta = new double[3];
+
+    // Solution
+    private double x;
+    private double y;
+    private double z;
+    private boolean solved = false;
+    private double rmsResidual = Double.NaN;
+    private double maxResidual = Double.NaN;
+    private int iterations = 0;
+    private long solutionTimestamp = 0;
+
+    /**
+     * @param dimensions     2 for a planar position, 3 for a 3D position
+     * @param maxAnchors     Maximum number of anchors that can be registered
+     * @param maxSampleAgeMs Distances older than this relative to the newest one are not used
+     */
+    public MultilaterationEngine(int dimensions, int maxAnchors, long maxSampleAgeMs) {
+        if (dimensions != 2 && dimensions != 3) {
+            throw new IllegalArgumentException("Invalid dimensions");
+        }
+
+        if (maxAnchors <= dimensions) {
+            throw new IllegalArgumentException("At least " + (dimensions + 1) + " anchors are required");
+        }
+
+        this.dimensions = dimensions;
+        this.maxSampleAgeMs = maxSampleAgeMs;
+        this.anchorX = new double[maxAnchors];
+        this.anchorY = new double[maxAnchors];
+        this.anchorZ = new double[maxAnchors];
+        this.distances = new double[maxAnchors];
+        this.timestamps = new long[maxAnchors];
+        this.hasDistance = new boolean[maxAnchors];
+        this.used = new int[maxAnchors];
+        this.solverX = new double[maxAnchors];
+        this.solverY = new double[maxAnchors];
+        this.solverZ = new double[maxAnchors];
+    }
+
+    /**
+     * Registers an anchor
+     *
+     * @param x Anchor x coordinate (m)
+     * @param y Anchor y coordinate (m)
+     * @param z Anchor z coordinate (m), ignored in 2D
+     * @return the anchor index to be used with updateDistance
+     */
+    public int addAnchor(double x, double y, double z) {
+        if (anchorCount == anchorX.length) {
+            throw new IllegalStateException("Too many anchors");
+        }
+
+        anchorX[anchorCount] = x;
+        anchorY[anchorCount] = y;
+        anchorZ[anchorCount] = dimensions == 3 ? z : 0;
+        return anchorCount++;
+    }
+
+    public int getAnchorCount() {
+        return anchorCount;
+    }
+
+    /**
+     * Forgets all distances and the current solution, anchors are kept
+     */
+    public void reset() {
+        for (int i = 0; i < anchorCount; i++) {
+            hasDistance[i] = false;
+        }
+
+        solved = false;
+        rmsResidual = Double.NaN;
+        maxResidual = Double.NaN;
+        iterations = 0;
+    }
+
+    /**
+     * Records a new distance to an anchor and refines the position
+     *
+     * @param anchorIndex Index returned by addAnchor
+     * @param distance    Measured distance (m)
+     * @param timestampMs Measurement time (ms)
+     * @return true if a position could be computed and converged
+     */
+    public boolean updateDistance(int anchorIndex, double distance, long timestampMs) {
+        if (anchorIndex < 0 || anchorIndex >= anchorCount) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        distances[anchorIndex] = distance;
+        timestamps[anchorIndex] = timestampMs;
+        hasDistance[anchorIndex] = true;
+
+        return solve(timestampMs);
+    }
+
+    private boolean solve(long now) {
+        usedCount = 0;
+        for (int i = 0; i < anchorCount; i++) {
+            if (hasDistance[i] && now - timestamps[i] <= maxSampleAgeMs) {
+                used[usedCount++] = i;
+            }
+        }
+
+        if (usedCount <= dimensions) {
+            // Too few recent anchors left, e.g. after they aged out: the previous fix no longer holds
+            invalidate();
+            return false;
+        }
+
+        planar = dimensions == 3 && findAnchorPlane();
+        solverDimensions = planar ? 2 : dimensions;
+        toSolverFrame();
+
+        int iteration = 0;
+        boolean converged = false;
+        while (iteration < MAX_ITERATIONS) {
+            iteration++;
+            buildNormalEquations();
+            if (!solveNormalEquations()) {
+                invalidate();
+                return false;
+            }
+
+            solverPositionX += delta[0];
+            solverPositionY += delta[1];
+            solverPositionZ += delta[2];
+
+            double step = delta[0] * delta[0] + delta[1] * delta[1] + delta[2] * delta[2];
+            if (planar) {
+                double previousHeight = height;
+                height = estimateHeight();
+                step += (height - previousHeight) * (height - previousHeight);
+            }
+
+            if (step < CONVERGENCE_THRESHOLD * CONVERGENCE_THRESHOLD) {
+                converged = true;
+                break;
+            }
+        }
+
+        iterations = iteration;
+        if (!converged) {
+            // Start over from the centroid rather than from a diverging estimate
+            invalidate();
+            return false;
+        }
+
+        fromSolverFrame();
+        computeResiduals();
+        solutionTimestamp = now;
+        solved = true;
+        return true;
+    }
+
+    /**
+     * Drops the current solution, its residuals were computed over anchors that are no longer in use
+     */
+    private void invalidate() {
+        solved = false;
+        rmsResidual = Double.NaN;
+        maxResidual = Double.NaN;
+    }
+
+    /**
+     * Checks whether the anchors in use lie in a common plane and if so computes its frame
+     *
+     * @return true if the anchors are coplanar but not collinear
+     */
+    private boolean findAnchorPlane() {
+        int origin = used[0];
+        planeOrigin[0] = anchorX[origin];
+        planeOrigin[1] = anchorY[origin];
+        planeOrigin[2] = anchorZ[origin];
+
+        // First axis towards the farthest anchor
+        double best = 0;
+        for (int k = 1; k < usedCount; k++) {
+            int a = used[k];
+            double dx = anchorX[a] - planeOrigin[0];
+            double dy = anchorY[a] - planeOrigin[1];
+            double dz = anchorZ[a] - planeOrigin[2];
+            double length = dx * dx + dy * dy + dz * dz;
+            if (length > best) {
+                best = length;
+                planeU[0] = dx;
+                planeU[1] = dy;
+                planeU[2] = dz;
+            }
+        }
+
+        if (best < COPLANAR_TOLERANCE * COPLANAR_TOLERANCE) {
+            return false;
+        }
+        normalize(planeU);
+
+        // Normal from the anchor farthest from the first axis
+        best = 0;
+        for (int k = 1; k < usedCount; k++) {
+            int a = used[k];
+            double dx = anchorX[a] - planeOrigin[0];
+            double dy = anchorY[a] - planeOrigin[1];
+            double dz = anchorZ[a] - planeOrigin[2];
+            double nx = planeU[1] * dz - planeU[2] * dy;
+            double ny = planeU[2] * dx - planeU[0] * dz;
+            double nz = planeU[0] * dy - planeU[1] * dx;
+            double length = nx * nx + ny * ny + nz * nz;
+            if (length > best) {
+                best = length;
+                planeNormal[0] = nx;
+                planeNormal[1] = ny;
+                planeNormal[2] = nz;
+            }
+        }
+
+        if (best < COPLANAR_TOLERANCE * COPLANAR_TOLERANCE) {
+            // Collinear, no plane to solve in
+            return false;
+        }
+        normalize(planeNormal);
+
+        for (int k = 1; k < usedCount; k++) {
+            int a = used[k];
+            double distance = (anchorX[a] - planeOrigin[0]) * planeNormal[0]
+                    + (anchorY[a] - planeOrigin[1]) * planeNormal[1]
+                    + (anchorZ[a] - planeOrigin[2]) * planeNormal[2];
+            if (Math.abs(distance) > COPLANAR_TOLERANCE) {
+                return false;
+            }
+        }
+
+        if (planeNormal[2] < 0) {
+            planeNormal[0] = -planeNormal[0];
+            planeNormal[1] = -planeNormal[1];
+            planeNormal[2] = -planeNormal[2];
+        }
+
+        planeV[0] = planeNormal[1] * planeU[2] - planeNormal[2] * planeU[1];
+        planeV[1] = planeNormal[2] * planeU[0] - planeNormal[0] * planeU[2];
+        planeV[2] = planeNormal[0] * planeU[1] - planeNormal[1] * planeU[0];
+        return true;
+    }
+
+    private static void normalize(double[] vector) {
+        double length = Math.sqrt(vector[0] * vector[0] + vector[1] * vector[1] + vector[2] * vector[2]);
+        vector[0] /= length;
+        vector[1] /= length;
+        vector[2] /= length;
+    }
+
+    /**
+     * Computes the anchor coordinates and the starting position in the solver frame, the previous
+     * solution if any, else the centroid of the anchors in use
+     */
+    private void toSolverFrame() {
+        for (int k = 0; k < usedCount; k++) {
+            int a = used[k];
+            if (planar) {
+                double dx = anchorX[a] - planeOrigin[0];
+                double dy = anchorY[a] - planeOrigin[1];
+                double dz = anchorZ[a] - planeOrigin[2];
+                solverX[k] = dx * planeU[0] + dy * planeU[1] + dz * planeU[2];
+                solverY[k] = dx * planeV[0] + dy * planeV[1] + dz * planeV[2];
+                solverZ[k] = 0;
+            } else {
+                solverX[k] = anchorX[a];
+                solverY[k] = anchorY[a];
+                solverZ[k] = anchorZ[a];
+            }
+        }
+
+        if (solved) {
+            if (planar) {
+                double dx = x - planeOrigin[0];
+                double dy = y - planeOrigin[1];
+                double dz = z - planeOrigin[2];
+                solverPositionX = dx * planeU[0] + dy * planeU[1] + dz * planeU[2];
+                solverPositionY = dx * planeV[0] + dy * planeV[1] + dz * planeV[2];
+                solverPositionZ = 0;
+                // Signed, keeps the side of the previous solution
+                height = dx * planeNormal[0] + dy * planeNormal[1] + dz * planeNormal[2];
+            } else {
+                solverPositionX = x;
+                solverPositionY = y;
+                solverPositionZ = z;
+                height = 0;
+            }
+            return;
+        }
+
+        solverPositionX = 0;
+        solverPositionY = 0;
+        solverPositionZ = 0;
+        for (int k = 0; k < usedCount; k++) {
+            solverPositionX += solverX[k];
+            solverPositionY += solverY[k];
+            solverPositionZ += solverZ[k];
+        }
+        solverPositionX /= usedCount;
+        solverPositionY /= usedCount;
+        solverPositionZ /= usedCount;
+        height = 0;
+    }
+
+    private void fromSolverFrame() {
+        if (!planar) {
+            x = solverPositionX;
+            y = solverPositionY;
+            z = solverPositionZ;
+            return;
+        }
+
+        x = planeOrigin[0] + solverPositionX * planeU[0] + solverPositionY * planeV[0] + height * planeNormal[0];
+        y = planeOrigin[1] + solverPositionX * planeU[1] + solverPositionY * planeV[1] + height * planeNormal[1];
+        z = planeOrigin[2] + solverPositionX * planeU[2] + solverPositionY * planeV[2] + height * planeNormal[2];
+    }
+
+    /**
+     * @return the distance to the anchor plane best explaining the ranges of the in-plane position,
+     * with the sign of the current estimate
+     */
+    private double estimateHeight() {
+        double sum = 0;
+        for (int k = 0; k < usedCount; k++) {
+            double dx = solverPositionX - solverX[k];
+            double dy = solverPositionY - solverY[k];
+            double distance = distances[used[k]];
+            sum += distance * distance - dx * dx - dy * dy;
+        }
+
+        double squared = sum / usedCount;
+        double estimate = squared > 0 ? Math.sqrt(squared) : 0;
+        return height < 0 ? -estimate : estimate;
+    }
+
+    private void buildNormalEquations() {
+        for (int i = 0; i < 9; i++) {
+            normal[i] = 0;
+        }
+        gradient[0] = 0;
+        gradient[1] = 0;
+        gradient[2] = 0;
+
+        for (int k = 0; k < usedCount; k++) {
+            double dx = solverPositionX - solverX[k];
+            double dy = solverPositionY - solverY[k];
+            double dz = solverDimensions == 3 ? solverPositionZ - solverZ[k] : 0;
+            double range = Math.sqrt(dx * dx + dy * dy + dz * dz + height * height);
+            if (range < MIN_RANGE) {
+                range = MIN_RANGE;
+            }
+
+            // Jacobian row of the residual range - distance
+            double jx = dx / range;
+            double jy = dy / range;
+            double jz = dz / range;
+            double r = range - distances[used[k]];
+
+            normal[0] += jx * jx;
+            normal[1] += jx * jy;
+            normal[2] += jx * jz;
+            normal[4] += jy * jy;
+            normal[5] += jy * jz;
+            normal[8] += jz * jz;
+
+            gradient[0] -= jx * r;
+            gradient[1] -= jy * r;
+            gradient[2] -= jz * r;
+        }
+
+        normal[3] = normal[1];
+        normal[6] = normal[2];
+        normal[7] = normal[5];
+
+        normal[0] += DAMPING;
+        normal[4] += DAMPING;
+        normal[8] += DAMPING;
+    }
+
+    private boolean solveNormalEquations() {
+        if (solverDimensions == 2) {
+            double det = normal[0] * normal[4] - normal[1] * normal[3];
+            if (Math.abs(det) < 1e-12) {
+                return false;
+            }
+
+            delta[0] = (gradient[0] * normal[4] - normal[1] * gradient[1]) / det;
+            delta[1] = (normal[0] * gradient[1] - gradient[0] * normal[3]) / det;
+            delta[2] = 0;
+            return true;
+        }
+
+        // Cramer's rule on the symmetric 3x3 system
+        double c0 = normal[4] * normal[8] - normal[5] * normal[7];
+        double c1 = normal[3] * normal[8] - normal[5] * normal[6];
+        double c2 = normal[3] * normal[7] - normal[4] * normal[6];
+        double det = normal[0] * c0 - normal[1] * c1 + normal[2] * c2;
+        if (Math.abs(det) < 1e-12) {
+            return false;
+        }
+
+        delta[0] = (gradient[0] * c0
+                - normal[1] * (gradient[1] * normal[8] - normal[5] * gradient[2])
+                + normal[2] * (gradient[1] * normal[7] - normal[4] * gradient[2])) / det;
+        delta[1] = (normal[0] * (gradient[1] * normal[8] - normal[5] * gradient[2])
+                - gradient[0] * c1
+                + normal[2] * (normal[3] * gradient[2] - gradient[1] * normal[6])) / det;
+        delta[2] = (normal[0] * (normal[4] * gradient[2] - gradient[1] * normal[7])
+                - normal[1] * (normal[3] * gradient[2] - gradient[1] * normal[6])
+                + gradient[0] * c2) / det;
+        return true;
+    }
+
+    private void computeResiduals() {
+        double sum = 0;
+        double max = 0;
+        for (int k = 0; k < usedCount; k++) {
+            int a = used[k];
+            double dx = x - anchorX[a];
+            double dy = y - anchorY[a];
+            double dz = dimensions == 3 ? z - anchorZ[a] : 0;
+            double r = Math.abs(Math.sqrt(dx * dx + dy * dy + dz * dz) - distances[a]);
+            sum += r * r;
+            if (r > max) {
+                max = r;
+            }
+        }
+
+        rmsResidual = Math.sqrt(sum / usedCount);
+        maxResidual = max;
+    }
+
+    public boolean isSolved() {
+        return solved;
+    }
+
+    /**
+     * @return true if the current solution was solved within the plane of coplanar anchors, its
+     * side of the plane is then assumed
+     */
+    public boolean isPlanar() {
+        return solved && planar;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getZ() {
+        return dimensions == 3 ? z : 0;
+    }
+
+    /**
+     * @return root mean square of the range residuals (m) of the current solution
+     */
+    public double getRmsResidual() {
+        return rmsResidual;
+    }
+
+    /**
+     * @return largest absolute range residual (m) of the current solution
+     */
+    public double getMaxResidual() {
+        return maxResidual;
+    }
+
+    /**
+     * @return number of anchors used by the current solution
+     */
+    public int getAnchorsUsed() {
+        return solved ? usedCount : 0;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public long getSolutionTimestamp() {
+        return solutionTimestamp;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates proximity rules ("within X m of the accessory and pointing at it") on the ranging
+ * results of one accessory and reports when each rule becomes active or inactive.
+ * <p>
+ * Every rule has separate enter and exit thresholds for distance and pointing cone, so that a tag
+ * sitting on a threshold does not toggle the rule. A rule only changes state once the new state
+ * held for debounceSamples consecutive samples, and on enter also for dwellMs.
+ * <p>
+ * Rules are compiled once into flat arrays, evaluate() does not allocate. The time from the
+ * measurement to the trigger is tracked as the firing latency, whether a listener is set or not;
+ * the latency metrics may be read from any thread.
+ * <p>
+ * Rules may be added and compiled from any thread, each compile() publishes a new set of compiled
+ * rules that evaluate() picks up on its next sample. evaluate() itself must be called from a single
+ * thread, which owns the rule state.
+ */
+public class ProximityRuleEngine {
+
+    public static final float ANY_DISTANCE = Float.POSITIVE_INFINITY;
+    public static final float ANY_ANGLE = 180f;
+
+    public interface ProximityRuleListener {
+        /**
+         * @param ruleIndex    Index returned by addRule
+         * @param ruleName     Rule name
+         * @param active       true when the rule becomes active, false when it becomes inactive
+         * @param latencyNanos Time from the measurement to this callback
+         */
+        void onProximityRuleChanged(int ruleIndex, String ruleName, boolean active, long latencyNanos);
+    }
+
+    public static class Rule {
+        private final String name;
+        private final float enterDistance;
+        private final float exitDistance;
+        private final float enterConeAngle;
+        private final float exitConeAngle;
+        private final long dwellMs;
+        private final int debounceSamples;
+
+        /**
+         * @param name            Rule name reported with its events
+         * @param enterDistance   Distance (m) below which the rule may become active, or ANY_DISTANCE
+         * @param exitDistance    Distance (m) above which the rule becomes inactive, at least enterDistance
+         * @param enterConeAngle  Half angle (degrees) of the pointing cone to become active, or ANY_ANGLE
+         * @param exitConeAngle   Half angle (degrees) of the pointing cone to stay active, at least enterConeAngle
+         * @param dwellMs         Time the enter condition must hold before the rule becomes active
+         * @param debounceSamples Consecutive samples needed for any state change, at least 1
+         */
+        public Rule(String name, float enterDistance, float exitDistance, float enterConeAngle, float exitConeAngle, long dwellMs, int debounceSamples) {
+            if (exitDistance < enterDistance || exitConeAngle < enterConeAngle || dwellMs < 0 || debounceSamples < 1) {
+                throw new IllegalArgumentException("Invalid rule " + name);
+            }
+
+            this.name = name;
+            this.enterDistance = enterDistance;
+            this.exitDistance = exitDistance;
+            this.enterConeAngle = enterConeAngle;
+            this.exitConeAngle = exitConeAngle;
+            this.dwellMs = dwellMs;
+            this.debounceSamples = debounceSamples;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Rules compiled into flat arrays along with their state, replaced as a whole by compile()
+     */
+    private static final class CompiledRules {
+        private final int ruleCount;
+        private final String[] names;
+        private final float[] enterDistance;
+        private final float[] exitDistance;
+        private final float[] enterConeCos;
+        private final float[] exitConeCos;
+        private final long[] dwellNanos;
+        private final int[] debounceSamples;
+
+        // Rule state, only written by the evaluating thread
+        private final boolean[] active;
+        private final int[] pendingCount;
+        private final long[] pendingSince;
+
+        private CompiledRules(List<Rule> rules) {
+            ruleCount = rules.size();
+            names = new String[ruleCount];
+            enterDistance = new float[ruleCount];
+            exitDistance = new float[ruleCount];
+            enterConeCos = new float[ruleCount];
+            exitConeCos = new float[ruleCount];
+            dwellNanos = new long[ruleCount];
+            debounceSamples = new int[ruleCount];
+            active = new boolean[ruleCount];
+            pendingCount = new int[ruleCount];
+            pendingSince = new long[ruleCount];
+
+            for (int r = 0; r < ruleCount; r++) {
+                Rule rule = rules.get(r);
+                names[r] = rule.name;
+                enterDistance[r] = rule.enterDistance;
+                exitDistance[r] = rule.exitDistance;
+                // Comparing cosines avoids an acos per sample, ANY_ANGLE maps below any cosine
+                enterConeCos[r] = rule.enterConeAngle >= ANY_ANGLE ? -2f : CartesianPositionStream.cos(rule.enterConeAngle);
+                exitConeCos[r] = rule.exitConeAngle >= ANY_ANGLE ? -2f : CartesianPositionStream.cos(rule.exitConeAngle);
+                dwellNanos[r] = rule.dwellMs * 1000000L;
+                debounceSamples[r] = rule.debounceSamples;
+            }
+        }
+    }
+
+    private final List<Rule> rules = new ArrayList<>();
+    private volatile ProximityRuleListener proximityRuleListener;
+    private volatile CompiledRules compiledRules = new CompiledRules(new ArrayList<>());
+
+    // Firing latency metric, guarded by metricsLock
+    private final Object metricsLock = new Object();
+    private long firingCount = 0;
+    private long lastFiringLatencyNanos = 0;
+    private long maxFiringLatencyNanos = 0;
+    private long totalFiringLatencyNanos = 0;
+
+    public void setProximityRuleListener(ProximityRuleListener proximityRuleListener) {
+        this.proximityRuleListener = proximityRuleListener;
+    }
+
+    /**
+     * Adds a rule, compile() must be called afterwards
+     *
+     * @param rule Rule definition
+     * @return the rule index
+     */
+    public synchronized int addRule(Rule rule) {
+        rules.add(rule);
+        return rules.size() - 1;
+    }
+
+    /**
+     * Compiles the rules into the arrays used by evaluate() and resets their state
+     */
+    public synchronized void compile() {
+        compiledRules = new CompiledRules(rules);
+    }
+
+    /**
+     * Evaluates the rules on a ranging sample, anything else than a position with distance is ignored
+     *
+     * @param rangingSample Ranging sample of the UWB session
+     */
+    public void onRangingSample(RangingSample rangingSample) {
+        if (rangingSample.getType() != RangingSample.Type.position || !rangingSample.hasDistance()) {
+            return;
+        }
+
+        evaluate(rangingSample.getDistance(),
+                rangingSample.hasAzimuth() ? rangingSample.getAzimuth() : 0,
+                rangingSample.hasElevation() ? rangingSample.getElevation() : 0,
+                rangingSample.getElapsedRealtimeNanos());
+    }
+
+    /**
+     * Evaluates the rules on a sample
+     *
+     * @param distance             Distance (m)
+     * @param azimuth              Azimuth (degrees)
+     * @param elevation            Elevation (degrees)
+     * @param elapsedRealtimeNanos Time of the measurement
+     */
+    public void evaluate(float distance, float azimuth, float elevation, long elapsedRealtimeNanos) {
+        // Cosine of the angle between the pointing direction and the accessory
+        float coneCos = CartesianPositionStream.cos(azimuth) * CartesianPositionStream.cos(elevation);
+
+        // A single read, a concurrent compile() applies from the next sample
+        CompiledRules compiled = compiledRules;
+        for (int r = 0; r < compiled.ruleCount; r++) {
+            boolean isActive = compiled.active[r];
+            boolean holds = isActive
+                    ? distance <= compiled.exitDistance[r] && coneCos >= compiled.exitConeCos[r]
+                    : distance <= compiled.enterDistance[r] && coneCos >= compiled.enterConeCos[r];
+
+            if (holds == isActive) {
+                compiled.pendingCount[r] = 0;
+                continue;
+            }
+
+            if (compiled.pendingCount[r]++ == 0) {
+                compiled.pendingSince[r] = elapsedRealtimeNanos;
+            }
+
+            if (compiled.pendingCount[r] >= compiled.debounceSamples[r]
+                    && (!holds || elapsedRealtimeNanos - compiled.pendingSince[r] >= compiled.dwellNanos[r])) {
+                compiled.active[r] = holds;
+                compiled.pendingCount[r] = 0;
+                fire(r, compiled.names[r], holds, elapsedRealtimeNanos);
+            }
+        }
+    }
+
+    public boolean isActive(int ruleIndex) {
+        CompiledRules compiled = compiledRules;
+        return ruleIndex < compiled.ruleCount && compiled.active[ruleIndex];
+    }
+
+    private void fire(int ruleIndex, String ruleName, boolean isActive, long elapsedRealtimeNanos) {
+        long latencyNanos = SystemClock.elapsedRealtimeNanos() - elapsedRealtimeNanos;
+        synchronized (metricsLock) {
+            firingCount++;
+            lastFiringLatencyNanos = latencyNanos;
+            totalFiringLatencyNanos += latencyNanos;
+            if (latencyNanos > maxFiringLatencyNanos) {
+                maxFiringLatencyNanos = latencyNanos;
+            }
+        }
+
+        ProximityRuleListener proximityRuleListener = this.proximityRuleListener;
+        if (proximityRuleListener != null) {
+            proximityRuleListener.onProximityRuleChanged(ruleIndex, ruleName, isActive, latencyNanos);
+        }
+    }
+
+    public long getFiringCount() {
+        synchronized (metricsLock) {
+            return firingCount;
+        }
+    }
+
+    public long getLastFiringLatencyNanos() {
+        synchronized (metricsLock) {
+            return lastFiringLatencyNanos;
+        }
+    }
+
+    public long getMaxFiringLatencyNanos() {
+        synchronized (metricsLock) {
+            return maxFiringLatencyNanos;
+        }
+    }
+
+    public long getMeanFiringLatencyNanos() {
+        synchronized (metricsLock) {
+            return firingCount == 0 ? 0 : totalFiringLatencyNanos / firingCount;
+        }
+    }
+}
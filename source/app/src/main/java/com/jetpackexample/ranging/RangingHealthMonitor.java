@@ -0,0 +1,340 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import android.util.Log;
+
+/**
+ * Measures the health of the ranging link of a session from the arrival of its results: achieved
+ * update rate against the configured one, inter-arrival jitter, gaps and loss rate.
+ * <p>
+ * Rate and loss are measured over windows of a fixed number of update periods, a result without a
+ * distance counting as lost. Jitter is the smoothed difference between consecutive inter-arrival
+ * times (RFC 3550 style). A gap is an inter-arrival time longer than GAP_UPDATE_PERIODS periods.
+ * <p>
+ * Thresholds are checked at the end of each window, a HealthListener is called once when a metric
+ * rises above its threshold and once when it falls back below the threshold minus its hysteresis.
+ * Listener calls are made on the thread reporting the results, outside of the monitor lock.
+ */
+public class RangingHealthMonitor {
+
+    private static final String TAG = RangingHealthMonitor.class.getName();
+
+    private static final int GAP_UPDATE_PERIODS = 3;
+    private static final float JITTER_GAIN = 1f / 16;
+
+    public enum Metric {
+        // Ratio of results without a distance over the window
+        lossRate,
+        // Smoothed inter-arrival jitter (ms)
+        jitterMs,
+        // 1 - achieved rate / configured rate, 0 when at or above the configured rate
+        rateShortfall
+    }
+
+    private static final Metric[] METRICS = Metric.values();
+
+    public interface HealthListener {
+        /**
+         * @param metric Metric which crossed its threshold
+         * @param above  true when the metric rose above its threshold, false when it is back below
+         * @param value  Current value of the metric
+         */
+        void onThresholdCrossed(Metric metric, boolean above, float value);
+
+        /**
+         * Called when results resume after a gap
+         *
+         * @param gapMs Time between the results around the gap
+         */
+        void onGap(long gapMs);
+    }
+
+    /**
+     * Link health at the time of the snapshot, rates and loss over the last complete window
+     */
+    public static class Health {
+        private final float configuredRate;
+        private final float achievedRate;
+        private final float lossRate;
+        private final float jitterMs;
+        private final long resultCount;
+        private final long gapCount;
+        private final long longestGapMs;
+
+        private Health(float configuredRate, float achievedRate, float lossRate, float jitterMs,
+                       long resultCount, long gapCount, long longestGapMs) {
+            this.configuredRate = configuredRate;
+            this.achievedRate = achievedRate;
+            this.lossRate = lossRate;
+            this.jitterMs = jitterMs;
+            this.resultCount = resultCount;
+            this.gapCount = gapCount;
+            this.longestGapMs = longestGapMs;
+        }
+
+        /**
+         * @return the configured update rate (Hz)
+         */
+        public float getConfiguredRate() {
+            return configuredRate;
+        }
+
+        /**
+         * @return the achieved update rate (Hz), NaN before the first complete window
+         */
+        public float getAchievedRate() {
+            return achievedRate;
+        }
+
+        /**
+         * @return the loss rate between 0 and 1, NaN before the first complete window
+         */
+        public float getLossRate() {
+            return lossRate;
+        }
+
+        public float getJitterMs() {
+            return jitterMs;
+        }
+
+        public long getResultCount() {
+            return resultCount;
+        }
+
+        public long getGapCount() {
+            return gapCount;
+        }
+
+        public long getLongestGapMs() {
+            return longestGapMs;
+        }
+
+        @Override
+        public String toString() {
+            return "rate: " + achievedRate + "/" + configuredRate + " Hz, loss: " + lossRate + ", jitter: " + jitterMs
+                    + " ms, results: " + resultCount + ", gaps: " + gapCount + " (longest " + longestGapMs + " ms)";
+        }
+    }
+
+    private final int windowUpdatePeriods;
+    // Follow the session being measured, see reset(long)
+    private long updatePeriodNanos;
+    private long windowNanos;
+    private volatile HealthListener healthListener = null;
+
+    // Thresholds, NaN when disabled, indexed by metric ordinal
+    private final float[] thresholds = new float[METRICS.length];
+    private final float[] hysteresis = new float[METRICS.length];
+    private final boolean[] above = new boolean[METRICS.length];
+    private final float[] values = new float[METRICS.length];
+
+    // Session state
+    private long lastArrival = 0;
+    private long lastInterval = 0;
+    private float jitterMs = 0;
+    private long windowStart = 0;
+    private int windowResults = 0;
+    private int windowMeasured = 0;
+    private float achievedRate = Float.NaN;
+    private long resultCount = 0;
+    private long gapCount = 0;
+    private long longestGapMs = 0;
+
+    /**
+     * @param updatePeriodMs      Configured period between ranging results
+     * @param windowUpdatePeriods Length of the rate and loss window, in update periods
+     */
+    public RangingHealthMonitor(long updatePeriodMs, int windowUpdatePeriods) {
+        if (updatePeriodMs <= 0 || windowUpdatePeriods <= 0) {
+            throw new IllegalArgumentException("Invalid health window");
+        }
+
+        this.windowUpdatePeriods = windowUpdatePeriods;
+        this.updatePeriodNanos = updatePeriodMs * 1000000L;
+        this.windowNanos = updatePeriodNanos * windowUpdatePeriods;
+
+        for (int i = 0; i < METRICS.length; i++) {
+            thresholds[i] = Float.NaN;
+            values[i] = Float.NaN;
+        }
+    }
+
+    public void setHealthListener(HealthListener healthListener) {
+        this.healthListener = healthListener;
+    }
+
+    /**
+     * Sets the threshold of a metric
+     *
+     * @param metric     Metric to watch
+     * @param threshold  Value above which the listener is called, NaN to stop watching the metric
+     * @param hysteresis How far below the threshold the metric must fall to be back to normal
+     */
+    public synchronized void setThreshold(Metric metric, float threshold, float hysteresis) {
+        thresholds[metric.ordinal()] = threshold;
+        this.hysteresis[metric.ordinal()] = hysteresis;
+        above[metric.ordinal()] = false;
+    }
+
+    /**
+     * Starts measuring a new session with another update period, thresholds are kept
+     *
+     * @param updatePeriodMs Configured period between ranging results of the session
+     */
+    public synchronized void reset(long updatePeriodMs) {
+        if (updatePeriodMs <= 0) {
+            throw new IllegalArgumentException("Invalid update period");
+        }
+
+        updatePeriodNanos = updatePeriodMs * 1000000L;
+        windowNanos = updatePeriodNanos * windowUpdatePeriods;
+        reset();
+    }
+
+    /**
+     * Starts measuring a new session, thresholds are kept
+     */
+    public synchronized void reset() {
+        lastArrival = 0;
+        lastInterval = 0;
+        jitterMs = 0;
+        windowStart = 0;
+        windowResults = 0;
+        windowMeasured = 0;
+        achievedRate = Float.NaN;
+        resultCount = 0;
+        gapCount = 0;
+        longestGapMs = 0;
+
+        for (int i = 0; i < METRICS.length; i++) {
+            values[i] = Float.NaN;
+            above[i] = false;
+        }
+    }
+
+    /**
+     * Reports the arrival of a ranging result
+     *
+     * @param elapsedRealtimeNanos Arrival time
+     * @param measured             false if the result carries no distance
+     * @return true if a window just completed, its loss rate is then getLossRate()
+     */
+    public boolean onResult(long elapsedRealtimeNanos, boolean measured) {
+        long gapMs = 0;
+        int rising = 0;
+        int falling = 0;
+        // Values of the crossed metrics as they were when crossing, the window may be reset meanwhile
+        float[] crossedValues = null;
+        boolean windowCompleted = false;
+
+        synchronized (this) {
+            resultCount++;
+
+            if (lastArrival != 0) {
+                long interval = elapsedRealtimeNanos - lastArrival;
+                if (lastInterval != 0) {
+                    jitterMs += (Math.abs(interval - lastInterval) / 1e6f - jitterMs) * JITTER_GAIN;
+                }
+                lastInterval = interval;
+
+                if (interval > GAP_UPDATE_PERIODS * updatePeriodNanos) {
+                    gapMs = interval / 1000000L;
+                    gapCount++;
+                    longestGapMs = Math.max(longestGapMs, gapMs);
+                }
+            }
+            lastArrival = elapsedRealtimeNanos;
+
+            long elapsed = 0;
+            if (windowStart == 0) {
+                // The first arrival only opens the window, later windows open on the arrival closing
+                // the previous one, which that window counted
+                windowStart = elapsedRealtimeNanos;
+            } else {
+                windowResults++;
+                if (measured) {
+                    windowMeasured++;
+                }
+
+                elapsed = elapsedRealtimeNanos - windowStart;
+            }
+
+            if (elapsed >= windowNanos) {
+                float expected = (float) elapsed / updatePeriodNanos;
+                achievedRate = windowResults * 1e9f / elapsed;
+                values[Metric.lossRate.ordinal()] = Math.max(0f, Math.min(1f, 1f - windowMeasured / expected));
+                values[Metric.rateShortfall.ordinal()] = Math.max(0f, 1f - achievedRate * updatePeriodNanos / 1e9f);
+                values[Metric.jitterMs.ordinal()] = jitterMs;
+
+                windowStart = elapsedRealtimeNanos;
+                windowResults = 0;
+                windowMeasured = 0;
+                windowCompleted = true;
+
+                for (int i = 0; i < METRICS.length; i++) {
+                    if (Float.isNaN(thresholds[i])) {
+                        continue;
+                    }
+
+                    if (!above[i] && values[i] > thresholds[i]) {
+                        above[i] = true;
+                        rising |= 1 << i;
+                    } else if (above[i] && values[i] < thresholds[i] - hysteresis[i]) {
+                        above[i] = false;
+                        falling |= 1 << i;
+                    }
+                }
+
+                if ((rising | falling) != 0) {
+                    // Only on a crossing, not for every result
+                    crossedValues = values.clone();
+                }
+            }
+        }
+
+        HealthListener healthListener = this.healthListener;
+        if (healthListener != null) {
+            if (gapMs != 0) {
+                Log.d(TAG, "Ranging gap of " + gapMs + " ms");
+                healthListener.onGap(gapMs);
+            }
+
+            for (int i = 0; (rising | falling) >> i != 0; i++) {
+                if ((rising & (1 << i)) != 0) {
+                    healthListener.onThresholdCrossed(METRICS[i], true, crossedValues[i]);
+                } else if ((falling & (1 << i)) != 0) {
+                    healthListener.onThresholdCrossed(METRICS[i], false, crossedValues[i]);
+                }
+            }
+        }
+
+        return windowCompleted;
+    }
+
+    /**
+     * @return the loss rate of the last complete window, NaN before the first one
+     */
+    public synchronized float getLossRate() {
+        return values[Metric.lossRate.ordinal()];
+    }
+
+    public synchronized Health getHealth() {
+        return new Health(1e9f / updatePeriodNanos, achievedRate, values[Metric.lossRate.ordinal()], jitterMs,
+                resultCount, gapCount, longestGapMs);
+    }
+}
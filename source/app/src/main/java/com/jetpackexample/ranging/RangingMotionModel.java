@@ -0,0 +1,272 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import androidx.core.uwb.UwbDevice;
+
+/**
+ * Estimates the distance, azimuth and elevation of peers at any time between ranging samples, so
+ * that the display can move every frame instead of jumping once per sample.
+ * <p>
+ * Each measurement of each peer is tracked by an alpha-beta filter keeping a value and a rate of
+ * change. Predictions extrapolate the last filtered value at that rate, for at most the
+ * extrapolation limit after the last sample, then hold. Angles are filtered on the circle, a peer
+ * moving across +/-180 degrees does not spin the other way round.
+ * <p>
+ * Samples are fed from the ranging thread and predictions read from the UI thread, neither
+ * allocates.
+ */
+public class RangingMotionModel {
+
+    public static final int DISTANCE = 0;
+    public static final int AZIMUTH = 1;
+    public static final int ELEVATION = 2;
+    private static final int VALUE_COUNT = 3;
+
+    // About two update periods
+    public static final long DEFAULT_MAX_EXTRAPOLATION_MS = 400;
+
+    // Filter gains, tuned for a hand-held phone at 5 Hz
+    private static final float ALPHA = 0.5f;
+    private static final float BETA = 0.1f;
+    // The rate of change is reset after a longer pause between samples
+    private static final long MAX_SAMPLE_GAP_NANOS = 1000000000L;
+
+    private final long maxExtrapolationNanos;
+
+    // Per peer state, values indexed by peerIndex * VALUE_COUNT + value
+    private final UwbDevice[] devices;
+    private final long[] sampledAt;
+    private final float[] values;
+    // Per nanosecond
+    private final float[] rates;
+    private int peerCount = 0;
+    private int latestPeer = -1;
+
+    /**
+     * @param maxPeers           Maximum number of peers tracked at the same time, the least
+     *                           recently seen one is replaced by a new peer
+     * @param maxExtrapolationMs Time after the last sample during which predictions move
+     */
+    public RangingMotionModel(int maxPeers, long maxExtrapolationMs) {
+        if (maxPeers <= 0 || maxExtrapolationMs < 0) {
+            throw new IllegalArgumentException("Invalid motion model configuration");
+        }
+
+        this.maxExtrapolationNanos = maxExtrapolationMs * 1000000L;
+        devices = new UwbDevice[maxPeers];
+        sampledAt = new long[maxPeers];
+        values = new float[maxPeers * VALUE_COUNT];
+        rates = new float[maxPeers * VALUE_COUNT];
+    }
+
+    /**
+     * Updates the filters of the sample peer, a disconnected peer is forgotten
+     *
+     * @param rangingSample Sample from the ranging stream
+     */
+    public synchronized void onRangingSample(RangingSample rangingSample) {
+        if (rangingSample.getType() == RangingSample.Type.peerDisconnected) {
+            int peer = indexOf(rangingSample.getDevice());
+            if (peer >= 0) {
+                remove(peer);
+            }
+            return;
+        }
+
+        int peer = indexOf(rangingSample.getDevice());
+        boolean reset = peer < 0;
+        if (reset) {
+            peer = add(rangingSample.getDevice());
+        }
+
+        long timestamp = rangingSample.getElapsedRealtimeNanos();
+        long elapsed = timestamp - sampledAt[peer];
+        if (elapsed <= 0 && !reset) {
+            // Out of order or duplicate
+            return;
+        }
+
+        reset |= elapsed > MAX_SAMPLE_GAP_NANOS;
+        update(peer * VALUE_COUNT + DISTANCE, rangingSample.getDistance(), elapsed, reset, false);
+        update(peer * VALUE_COUNT + AZIMUTH, rangingSample.getAzimuth(), elapsed, reset, true);
+        update(peer * VALUE_COUNT + ELEVATION, rangingSample.getElevation(), elapsed, reset, true);
+
+        sampledAt[peer] = timestamp;
+        latestPeer = peer;
+    }
+
+    /**
+     * Estimates the values of a peer
+     *
+     * @param device               Peer device
+     * @param elapsedRealtimeNanos Time of the estimate, usually the display frame time
+     * @param estimate             Receives the distance (m), azimuth and elevation (degrees),
+     *                             NaN for values never measured
+     * @return false if the peer is unknown
+     */
+    public synchronized boolean predict(UwbDevice device, long elapsedRealtimeNanos, float[] estimate) {
+        int peer = indexOf(device);
+        if (peer < 0) {
+            return false;
+        }
+
+        predict(peer, elapsedRealtimeNanos, estimate);
+        return true;
+    }
+
+    /**
+     * Estimates the values of the peer with the most recent sample
+     *
+     * @return false if there is no peer
+     */
+    public synchronized boolean predictLatest(long elapsedRealtimeNanos, float[] estimate) {
+        if (latestPeer < 0) {
+            return false;
+        }
+
+        predict(latestPeer, elapsedRealtimeNanos, estimate);
+        return true;
+    }
+
+    public synchronized int getPeerCount() {
+        return peerCount;
+    }
+
+    /**
+     * Estimates the values of a peer by index, for drawing all the peers in one pass
+     *
+     * @param index Peer index, below getPeerCount(), indexes change when a peer is forgotten
+     * @return false if there is no such peer
+     */
+    public synchronized boolean predictPeer(int index, long elapsedRealtimeNanos, float[] estimate) {
+        if (index < 0 || index >= peerCount) {
+            return false;
+        }
+
+        predict(index, elapsedRealtimeNanos, estimate);
+        return true;
+    }
+
+    /**
+     * @return true while the estimates of the most recent peer still move, i.e. until the
+     * extrapolation limit after its last sample
+     */
+    public synchronized boolean isMoving(long elapsedRealtimeNanos) {
+        return latestPeer >= 0 && elapsedRealtimeNanos - sampledAt[latestPeer] < maxExtrapolationNanos;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < peerCount; i++) {
+            devices[i] = null;
+        }
+
+        peerCount = 0;
+        latestPeer = -1;
+    }
+
+    private void predict(int peer, long elapsedRealtimeNanos, float[] estimate) {
+        long elapsed = Math.max(0, Math.min(elapsedRealtimeNanos - sampledAt[peer], maxExtrapolationNanos));
+        int base = peer * VALUE_COUNT;
+
+        estimate[DISTANCE] = Math.max(0f, values[base + DISTANCE] + rates[base + DISTANCE] * elapsed);
+        estimate[AZIMUTH] = wrap(values[base + AZIMUTH] + rates[base + AZIMUTH] * elapsed);
+        estimate[ELEVATION] = Math.max(-90f, Math.min(90f, values[base + ELEVATION] + rates[base + ELEVATION] * elapsed));
+    }
+
+    private void update(int index, float measurement, long elapsed, boolean reset, boolean angle) {
+        if (Float.isNaN(measurement)) {
+            return;
+        }
+
+        if (reset || Float.isNaN(values[index])) {
+            values[index] = measurement;
+            rates[index] = 0f;
+            return;
+        }
+
+        float predicted = values[index] + rates[index] * elapsed;
+        float residual = measurement - predicted;
+        if (angle) {
+            residual = wrap(residual);
+        }
+
+        values[index] = predicted + ALPHA * residual;
+        if (angle) {
+            values[index] = wrap(values[index]);
+        }
+        rates[index] += BETA * residual / elapsed;
+    }
+
+    private int indexOf(UwbDevice device) {
+        for (int i = 0; i < peerCount; i++) {
+            if (devices[i].equals(device)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private int add(UwbDevice device) {
+        int peer;
+        if (peerCount < devices.length) {
+            peer = peerCount++;
+        } else {
+            peer = 0;
+            for (int i = 1; i < peerCount; i++) {
+                if (sampledAt[i] < sampledAt[peer]) {
+                    peer = i;
+                }
+            }
+        }
+
+        devices[peer] = device;
+        sampledAt[peer] = 0;
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            values[peer * VALUE_COUNT + i] = Float.NaN;
+            rates[peer * VALUE_COUNT + i] = 0f;
+        }
+
+        return peer;
+    }
+
+    private void remove(int peer) {
+        int last = peerCount - 1;
+        devices[peer] = devices[last];
+        sampledAt[peer] = sampledAt[last];
+        System.arraycopy(values, last * VALUE_COUNT, values, peer * VALUE_COUNT, VALUE_COUNT);
+        System.arraycopy(rates, last * VALUE_COUNT, rates, peer * VALUE_COUNT, VALUE_COUNT);
+        devices[last] = null;
+        peerCount = last;
+
+        if (latestPeer == peer) {
+            latestPeer = -1;
+        } else if (latestPeer == last) {
+            latestPeer = peer;
+        }
+    }
+
+    // Wraps an angle to [-180, 180)
+    private static float wrap(float degrees) {
+        if (degrees >= 180f || degrees < -180f) {
+            degrees -= 360f * (float) Math.floor((degrees + 180f) / 360f);
+        }
+
+        return degrees;
+    }
+}
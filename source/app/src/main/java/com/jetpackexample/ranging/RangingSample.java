@@ -0,0 +1,112 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import androidx.core.uwb.RangingPosition;
+import androidx.core.uwb.RangingResult;
+import androidx.core.uwb.UwbDevice;
+
+/**
+ * Ranging result with its values already extracted, missing measurements are NaN.
+ * <p>
+ * Samples are immutable, one is allocated per ranging result and shared by all the subscribers
+ * of the stream. It is the only allocation of the result path, consumers copy the values they keep
+ * into preallocated storage.
+ */
+public class RangingSample {
+
+    public enum Type {
+        position,
+        peerDisconnected
+    }
+
+    private final Type type;
+    private final UwbDevice device;
+    private final long elapsedRealtimeNanos;
+    private final float distance;
+    private final float azimuth;
+    private final float elevation;
+
+    public RangingSample(Type type, UwbDevice device, long elapsedRealtimeNanos, float distance, float azimuth, float elevation) {
+        this.type = type;
+        this.device = device;
+        this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+        this.distance = distance;
+        this.azimuth = azimuth;
+        this.elevation = elevation;
+    }
+
+    /**
+     * Extracts the values of a ranging result
+     *
+     * @param rangingResult        Ranging result received from the UWB session
+     * @param elapsedRealtimeNanos Time used for results that do not carry one
+     * @return the sample, or null for unknown result types
+     */
+    public static RangingSample fromRangingResult(RangingResult rangingResult, long elapsedRealtimeNanos) {
+        if (rangingResult instanceof RangingResult.RangingResultPosition) {
+            RangingPosition position = ((RangingResult.RangingResultPosition) rangingResult).getPosition();
+            return new RangingSample(Type.position,
+                    rangingResult.getDevice(),
+                    position.getElapsedRealtimeNanos(),
+                    position.getDistance() != null ? position.getDistance().getValue() : Float.NaN,
+                    position.getAzimuth() != null ? position.getAzimuth().getValue() : Float.NaN,
+                    position.getElevation() != null ? position.getElevation().getValue() : Float.NaN);
+        } else if (rangingResult instanceof RangingResult.RangingResultPeerDisconnected) {
+            return new RangingSample(Type.peerDisconnected, rangingResult.getDevice(), elapsedRealtimeNanos,
+                    Float.NaN, Float.NaN, Float.NaN);
+        }
+
+        return null;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public UwbDevice getDevice() {
+        return device;
+    }
+
+    public long getElapsedRealtimeNanos() {
+        return elapsedRealtimeNanos;
+    }
+
+    public float getDistance() {
+        return distance;
+    }
+
+    public float getAzimuth() {
+        return azimuth;
+    }
+
+    public float getElevation() {
+        return elevation;
+    }
+
+    public boolean hasDistance() {
+        return !Float.isNaN(distance);
+    }
+
+    public boolean hasAzimuth() {
+        return !Float.isNaN(azimuth);
+    }
+
+    public boolean hasElevation() {
+        return !Float.isNaN(elevation);
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import android.util.Log;
+
+import androidx.core.uwb.UwbDevice;
+
+import com.jetpackexample.UwbDeviceConfigData;
+import com.jetpackexample.UwbPhoneConfigData;
+import com.jetpackexample.utils.Utils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.disposables.Disposable;
+
+/**
+ * Exports the ranging samples of a session to files, as CSV and/or as a compact binary format.
+ * <p>
+ * Samples are copied into fixed-size column batches taken from a small pool, full batches are
+ * written by a dedicated thread. The subscriber never waits for the disk: when all batches are
+ * waiting to be written, samples are dropped and counted instead, so the heap does not grow
+ * however long the session is.
+ * <p>
+ * The binary format is a header with the session metadata followed by batches. A batch is its
+ * sample count, the peers first seen in it, then one column per field. Timestamps are delta
+ * encoded; distances (mm) and angles (0.01 degree) are delta encoded against the previous
+ * present value, with a presence bitmap per column. Batch integers are varints, signed deltas
+ * being zigzag encoded.
+ * A batch with a count of 0 ends the file. RangingSessionReader reads it back.
+ */
+public class RangingSessionExporter {
+
+    private static final String TAG = RangingSessionExporter.class.getName();
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    private static final int BATCH_COUNT = 4;
+
+    // "URBX"
+    static final int BINARY_MAGIC = 0x55524258;
+    static final byte BINARY_VERSION = 1;
+
+    private static final RangingSample.Type[] SAMPLE_TYPES = RangingSample.Type.values();
+
+    private static class Batch {
+        final long[] timestamps;
+        final byte[] types;
+        final UwbDevice[] devices;
+        final float[] distances;
+        final float[] azimuths;
+        final float[] elevations;
+        int count = 0;
+        boolean last = false;
+
+        Batch(int size) {
+            timestamps = new long[size];
+            types = new byte[size];
+            devices = new UwbDevice[size];
+            distances = new float[size];
+            azimuths = new float[size];
+            elevations = new float[size];
+        }
+    }
+
+    private final File binaryFile;
+    private final File csvFile;
+    private final boolean gzip;
+    private final int batchSize;
+
+    private final ArrayBlockingQueue<Batch> freeBatches = new ArrayBlockingQueue<>(BATCH_COUNT);
+    // One more for the empty last batch of stop()
+    private final ArrayBlockingQueue<Batch> fullBatches = new ArrayBlockingQueue<>(BATCH_COUNT + 1);
+    private final Object lock = new Object();
+    private Batch currentBatch = null;
+    private Disposable disposable = null;
+    private Thread writerThread = null;
+    private volatile long droppedSamples = 0;
+    private volatile long exportedSamples = 0;
+
+    // Writer thread state
+    private DataOutputStream binaryOutput = null;
+    private Writer csvOutput = null;
+    private final List<UwbDevice> peers = new ArrayList<>();
+    private final int[] peerIndexes;
+    private final StringBuilder line = new StringBuilder();
+    private long previousTimestamp = 0;
+    private int previousDistance = 0;
+    private int previousAzimuth = 0;
+    private int previousElevation = 0;
+
+    /**
+     * @param binaryFile Binary output file, or null for no binary export
+     * @param gzip       Compress the binary output
+     * @param csvFile    CSV output file, or null for no CSV export
+     * @param batchSize  Number of samples per batch
+     */
+    public RangingSessionExporter(File binaryFile, boolean gzip, File csvFile, int batchSize) {
+        if ((binaryFile == null && csvFile == null) || batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid export configuration");
+        }
+
+        this.binaryFile = binaryFile;
+        this.gzip = gzip;
+        this.csvFile = csvFile;
+        this.batchSize = batchSize;
+        this.peerIndexes = new int[batchSize];
+    }
+
+    /**
+     * Starts exporting the samples of a ranging stream. Files are opened on the writer thread.
+     *
+     * @param rangingSampleFlowable Ranging sample stream
+     * @param uwbPhoneConfigData    Session configuration sent to the accessory
+     * @param uwbDeviceConfigData   Session configuration received from the accessory
+     */
+    public void start(Flowable<RangingSample> rangingSampleFlowable, UwbPhoneConfigData uwbPhoneConfigData, UwbDeviceConfigData uwbDeviceConfigData) {
+        synchronized (lock) {
+            if (writerThread != null) {
+                throw new IllegalStateException("Export already started");
+            }
+
+            for (int i = 0; i < BATCH_COUNT; i++) {
+                freeBatches.add(new Batch(batchSize));
+            }
+
+            currentBatch = freeBatches.poll();
+            writerThread = new Thread(() -> write(uwbPhoneConfigData, uwbDeviceConfigData), TAG);
+            writerThread.start();
+            disposable = rangingSampleFlowable.subscribe(this::onRangingSample);
+        }
+    }
+
+    /**
+     * Stops exporting, the samples received so far are written and the files closed in the background
+     */
+    public void stop() {
+        synchronized (lock) {
+            if (disposable == null) {
+                return;
+            }
+
+            disposable.dispose();
+            disposable = null;
+
+            // The writer is never waiting on anything else than the full batches
+            Batch batch = currentBatch != null ? currentBatch : new Batch(0);
+            batch.last = true;
+            currentBatch = null;
+            fullBatches.add(batch);
+        }
+    }
+
+    /**
+     * Waits for the samples received before stop() to be written and the files closed
+     *
+     * @param timeoutMs Maximum time to wait
+     * @return true if the files are closed
+     */
+    public boolean awaitStopped(long timeoutMs) throws InterruptedException {
+        Thread thread;
+        synchronized (lock) {
+            thread = writerThread;
+        }
+
+        if (thread == null) {
+            return true;
+        }
+
+        thread.join(timeoutMs);
+        return !thread.isAlive();
+    }
+
+    public long getExportedSamples() {
+        return exportedSamples;
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    private void onRangingSample(RangingSample rangingSample) {
+        synchronized (lock) {
+            if (disposable == null) {
+                // Delivered while stopping
+                return;
+            }
+
+            Batch batch = currentBatch;
+            if (batch == null) {
+                batch = freeBatches.poll();
+                currentBatch = batch;
+                if (batch == null) {
+                    // The writer is behind, drop rather than buffer without bound
+                    droppedSamples++;
+                    return;
+                }
+            }
+
+            int i = batch.count++;
+            batch.timestamps[i] = rangingSample.getElapsedRealtimeNanos();
+            batch.types[i] = (byte) rangingSample.getType().ordinal();
+            batch.devices[i] = rangingSample.getDevice();
+            batch.distances[i] = rangingSample.getDistance();
+            batch.azimuths[i] = rangingSample.getAzimuth();
+            batch.elevations[i] = rangingSample.getElevation();
+
+            if (batch.count == batchSize) {
+                fullBatches.add(batch);
+                currentBatch = freeBatches.poll();
+            }
+        }
+    }
+
+    private void write(UwbPhoneConfigData uwbPhoneConfigData, UwbDeviceConfigData uwbDeviceConfigData) {
+        try {
+            open(uwbPhoneConfigData, uwbDeviceConfigData);
+
+            while (true) {
+                Batch batch = fullBatches.take();
+                writeBatch(batch);
+
+                if (batch.last) {
+                    break;
+                }
+
+                batch.count = 0;
+                freeBatches.add(batch);
+            }
+
+            Log.d(TAG, "Exported " + exportedSamples + " samples, dropped " + droppedSamples);
+        } catch (IOException e) {
+            Log.e(TAG, "Export failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    private void open(UwbPhoneConfigData uwbPhoneConfigData, UwbDeviceConfigData uwbDeviceConfigData) throws IOException {
+        if (binaryFile != null) {
+            OutputStream outputStream = new FileOutputStream(binaryFile);
+            if (gzip) {
+                outputStream = new GZIPOutputStream(outputStream, 8192);
+            }
+
+            binaryOutput = new DataOutputStream(new BufferedOutputStream(outputStream, 8192));
+            binaryOutput.writeInt(BINARY_MAGIC);
+            binaryOutput.writeByte(BINARY_VERSION);
+
+            binaryOutput.writeShort(uwbPhoneConfigData.getSpecVerMajor());
+            binaryOutput.writeShort(uwbPhoneConfigData.getSpecVerMinor());
+            binaryOutput.writeInt(uwbPhoneConfigData.getSessionId());
+            binaryOutput.writeByte(uwbPhoneConfigData.getPreambleId());
+            binaryOutput.writeByte(uwbPhoneConfigData.getChannel());
+            binaryOutput.writeByte(uwbPhoneConfigData.getProfileId());
+            binaryOutput.writeByte(uwbPhoneConfigData.getDeviceRangingRole());
+            writeBytes(uwbPhoneConfigData.getPhoneMacAddress());
+
+            binaryOutput.writeShort(uwbDeviceConfigData.getSpecVerMajor());
+            binaryOutput.writeShort(uwbDeviceConfigData.getSpecVerMinor());
+            writeBytes(uwbDeviceConfigData.getChipId());
+            writeBytes(uwbDeviceConfigData.getChipFwVersion());
+            writeBytes(uwbDeviceConfigData.getMwVersion());
+            binaryOutput.writeInt(uwbDeviceConfigData.getSupportedUwbProfileIds());
+            binaryOutput.writeByte(uwbDeviceConfigData.getSupportedDeviceRangingRoles());
+            writeBytes(uwbDeviceConfigData.getDeviceMacAddress());
+        }
+
+        if (csvFile != null) {
+            csvOutput = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), StandardCharsets.UTF_8), 8192);
+            csvOutput.write("# session_id=" + uwbPhoneConfigData.getSessionId()
+                    + " channel=" + uwbPhoneConfigData.getChannel()
+                    + " preamble_index=" + uwbPhoneConfigData.getPreambleId()
+                    + " profile_id=" + uwbPhoneConfigData.getProfileId()
+                    + " device_ranging_role=" + uwbPhoneConfigData.getDeviceRangingRole()
+                    + " phone_mac=" + Utils.byteArrayToHexString(uwbPhoneConfigData.getPhoneMacAddress()) + "\n");
+            csvOutput.write("# chip_id=" + Utils.byteArrayToHexString(uwbDeviceConfigData.getChipId())
+                    + " chip_fw_version=" + Utils.byteArrayToHexString(uwbDeviceConfigData.getChipFwVersion())
+                    + " mw_version=" + Utils.byteArrayToHexString(uwbDeviceConfigData.getMwVersion())
+                    + " device_mac=" + Utils.byteArrayToHexString(uwbDeviceConfigData.getDeviceMacAddress()) + "\n");
+            csvOutput.write("elapsed_realtime_nanos,type,peer,distance_m,azimuth_deg,elevation_deg\n");
+        }
+    }
+
+    private void writeBatch(Batch batch) throws IOException {
+        int count = batch.count;
+
+        // Map peers to their index, the new ones go in the batch header
+        int firstNewPeer = peers.size();
+        for (int i = 0; i < count; i++) {
+            int index = peers.indexOf(batch.devices[i]);
+            if (index < 0) {
+                index = peers.size();
+                peers.add(batch.devices[i]);
+            }
+
+            peerIndexes[i] = index;
+            batch.devices[i] = null;
+        }
+
+        if (binaryOutput != null && count > 0) {
+            writeVarint(count);
+            writeVarint(peers.size() - firstNewPeer);
+            for (int p = firstNewPeer; p < peers.size(); p++) {
+                writeBytes(peers.get(p).getAddress().getAddress());
+            }
+
+            for (int i = 0; i < count; i++) {
+                writeVarint(zigzag(batch.timestamps[i] - previousTimestamp));
+                previousTimestamp = batch.timestamps[i];
+            }
+
+            binaryOutput.write(batch.types, 0, count);
+
+            for (int i = 0; i < count; i++) {
+                writeVarint(peerIndexes[i]);
+            }
+
+            previousDistance = writeColumn(batch.distances, count, 1000f, previousDistance);
+            previousAzimuth = writeColumn(batch.azimuths, count, 100f, previousAzimuth);
+            previousElevation = writeColumn(batch.elevations, count, 100f, previousElevation);
+        }
+
+        if (csvOutput != null) {
+            for (int i = 0; i < count; i++) {
+                line.setLength(0);
+                line.append(batch.timestamps[i]).append(',')
+                        .append(SAMPLE_TYPES[batch.types[i]]).append(',')
+                        .append(Utils.byteArrayToHexString(peers.get(peerIndexes[i]).getAddress().getAddress())).append(',');
+                appendValue(batch.distances[i]).append(',');
+                appendValue(batch.azimuths[i]).append(',');
+                appendValue(batch.elevations[i]).append('\n');
+                csvOutput.append(line);
+            }
+        }
+
+        exportedSamples += count;
+    }
+
+    private int writeColumn(float[] values, int count, float scale, int previous) throws IOException {
+        // Presence bitmap
+        for (int i = 0; i < count; i += 8) {
+            int bits = 0;
+            for (int b = 0; b < 8 && i + b < count; b++) {
+                if (!Float.isNaN(values[i + b])) {
+                    bits |= 1 << b;
+                }
+            }
+
+            binaryOutput.writeByte(bits);
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (!Float.isNaN(values[i])) {
+                int value = Math.round(values[i] * scale);
+                writeVarint(zigzag(value - previous));
+                previous = value;
+            }
+        }
+
+        return previous;
+    }
+
+    private StringBuilder appendValue(float value) {
+        return Float.isNaN(value) ? line : line.append(value);
+    }
+
+    private void writeBytes(byte[] data) throws IOException {
+        if (data == null) {
+            writeVarint(0);
+            return;
+        }
+
+        writeVarint(data.length);
+        binaryOutput.write(data);
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            binaryOutput.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        binaryOutput.writeByte((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void close() {
+        try {
+            if (binaryOutput != null) {
+                writeVarint(0);
+                binaryOutput.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close binary export: " + e.getMessage());
+        }
+
+        try {
+            if (csvOutput != null) {
+                csvOutput.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close CSV export: " + e.getMessage());
+        }
+
+        binaryOutput = null;
+        csvOutput = null;
+    }
+}
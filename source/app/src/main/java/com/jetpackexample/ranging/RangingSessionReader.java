@@ -0,0 +1,281 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import androidx.core.uwb.UwbAddress;
+import androidx.core.uwb.UwbDevice;
+
+import com.jetpackexample.UwbDeviceConfigData;
+import com.jetpackexample.UwbPhoneConfigData;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads back a binary export of RangingSessionExporter, see there for the format.
+ * <p>
+ * The session configurations are read when opening, samples are then decoded one batch at a time.
+ * Distances are restored in mm and angles in 0.01 degree steps, missing values as NaN.
+ */
+public class RangingSessionReader implements Closeable {
+
+    private static final RangingSample.Type[] SAMPLE_TYPES = RangingSample.Type.values();
+
+    private final DataInputStream input;
+    private final UwbPhoneConfigData uwbPhoneConfigData;
+    private final UwbDeviceConfigData uwbDeviceConfigData;
+    private final List<UwbDevice> peers = new ArrayList<>();
+
+    // Current batch
+    private long[] timestamps = new long[0];
+    private byte[] types = new byte[0];
+    private int[] peerIndexes = new int[0];
+    private float[] distances = new float[0];
+    private float[] azimuths = new float[0];
+    private float[] elevations = new float[0];
+    private int count = 0;
+    private int position = 0;
+    private boolean ended = false;
+
+    // Delta decoding state, carried across batches
+    private long previousTimestamp = 0;
+    private int previousDistance = 0;
+    private int previousAzimuth = 0;
+    private int previousElevation = 0;
+
+    /**
+     * @param inputStream Uncompressed binary export, positioned at its start
+     * @throws IOException if the stream is not a binary export or is truncated
+     */
+    public RangingSessionReader(InputStream inputStream) throws IOException {
+        input = new DataInputStream(inputStream);
+
+        if (input.readInt() != RangingSessionExporter.BINARY_MAGIC) {
+            throw new IOException("Not a ranging session export");
+        }
+
+        byte version = input.readByte();
+        if (version != RangingSessionExporter.BINARY_VERSION) {
+            throw new IOException("Unsupported export version " + version);
+        }
+
+        short specVerMajor = input.readShort();
+        short specVerMinor = input.readShort();
+        int sessionId = input.readInt();
+        byte preambleId = input.readByte();
+        byte channel = input.readByte();
+        byte profileId = input.readByte();
+        byte deviceRangingRole = input.readByte();
+        byte[] phoneMacAddress = readBytes();
+        uwbPhoneConfigData = new UwbPhoneConfigData(specVerMajor, specVerMinor, sessionId, preambleId, channel,
+                profileId, deviceRangingRole, phoneMacAddress);
+
+        specVerMajor = input.readShort();
+        specVerMinor = input.readShort();
+        byte[] chipId = readBytes();
+        byte[] chipFwVersion = readBytes();
+        byte[] mwVersion = readBytes();
+        int supportedUwbProfileIds = input.readInt();
+        byte supportedDeviceRangingRoles = input.readByte();
+        byte[] deviceMacAddress = readBytes();
+        try {
+            uwbDeviceConfigData = new UwbDeviceConfigData(specVerMajor, specVerMinor, chipId, chipFwVersion, mwVersion,
+                    supportedUwbProfileIds, supportedDeviceRangingRoles, deviceMacAddress);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid UWB device configuration in export");
+        }
+    }
+
+    /**
+     * Opens a binary export file, gzip compressed or not
+     *
+     * @param file Binary export file
+     * @return the reader, to be closed by the caller
+     * @throws IOException if the file cannot be read or is not a binary export
+     */
+    public static RangingSessionReader open(File file) throws IOException {
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(file), 8192);
+        try {
+            inputStream.mark(2);
+            boolean gzip = inputStream.read() == 0x1F && inputStream.read() == 0x8B;
+            inputStream.reset();
+
+            return new RangingSessionReader(gzip ? new BufferedInputStream(new GZIPInputStream(inputStream, 8192), 8192) : inputStream);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the session configuration sent to the accessory, without its ranging interval
+     */
+    public UwbPhoneConfigData getUwbPhoneConfigData() {
+        return uwbPhoneConfigData;
+    }
+
+    /**
+     * @return the session configuration received from the accessory, without its channels and ranging interval
+     */
+    public UwbDeviceConfigData getUwbDeviceConfigData() {
+        return uwbDeviceConfigData;
+    }
+
+    /**
+     * @return the next sample, or null at the end of the export
+     * @throws IOException if the export is truncated or corrupted
+     */
+    public RangingSample next() throws IOException {
+        while (position == count) {
+            if (ended || !readBatch()) {
+                return null;
+            }
+        }
+
+        int i = position++;
+        return new RangingSample(SAMPLE_TYPES[types[i]], peers.get(peerIndexes[i]), timestamps[i],
+                distances[i], azimuths[i], elevations[i]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    /**
+     * @return false once the end of the export was read
+     */
+    private boolean readBatch() throws IOException {
+        int batchCount;
+        try {
+            batchCount = readCount();
+        } catch (EOFException e) {
+            // The export was not closed, e.g. the app was killed while exporting
+            ended = true;
+            return false;
+        }
+
+        if (batchCount == 0) {
+            ended = true;
+            return false;
+        }
+
+        if (batchCount > timestamps.length) {
+            timestamps = new long[batchCount];
+            types = new byte[batchCount];
+            peerIndexes = new int[batchCount];
+            distances = new float[batchCount];
+            azimuths = new float[batchCount];
+            elevations = new float[batchCount];
+        }
+
+        int newPeers = readCount();
+        for (int p = 0; p < newPeers; p++) {
+            peers.add(new UwbDevice(new UwbAddress(readBytes())));
+        }
+
+        for (int i = 0; i < batchCount; i++) {
+            previousTimestamp += unzigzag(readVarint());
+            timestamps[i] = previousTimestamp;
+        }
+
+        input.readFully(types, 0, batchCount);
+        for (int i = 0; i < batchCount; i++) {
+            if (types[i] < 0 || types[i] >= SAMPLE_TYPES.length) {
+                throw new IOException("Invalid sample type " + types[i]);
+            }
+        }
+
+        for (int i = 0; i < batchCount; i++) {
+            peerIndexes[i] = readCount();
+            if (peerIndexes[i] >= peers.size()) {
+                throw new IOException("Invalid peer index " + peerIndexes[i]);
+            }
+        }
+
+        previousDistance = readColumn(distances, batchCount, 1000f, previousDistance);
+        previousAzimuth = readColumn(azimuths, batchCount, 100f, previousAzimuth);
+        previousElevation = readColumn(elevations, batchCount, 100f, previousElevation);
+
+        count = batchCount;
+        position = 0;
+        return true;
+    }
+
+    private int readColumn(float[] values, int count, float scale, int previous) throws IOException {
+        // Presence bitmap, decoded in place as 0 / NaN before the values
+        for (int i = 0; i < count; i += 8) {
+            int bits = input.readUnsignedByte();
+            for (int b = 0; b < 8 && i + b < count; b++) {
+                values[i + b] = (bits & (1 << b)) != 0 ? 0f : Float.NaN;
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (!Float.isNaN(values[i])) {
+                previous += (int) unzigzag(readVarint());
+                values[i] = previous / scale;
+            }
+        }
+
+        return previous;
+    }
+
+    private byte[] readBytes() throws IOException {
+        byte[] data = new byte[readCount()];
+        input.readFully(data);
+        return data;
+    }
+
+    /**
+     * @return a varint used as a count or index, which the exporter never writes above Integer.MAX_VALUE
+     */
+    private int readCount() throws IOException {
+        long value = readVarint();
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Invalid count " + value);
+        }
+
+        return (int) value;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Invalid varint");
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import android.os.SystemClock;
+
+import androidx.core.uwb.UwbDevice;
+
+import java.util.Arrays;
+
+/**
+ * Keeps live statistics of the ranging samples of each peer over a sliding time window: sample
+ * rate, and for distance, azimuth and elevation the mean, standard deviation, min, max, p50 and p95.
+ * <p>
+ * Every sample is added and, once out of the window, removed in constant time: mean and variance
+ * are Welford accumulators updated both ways, min and max are the fronts of monotonic deques, and
+ * quantiles come from a fixed bin histogram (5 cm, 0.5 degree). All the memory is allocated when a
+ * peer is first seen and bounded by the window capacity, whatever the session length.
+ * <p>
+ * Samples can be fed from any single thread, statistics can be read from any thread at any time.
+ */
+public class RangingStatisticsEngine {
+
+    public static final long DEFAULT_WINDOW_MS = 10000;
+    // 10 s at 200 Hz
+    public static final int DEFAULT_WINDOW_CAPACITY = 2000;
+
+    private static final float DISTANCE_HISTOGRAM_MAX = 100f;
+    private static final float DISTANCE_BIN_WIDTH = 0.05f;
+    private static final float ANGLE_BIN_WIDTH = 0.5f;
+
+    /**
+     * Statistics of one measurement over the window, NaN when there is no sample
+     */
+    public static class MetricStatistics {
+        private final int count;
+        private final float mean;
+        private final float standardDeviation;
+        private final float min;
+        private final float max;
+        private final float p50;
+        private final float p95;
+
+        private MetricStatistics(int count, float mean, float standardDeviation, float min, float max, float p50, float p95) {
+            this.count = count;
+            this.mean = mean;
+            this.standardDeviation = standardDeviation;
+            this.min = min;
+            this.max = max;
+            this.p50 = p50;
+            this.p95 = p95;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public float getMean() {
+            return mean;
+        }
+
+        public float getStandardDeviation() {
+            return standardDeviation;
+        }
+
+        public float getMin() {
+            return min;
+        }
+
+        public float getMax() {
+            return max;
+        }
+
+        public float getP50() {
+            return p50;
+        }
+
+        public float getP95() {
+            return p95;
+        }
+
+        @Override
+        public String toString() {
+            return "n: " + count + " mean: " + mean + " sd: " + standardDeviation + " min: " + min + " max: " + max
+                    + " p50: " + p50 + " p95: " + p95;
+        }
+    }
+
+    /**
+     * Statistics of one peer over the window
+     */
+    public static class PeerStatistics {
+        private final UwbDevice device;
+        private final int sampleCount;
+        private final float sampleRate;
+        private final MetricStatistics distance;
+        private final MetricStatistics azimuth;
+        private final MetricStatistics elevation;
+
+        private PeerStatistics(UwbDevice device, int sampleCount, float sampleRate,
+                               MetricStatistics distance, MetricStatistics azimuth, MetricStatistics elevation) {
+            this.device = device;
+            this.sampleCount = sampleCount;
+            this.sampleRate = sampleRate;
+            this.distance = distance;
+            this.azimuth = azimuth;
+            this.elevation = elevation;
+        }
+
+        public UwbDevice getDevice() {
+            return device;
+        }
+
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        /**
+         * @return the samples per second over the window, NaN with less than 2 samples
+         */
+        public float getSampleRate() {
+            return sampleRate;
+        }
+
+        public MetricStatistics getDistance() {
+            return distance;
+        }
+
+        public MetricStatistics getAzimuth() {
+            return azimuth;
+        }
+
+        public MetricStatistics getElevation() {
+            return elevation;
+        }
+    }
+
+    /**
+     * Sliding window of one measurement
+     */
+    private static class Metric {
+        // Window ring
+        final long[] timestamps;
+        final float[] values;
+        int head = 0;
+        int count = 0;
+
+        // Welford accumulator
+        double mean = 0;
+        double m2 = 0;
+
+        // Monotonic deques of ring positions, values increasing for min and decreasing for max
+        final int[] minDeque;
+        final int[] maxDeque;
+        int minHead = 0;
+        int minCount = 0;
+        int maxHead = 0;
+        int maxCount = 0;
+
+        // Quantile histogram, values outside the range fall in the first or last bin
+        final float histogramMin;
+        final float binWidth;
+        final int[] bins;
+
+        Metric(int capacity, float histogramMin, float histogramMax, float binWidth) {
+            timestamps = new long[capacity];
+            values = new float[capacity];
+            minDeque = new int[capacity];
+            maxDeque = new int[capacity];
+            this.histogramMin = histogramMin;
+            this.binWidth = binWidth;
+            bins = new int[(int) Math.ceil((histogramMax - histogramMin) / binWidth)];
+        }
+
+        void clear() {
+            head = 0;
+            count = 0;
+            mean = 0;
+            m2 = 0;
+            minCount = 0;
+            maxCount = 0;
+            Arrays.fill(bins, 0);
+        }
+
+        void add(long timestamp, float value) {
+            if (count == values.length) {
+                removeOldest();
+            }
+
+            int capacity = values.length;
+            int position = (head + count) % capacity;
+            timestamps[position] = timestamp;
+            values[position] = value;
+            count++;
+
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+
+            while (minCount > 0 && values[minDeque[(minHead + minCount - 1) % capacity]] >= value) {
+                minCount--;
+            }
+            minDeque[(minHead + minCount) % capacity] = position;
+            minCount++;
+
+            while (maxCount > 0 && values[maxDeque[(maxHead + maxCount - 1) % capacity]] <= value) {
+                maxCount--;
+            }
+            maxDeque[(maxHead + maxCount) % capacity] = position;
+            maxCount++;
+
+            bins[binOf(value)]++;
+        }
+
+        void evictBefore(long oldestTimestamp) {
+            while (count > 0 && timestamps[head] < oldestTimestamp) {
+                removeOldest();
+            }
+        }
+
+        private void removeOldest() {
+            int capacity = values.length;
+            float value = values[head];
+
+            if (count == 1) {
+                mean = 0;
+                m2 = 0;
+            } else {
+                double previousMean = mean;
+                mean = (mean * count - value) / (count - 1);
+                m2 = Math.max(0, m2 - (value - previousMean) * (value - mean));
+            }
+
+            if (minCount > 0 && minDeque[minHead] == head) {
+                minHead = (minHead + 1) % capacity;
+                minCount--;
+            }
+            if (maxCount > 0 && maxDeque[maxHead] == head) {
+                maxHead = (maxHead + 1) % capacity;
+                maxCount--;
+            }
+
+            bins[binOf(value)]--;
+
+            head = (head + 1) % capacity;
+            count--;
+        }
+
+        private int binOf(float value) {
+            int bin = (int) ((value - histogramMin) / binWidth);
+            return bin < 0 ? 0 : Math.min(bin, bins.length - 1);
+        }
+
+        /**
+         * @return the center of the bin holding the quantile, clamped to the window min and max
+         */
+        private float quantile(float q, float min, float max) {
+            int rank = (int) (q * (count - 1));
+            int seen = 0;
+            for (int bin = 0; bin < bins.length; bin++) {
+                seen += bins[bin];
+                if (seen > rank) {
+                    float value = histogramMin + (bin + 0.5f) * binWidth;
+                    return Math.max(min, Math.min(max, value));
+                }
+            }
+
+            return max;
+        }
+
+        MetricStatistics snapshot() {
+            if (count == 0) {
+                return new MetricStatistics(0, Float.NaN, Float.NaN, Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+            }
+
+            float min = values[minDeque[minHead]];
+            float max = values[maxDeque[maxHead]];
+            float standardDeviation = count > 1 ? (float) Math.sqrt(m2 / (count - 1)) : 0f;
+            return new MetricStatistics(count, (float) mean, standardDeviation, min, max,
+                    quantile(0.5f, min, max), quantile(0.95f, min, max));
+        }
+    }
+
+    private static class Peer {
+        UwbDevice device = null;
+        long lastSampleAt = 0;
+
+        // Timestamps of all samples in the window, for the sample rate
+        final long[] timestamps;
+        int head = 0;
+        int count = 0;
+
+        final Metric distance;
+        final Metric azimuth;
+        final Metric elevation;
+
+        Peer(int capacity) {
+            timestamps = new long[capacity];
+            distance = new Metric(capacity, 0f, DISTANCE_HISTOGRAM_MAX, DISTANCE_BIN_WIDTH);
+            azimuth = new Metric(capacity, -180f, 180f, ANGLE_BIN_WIDTH);
+            elevation = new Metric(capacity, -90f, 90f, ANGLE_BIN_WIDTH);
+        }
+
+        void clear(UwbDevice device) {
+            this.device = device;
+            head = 0;
+            count = 0;
+            distance.clear();
+            azimuth.clear();
+            elevation.clear();
+        }
+
+        void add(long timestamp) {
+            if (count == timestamps.length) {
+                head = (head + 1) % timestamps.length;
+                count--;
+            }
+
+            timestamps[(head + count) % timestamps.length] = timestamp;
+            count++;
+        }
+
+        void evictBefore(long oldestTimestamp) {
+            while (count > 0 && timestamps[head] < oldestTimestamp) {
+                head = (head + 1) % timestamps.length;
+                count--;
+            }
+
+            distance.evictBefore(oldestTimestamp);
+            azimuth.evictBefore(oldestTimestamp);
+            elevation.evictBefore(oldestTimestamp);
+        }
+
+        PeerStatistics snapshot() {
+            float sampleRate = Float.NaN;
+            if (count >= 2) {
+                long first = timestamps[head];
+                long last = timestamps[(head + count - 1) % timestamps.length];
+                if (last > first) {
+                    sampleRate = (count - 1) * 1e9f / (last - first);
+                }
+            }
+
+            return new PeerStatistics(device, count, sampleRate, distance.snapshot(), azimuth.snapshot(), elevation.snapshot());
+        }
+    }
+
+    private final long windowNanos;
+    private final int windowCapacity;
+    private final Peer[] peers;
+    private int peerCount = 0;
+
+    /**
+     * @param windowMs       Length of the sliding window
+     * @param windowCapacity Maximum number of samples per peer in the window, older ones are
+     *                       removed first when the ranging rate is higher than expected
+     * @param maxPeers       Maximum number of peers tracked at the same time, the least recently
+     *                       seen one is replaced by a new peer
+     */
+    public RangingStatisticsEngine(long windowMs, int windowCapacity, int maxPeers) {
+        if (windowMs <= 0 || windowCapacity <= 0 || maxPeers <= 0) {
+            throw new IllegalArgumentException("Invalid statistics window");
+        }
+
+        this.windowNanos = windowMs * 1000000L;
+        this.windowCapacity = windowCapacity;
+        this.peers = new Peer[maxPeers];
+    }
+
+    /**
+     * Adds a sample to the statistics of its peer
+     *
+     * @param rangingSample Sample from the ranging stream
+     */
+    public synchronized void onRangingSample(RangingSample rangingSample) {
+        if (rangingSample.getType() != RangingSample.Type.position) {
+            return;
+        }
+
+        long timestamp = rangingSample.getElapsedRealtimeNanos();
+        Peer peer = peerOf(rangingSample.getDevice());
+        peer.lastSampleAt = timestamp;
+        peer.evictBefore(timestamp - windowNanos);
+
+        peer.add(timestamp);
+        if (rangingSample.hasDistance()) {
+            peer.distance.add(timestamp, rangingSample.getDistance());
+        }
+        if (rangingSample.hasAzimuth()) {
+            peer.azimuth.add(timestamp, rangingSample.getAzimuth());
+        }
+        if (rangingSample.hasElevation()) {
+            peer.elevation.add(timestamp, rangingSample.getElevation());
+        }
+    }
+
+    /**
+     * @param device Peer device
+     * @return the statistics of the peer over the window ending now, or null for an unknown peer
+     */
+    public synchronized PeerStatistics getStatistics(UwbDevice device) {
+        for (int i = 0; i < peerCount; i++) {
+            Peer peer = peers[i];
+            if (peer.device.equals(device)) {
+                peer.evictBefore(SystemClock.elapsedRealtimeNanos() - windowNanos);
+                return peer.snapshot();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the statistics of all the tracked peers over the window ending now
+     */
+    public synchronized PeerStatistics[] getStatistics() {
+        long oldestTimestamp = SystemClock.elapsedRealtimeNanos() - windowNanos;
+        PeerStatistics[] statistics = new PeerStatistics[peerCount];
+        for (int i = 0; i < peerCount; i++) {
+            peers[i].evictBefore(oldestTimestamp);
+            statistics[i] = peers[i].snapshot();
+        }
+
+        return statistics;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < peerCount; i++) {
+            peers[i].clear(null);
+        }
+
+        peerCount = 0;
+    }
+
+    private Peer peerOf(UwbDevice device) {
+        int oldest = 0;
+        for (int i = 0; i < peerCount; i++) {
+            if (peers[i].device.equals(device)) {
+                return peers[i];
+            }
+
+            if (peers[i].lastSampleAt < peers[oldest].lastSampleAt) {
+                oldest = i;
+            }
+        }
+
+        Peer peer;
+        if (peerCount < peers.length) {
+            if (peers[peerCount] == null) {
+                peers[peerCount] = new Peer(windowCapacity);
+            }
+            peer = peers[peerCount++];
+        } else {
+            peer = peers[oldest];
+        }
+
+        peer.clear(device);
+        return peer;
+    }
+}
@@ -0,0 +1,733 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import android.util.Log;
+
+import androidx.core.uwb.UwbDevice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.disposables.Disposable;
+
+/**
+ * Streams the ranging samples to clients on the local network, over plain TCP or WebSocket on the
+ * same port.
+ * <p>
+ * The server only listens on the given address, normally the Wi-Fi or Ethernet one, and clients
+ * must present the token given to the server. A client first sends either the 4 bytes "URBS"
+ * followed by the token length as a u8 and the token for plain TCP, or a WebSocket upgrade request
+ * for a path carrying the token as "token" query parameter, e.g. "GET /?token=...". Clients with
+ * a wrong token are disconnected. A client then receives binary frames, each holding the samples ranged since the previous frame. Over
+ * plain TCP a frame is prefixed with its length as a big endian u32, over WebSocket it is one
+ * binary message. A frame is:
+ * <pre>
+ * u8 version, u16 count, count times:
+ *     u8 type, u8 address length, address, i64 elapsed realtime (ns),
+ *     f32 distance (m), f32 azimuth (deg), f32 elevation (deg), NaN when missing
+ * </pre>
+ * All integers are big endian.
+ * <p>
+ * Every client has its own bounded sample queue, when a client reads slower than the ranging rate
+ * its oldest samples are dropped. The ranging stream only ever copies a sample into the queues,
+ * all the socket work is done by a single thread on non-blocking channels.
+ */
+public class RangingStreamServer {
+
+    private static final String TAG = RangingStreamServer.class.getName();
+
+    public static final int DEFAULT_PORT = 8765;
+    public static final int DEFAULT_QUEUE_CAPACITY = 512;
+
+    private static final byte FRAME_VERSION = 1;
+    private static final int MAX_FRAME_SAMPLES = 64;
+    private static final int MAX_ADDRESS_LENGTH = 8;
+    private static final int MAX_SAMPLE_LENGTH = 2 + MAX_ADDRESS_LENGTH + 8 + 3 * 4;
+    // Room for the TCP length prefix or the WebSocket header of a frame below 64 kB
+    private static final int FRAME_HEADER_RESERVED = 4;
+    private static final int OUTPUT_BUFFER_SIZE = FRAME_HEADER_RESERVED + 3 + MAX_FRAME_SAMPLES * MAX_SAMPLE_LENGTH;
+    private static final int INPUT_BUFFER_SIZE = 2048;
+
+    private static final byte[] TCP_MAGIC = "URBS".getBytes(StandardCharsets.US_ASCII);
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final byte[] HTTP_END_OF_HEADERS = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int WEBSOCKET_OPCODE_CLOSE = 0x8;
+
+    private static final String TOKEN_PARAMETER = "token=";
+    private static final int MAX_TOKEN_LENGTH = 0xFF;
+    private static final String[] LAN_INTERFACE_PREFIXES = {"wlan", "swlan", "eth", "ap"};
+
+    private enum Protocol {
+        negotiating,
+        tcp,
+        webSocket
+    }
+
+    private static class Client {
+        final SocketChannel channel;
+        final ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        final ByteBuffer output = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+        volatile Protocol protocol = Protocol.negotiating;
+        // Payload bytes of the incoming WebSocket frame still to skip
+        long skipRemaining = 0;
+        boolean closeAfterWrite = false;
+
+        // Sample ring, guarded by the client
+        final long[] timestamps;
+        final byte[] types;
+        final UwbDevice[] devices;
+        final float[] distances;
+        final float[] azimuths;
+        final float[] elevations;
+        int head = 0;
+        int count = 0;
+        long droppedSamples = 0;
+
+        Client(SocketChannel channel, int queueCapacity) {
+            this.channel = channel;
+            this.output.flip();
+            timestamps = new long[queueCapacity];
+            types = new byte[queueCapacity];
+            devices = new UwbDevice[queueCapacity];
+            distances = new float[queueCapacity];
+            azimuths = new float[queueCapacity];
+            elevations = new float[queueCapacity];
+        }
+    }
+
+    private final InetAddress bindAddress;
+    private final int port;
+    private final int queueCapacity;
+    private final byte[] token;
+
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private volatile Client[] clients = new Client[0];
+    private volatile boolean running = false;
+    private Selector selector = null;
+    private ServerSocketChannel serverChannel = null;
+    private Thread serverThread = null;
+    private Disposable disposable = null;
+
+    /**
+     * @param bindAddress   Local address to listen on, see findLocalNetworkAddress(). The wildcard address is refused.
+     * @param port          TCP port to listen on, 0 for any free port
+     * @param queueCapacity Number of samples kept per client before dropping the oldest
+     * @param token         Token the clients must present, printable ASCII of at most 255 characters
+     */
+    public RangingStreamServer(InetAddress bindAddress, int port, int queueCapacity, String token) {
+        if (bindAddress == null || bindAddress.isAnyLocalAddress() || port < 0 || port > 0xFFFF || queueCapacity <= 0
+                || token == null || token.isEmpty() || token.length() > MAX_TOKEN_LENGTH) {
+            throw new IllegalArgumentException("Invalid server configuration");
+        }
+
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.queueCapacity = queueCapacity;
+        this.token = token.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the IPv4 address of the Wi-Fi, hotspot or Ethernet interface, or null when there is none
+     * @throws SocketException if the interfaces cannot be listed
+     */
+    public static InetAddress findLocalNetworkAddress() throws SocketException {
+        Enumeration<NetworkInterface> networkInterfaces = NetworkInterface.getNetworkInterfaces();
+        while (networkInterfaces != null && networkInterfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = networkInterfaces.nextElement();
+            if (!networkInterface.isUp() || networkInterface.isLoopback() || !isLanInterface(networkInterface.getName())) {
+                continue;
+            }
+
+            Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+            while (addresses.hasMoreElements()) {
+                InetAddress address = addresses.nextElement();
+                if (address instanceof Inet4Address && address.isSiteLocalAddress()) {
+                    return address;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isLanInterface(String name) {
+        for (String prefix : LAN_INTERFACE_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Starts listening and streaming the samples of a ranging stream
+     *
+     * @param rangingSampleFlowable Ranging sample stream
+     * @throws IOException if the port cannot be bound
+     */
+    public synchronized void start(Flowable<RangingSample> rangingSampleFlowable) throws IOException {
+        if (serverThread != null) {
+            throw new IllegalStateException("Server already started");
+        }
+
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(bindAddress, port));
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+            throw e;
+        }
+
+        running = true;
+        serverThread = new Thread(this::run, TAG);
+        serverThread.start();
+        disposable = rangingSampleFlowable.subscribe(this::onRangingSample);
+
+        Log.d(TAG, "Streaming ranging samples on " + bindAddress.getHostAddress() + ":" + getPort());
+    }
+
+    /**
+     * Stops streaming and disconnects all clients
+     */
+    public synchronized void stop() {
+        if (serverThread == null) {
+            return;
+        }
+
+        disposable.dispose();
+        disposable = null;
+        running = false;
+        selector.wakeup();
+
+        try {
+            serverThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        serverThread = null;
+        Log.d(TAG, "Streaming stopped");
+    }
+
+    /**
+     * @return the port the server listens on, or -1 when not started
+     */
+    public synchronized int getPort() {
+        if (serverChannel == null || !serverChannel.isOpen()) {
+            return -1;
+        }
+
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return the number of clients receiving samples, connections still negotiating are not counted
+     */
+    public int getClientCount() {
+        int count = 0;
+        for (Client client : clients) {
+            if (client.protocol != Protocol.negotiating) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the samples dropped so far for the connected clients
+     */
+    public long getDroppedSamples() {
+        long droppedSamples = 0;
+        for (Client client : clients) {
+            synchronized (client) {
+                droppedSamples += client.droppedSamples;
+            }
+        }
+
+        return droppedSamples;
+    }
+
+    private void onRangingSample(RangingSample rangingSample) {
+        Client[] clients = this.clients;
+        boolean queued = false;
+        for (Client client : clients) {
+            if (client.protocol == Protocol.negotiating) {
+                continue;
+            }
+
+            synchronized (client) {
+                int index;
+                if (client.count == queueCapacity) {
+                    // Drop the oldest
+                    index = client.head;
+                    client.head = (client.head + 1) % queueCapacity;
+                    client.droppedSamples++;
+                } else {
+                    index = (client.head + client.count) % queueCapacity;
+                    client.count++;
+                }
+
+                client.timestamps[index] = rangingSample.getElapsedRealtimeNanos();
+                client.types[index] = (byte) rangingSample.getType().ordinal();
+                client.devices[index] = rangingSample.getDevice();
+                client.distances[index] = rangingSample.getDistance();
+                client.azimuths[index] = rangingSample.getAzimuth();
+                client.elevations[index] = rangingSample.getElevation();
+            }
+
+            queued = true;
+        }
+
+        // A single wakeup covers all the samples queued until the server thread runs
+        if (queued && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                wakeupPending.set(false);
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(key, client);
+                        }
+
+                        if (key.isValid() && key.isWritable()) {
+                            flush(key, client);
+                        }
+                    } catch (IOException e) {
+                        Log.d(TAG, "Client error: " + e.getMessage());
+                        disconnect(key, client);
+                    }
+                }
+
+                for (SelectionKey key : selector.keys()) {
+                    Object attachment = key.attachment();
+                    if (attachment != null && key.isValid()) {
+                        try {
+                            flush(key, (Client) attachment);
+                        } catch (IOException e) {
+                            Log.d(TAG, "Client error: " + e.getMessage());
+                            disconnect(key, (Client) attachment);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Server error: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+
+            clients = new Client[0];
+            closeQuietly(selector);
+            running = false;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel, queueCapacity);
+        channel.register(selector, SelectionKey.OP_READ, client);
+
+        Client[] current = clients;
+        Client[] updated = new Client[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = client;
+        clients = updated;
+
+        Log.d(TAG, "Client connected: " + channel.socket().getRemoteSocketAddress());
+    }
+
+    private void disconnect(SelectionKey key, Client client) {
+        key.cancel();
+        closeQuietly(client.channel);
+
+        Client[] current = clients;
+        int index = -1;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == client) {
+                index = i;
+                break;
+            }
+        }
+
+        if (index >= 0) {
+            Client[] updated = new Client[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            clients = updated;
+        }
+
+        Log.d(TAG, "Client disconnected, dropped samples: " + client.droppedSamples);
+    }
+
+    private void read(SelectionKey key, Client client) throws IOException {
+        ByteBuffer input = client.input;
+        if (client.channel.read(input) < 0) {
+            disconnect(key, client);
+            return;
+        }
+
+        input.flip();
+        switch (client.protocol) {
+            case negotiating:
+                negotiate(key, client);
+                break;
+
+            case webSocket:
+                readWebSocketFrames(key, client);
+                break;
+
+            case tcp:
+            default:
+                // Nothing expected from plain TCP clients
+                input.position(input.limit());
+                break;
+        }
+
+        input.compact();
+        if (!input.hasRemaining() && client.protocol == Protocol.negotiating) {
+            throw new IOException("Request too long");
+        }
+    }
+
+    private void negotiate(SelectionKey key, Client client) throws IOException {
+        ByteBuffer input = client.input;
+        if (input.remaining() >= TCP_MAGIC.length && startsWith(input, TCP_MAGIC)) {
+            int tokenStart = input.position() + TCP_MAGIC.length + 1;
+            if (input.limit() < tokenStart || input.limit() < tokenStart + (input.get(tokenStart - 1) & 0xFF)) {
+                // Wait for the whole token
+                return;
+            }
+
+            byte[] clientToken = new byte[input.get(tokenStart - 1) & 0xFF];
+            input.position(tokenStart);
+            input.get(clientToken);
+            if (!MessageDigest.isEqual(clientToken, token)) {
+                throw new IOException("Invalid token");
+            }
+
+            client.protocol = Protocol.tcp;
+            return;
+        }
+
+        int end = indexOf(input, HTTP_END_OF_HEADERS);
+        if (end < 0) {
+            return;
+        }
+
+        String request = new String(input.array(), input.position(), end - input.position(), StandardCharsets.ISO_8859_1);
+        input.position(end + HTTP_END_OF_HEADERS.length);
+
+        String webSocketKey = null;
+        for (String header : request.split("\r\n")) {
+            int separator = header.indexOf(':');
+            if (separator > 0 && header.substring(0, separator).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                webSocketKey = header.substring(separator + 1).trim();
+            }
+        }
+
+        ByteBuffer output = client.output;
+        output.clear();
+        if (!request.startsWith("GET ") || webSocketKey == null) {
+            output.put("HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            output.flip();
+            client.closeAfterWrite = true;
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        String clientToken = requestToken(request);
+        if (clientToken == null || !MessageDigest.isEqual(clientToken.getBytes(StandardCharsets.US_ASCII), token)) {
+            output.put("HTTP/1.1 401 Unauthorized\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            output.flip();
+            client.closeAfterWrite = true;
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        output.put(("HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + webSocketAccept(webSocketKey) + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        output.flip();
+        client.protocol = Protocol.webSocket;
+    }
+
+    /**
+     * Skips the client messages, only looking for a close frame
+     */
+    private void readWebSocketFrames(SelectionKey key, Client client) throws IOException {
+        ByteBuffer input = client.input;
+        while (input.hasRemaining()) {
+            if (client.skipRemaining > 0) {
+                int skipped = (int) Math.min(client.skipRemaining, input.remaining());
+                input.position(input.position() + skipped);
+                client.skipRemaining -= skipped;
+                continue;
+            }
+
+            if (input.remaining() < 2) {
+                return;
+            }
+
+            int start = input.position();
+            int opcode = input.get(start) & 0x0F;
+            boolean masked = (input.get(start + 1) & 0x80) != 0;
+            int length = input.get(start + 1) & 0x7F;
+            int headerLength = 2 + (length == 126 ? 2 : length == 127 ? 8 : 0) + (masked ? 4 : 0);
+            if (input.remaining() < headerLength) {
+                return;
+            }
+
+            if (opcode == WEBSOCKET_OPCODE_CLOSE) {
+                disconnect(key, client);
+                input.position(input.limit());
+                return;
+            }
+
+            long payloadLength = length;
+            if (length == 126) {
+                payloadLength = input.getShort(start + 2) & 0xFFFF;
+            } else if (length == 127) {
+                payloadLength = input.getLong(start + 2);
+            }
+
+            input.position(start + headerLength);
+            client.skipRemaining = payloadLength;
+        }
+    }
+
+    /**
+     * Writes the pending output, then frames of queued samples until the queue is empty or the
+     * socket buffer full
+     */
+    private void flush(SelectionKey key, Client client) throws IOException {
+        ByteBuffer output = client.output;
+        while (true) {
+            if (output.hasRemaining()) {
+                client.channel.write(output);
+                if (output.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            if (client.closeAfterWrite) {
+                disconnect(key, client);
+                return;
+            }
+
+            if (client.protocol == Protocol.negotiating || !fillFrame(client)) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if there was no sample to send
+     */
+    private boolean fillFrame(Client client) {
+        ByteBuffer output = client.output;
+        output.clear();
+        output.position(FRAME_HEADER_RESERVED);
+
+        int count;
+        synchronized (client) {
+            count = Math.min(client.count, MAX_FRAME_SAMPLES);
+            if (count == 0) {
+                output.limit(0);
+                return false;
+            }
+
+            output.put(FRAME_VERSION);
+            output.putShort((short) count);
+            for (int i = 0; i < count; i++) {
+                int index = client.head;
+                putSample(output, client.types[index], client.devices[index], client.timestamps[index],
+                        client.distances[index], client.azimuths[index], client.elevations[index]);
+
+                client.devices[index] = null;
+                client.head = (index + 1) % queueCapacity;
+            }
+
+            client.count -= count;
+        }
+
+        int payloadLength = output.position() - FRAME_HEADER_RESERVED;
+        int start;
+        if (client.protocol == Protocol.webSocket) {
+            if (payloadLength < 126) {
+                start = FRAME_HEADER_RESERVED - 2;
+                output.put(start + 1, (byte) payloadLength);
+            } else {
+                start = FRAME_HEADER_RESERVED - 4;
+                output.put(start + 1, (byte) 126);
+                output.putShort(start + 2, (short) payloadLength);
+            }
+
+            // FIN, binary
+            output.put(start, (byte) 0x82);
+        } else {
+            start = 0;
+            output.putInt(start, payloadLength);
+        }
+
+        output.limit(output.position());
+        output.position(start);
+        return true;
+    }
+
+    /**
+     * Writes one sample of a frame, at most MAX_SAMPLE_LENGTH bytes
+     */
+    static void putSample(ByteBuffer output, byte type, UwbDevice device, long elapsedRealtimeNanos,
+                          float distance, float azimuth, float elevation) {
+        byte[] address = device != null ? device.getAddress().getAddress() : null;
+        int addressLength = address != null ? Math.min(address.length, MAX_ADDRESS_LENGTH) : 0;
+
+        output.put(type);
+        output.put((byte) addressLength);
+        if (addressLength > 0) {
+            output.put(address, 0, addressLength);
+        }
+        output.putLong(elapsedRealtimeNanos);
+        output.putFloat(distance);
+        output.putFloat(azimuth);
+        output.putFloat(elevation);
+    }
+
+    /**
+     * @return the token query parameter of the request line, or null
+     */
+    private static String requestToken(String request) {
+        int targetEnd = request.indexOf(' ', 4);
+        int queryStart = request.indexOf('?');
+        if (targetEnd < 0 || queryStart < 0 || queryStart > targetEnd) {
+            return null;
+        }
+
+        for (String parameter : request.substring(queryStart + 1, targetEnd).split("&")) {
+            if (parameter.startsWith(TOKEN_PARAMETER)) {
+                return parameter.substring(TOKEN_PARAMETER.length());
+            }
+        }
+
+        return null;
+    }
+
+    private static String webSocketAccept(String webSocketKey) throws IOException {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((webSocketKey + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(buffer.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte[] pattern) {
+        for (int i = buffer.position(); i <= buffer.limit() - pattern.length; i++) {
+            boolean found = true;
+            for (int j = 0; j < pattern.length && found; j++) {
+                found = buffer.get(i + j) == pattern[j];
+            }
+
+            if (found) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Close error: " + e.getMessage());
+        }
+    }
+}
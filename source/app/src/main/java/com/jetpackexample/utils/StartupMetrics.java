@@ -0,0 +1,80 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.utils;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures the time from launch until the Bluetooth scan is started.
+ * A cold start is measured from the process start, a warm start from the activity creation in an
+ * already running process.
+ */
+public class StartupMetrics {
+
+    private static final String TAG = StartupMetrics.class.getName();
+
+    private static long launchedAt = 0;
+    private static boolean coldStart = false;
+    private static boolean processLaunched = false;
+    private static long lastStartToScanMs = -1;
+    private static boolean lastStartCold = false;
+
+    private StartupMetrics() {
+    }
+
+    /**
+     * To be called first thing in the launcher activity onCreate
+     */
+    public static synchronized void onActivityCreated() {
+        if (!processLaunched) {
+            processLaunched = true;
+            coldStart = true;
+            launchedAt = Process.getStartElapsedRealtime();
+        } else {
+            coldStart = false;
+            launchedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * To be called when the scan is started, only the first scan after a launch is reported
+     */
+    public static synchronized void onScanStarted() {
+        if (launchedAt == 0) {
+            return;
+        }
+
+        lastStartToScanMs = SystemClock.elapsedRealtime() - launchedAt;
+        lastStartCold = coldStart;
+        launchedAt = 0;
+
+        Log.i(TAG, (lastStartCold ? "Cold" : "Warm") + " start to scan started: " + lastStartToScanMs + " ms");
+    }
+
+    /**
+     * @return the time from the last launch to the scan started, or -1 if not measured yet
+     */
+    public static synchronized long getLastStartToScanMs() {
+        return lastStartToScanMs;
+    }
+
+    public static synchronized boolean isLastStartCold() {
+        return lastStartCold;
+    }
+}
@@ -291,4 +291,54 @@ public class Utils {
         }
         return result;
     }
+
+    /**
+     * Writes a number with a fixed number of decimals into a char array, without allocating
+     *
+     * @param buffer   Destination, must have room for the sign, 10 integer digits, the point and the decimals
+     * @param offset   Position of the first char in the buffer
+     * @param value    Value to write, NaN and infinities are written as "-"
+     * @param decimals Number of decimals, up to 6
+     * @return the position after the last char written
+     */
+    public static int formatFixed(char[] buffer, int offset, float value, int decimals) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            buffer[offset] = '-';
+            return offset + 1;
+        }
+
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+
+        long scaled = Math.round(Math.abs((double) value) * scale);
+        if (value < 0 && scaled != 0) {
+            buffer[offset++] = '-';
+        }
+
+        long integer = scaled / scale;
+        long fraction = scaled % scale;
+
+        // Integer digits, written backwards then reversed
+        int start = offset;
+        do {
+            buffer[offset++] = (char) ('0' + integer % 10);
+            integer /= 10;
+        } while (integer != 0);
+        for (int i = start, j = offset - 1; i < j; i++, j--) {
+            char c = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = c;
+        }
+
+        if (decimals > 0) {
+            buffer[offset++] = '.';
+            for (long divisor = scale / 10; divisor > 0; divisor /= 10) {
+                buffer[offset++] = (char) ('0' + (fraction / divisor) % 10);
+            }
+        }
+
+        return offset;
+    }
 }
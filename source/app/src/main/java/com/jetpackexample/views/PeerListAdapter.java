@@ -0,0 +1,410 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.views;
+
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.core.uwb.UwbDevice;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.jetpackexample.R;
+import com.jetpackexample.ranging.RangingSample;
+import com.jetpackexample.ranging.RangingStatisticsEngine;
+import com.jetpackexample.utils.Utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Lists every ranged peer with its distance, bearing and update rate, and the distance statistics
+ * of its window when fed with onPeerStatistics().
+ * <p>
+ * Samples only update the state of their peer row and queue the row once until it is shown, from
+ * any thread. Queued rows are applied on the UI thread once per frame, at most
+ * MAX_ROWS_PER_FRAME of them: new peers are inserted, disconnected ones removed and the others
+ * rebound with a payload naming the changed fields, so only those views are touched. Rows have
+ * stable IDs and the views have fixed sizes, a rebind never causes a layout.
+ */
+public class PeerListAdapter extends RecyclerView.Adapter<PeerListAdapter.PeerViewHolder> implements Choreographer.FrameCallback {
+
+    // Rebinds applied per frame, rows left over wait for the next frame
+    private static final int MAX_ROWS_PER_FRAME = 8;
+
+    // Changed fields, also used as payloads
+    private static final int CHANGED_DISTANCE = 1;
+    private static final int CHANGED_BEARING = 1 << 1;
+    private static final int CHANGED_RATE = 1 << 2;
+    private static final int CHANGED_STATISTICS = 1 << 3;
+    private static final Integer[] PAYLOADS = new Integer[CHANGED_STATISTICS << 1];
+
+    static {
+        for (int i = 0; i < PAYLOADS.length; i++) {
+            PAYLOADS[i] = i;
+        }
+    }
+
+    // Smoothing of the inter-arrival time the update rate is computed from
+    private static final float RATE_SMOOTHING = 0.2f;
+
+    private static class PeerRow {
+        final long id;
+        final UwbDevice device;
+        final String address;
+
+        // Written by the sample thread, guarded by the adapter lock
+        float distance = Float.NaN;
+        float azimuth = Float.NaN;
+        float intervalNanos = Float.NaN;
+        float distanceP50 = Float.NaN;
+        float distanceP95 = Float.NaN;
+        float distanceStandardDeviation = Float.NaN;
+        long sampledAt = 0;
+        int changed = 0;
+        boolean queued = false;
+        boolean disconnected = false;
+
+        // UI thread only
+        int position = RecyclerView.NO_POSITION;
+
+        PeerRow(long id, UwbDevice device) {
+            this.id = id;
+            this.device = device;
+            this.address = Utils.byteArrayToHexString(device.getAddress().getAddress());
+        }
+    }
+
+    static class PeerViewHolder extends RecyclerView.ViewHolder {
+        final TextView address;
+        final TextView statistics;
+        final TextView distance;
+        final TextView bearing;
+        final ImageView arrow;
+        final TextView rate;
+        final View health;
+
+        PeerViewHolder(View itemView) {
+            super(itemView);
+            address = itemView.findViewById(R.id.peer_address);
+            statistics = itemView.findViewById(R.id.peer_statistics);
+            distance = itemView.findViewById(R.id.peer_distance);
+            bearing = itemView.findViewById(R.id.peer_bearing);
+            arrow = itemView.findViewById(R.id.peer_arrow);
+            rate = itemView.findViewById(R.id.peer_rate);
+            health = itemView.findViewById(R.id.peer_health);
+        }
+    }
+
+    private final float configuredRate;
+    private final Object lock = new Object();
+    private final HashMap<UwbDevice, PeerRow> rowsByDevice = new HashMap<>();
+    private final ArrayDeque<PeerRow> queuedRows = new ArrayDeque<>();
+    private boolean frameScheduled = false;
+    private long nextId = 1;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final Runnable scheduleFrame = () -> Choreographer.getInstance().postFrameCallback(this);
+
+    // UI thread only
+    private final List<PeerRow> rows = new ArrayList<>();
+    private final char[] text = new char[64];
+
+    /**
+     * @param configuredRate Configured update rate of the sessions (Hz), the health is the
+     *                       achieved rate against this one
+     */
+    public PeerListAdapter(float configuredRate) {
+        this.configuredRate = configuredRate;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Updates the row of the sample peer, may be called from any thread
+     *
+     * @param rangingSample Sample from the ranging stream
+     */
+    public void onRangingSample(RangingSample rangingSample) {
+        boolean schedule;
+        synchronized (lock) {
+            PeerRow row = rowsByDevice.get(rangingSample.getDevice());
+            if (row == null) {
+                if (rangingSample.getType() == RangingSample.Type.peerDisconnected) {
+                    return;
+                }
+
+                row = new PeerRow(nextId++, rangingSample.getDevice());
+                rowsByDevice.put(row.device, row);
+            }
+
+            if (rangingSample.getType() == RangingSample.Type.peerDisconnected) {
+                rowsByDevice.remove(row.device);
+                row.disconnected = true;
+            } else {
+                long timestamp = rangingSample.getElapsedRealtimeNanos();
+                if (row.sampledAt != 0 && timestamp > row.sampledAt) {
+                    float interval = timestamp - row.sampledAt;
+                    row.intervalNanos = Float.isNaN(row.intervalNanos)
+                            ? interval : row.intervalNanos + (interval - row.intervalNanos) * RATE_SMOOTHING;
+                    row.changed |= CHANGED_RATE;
+                }
+                row.sampledAt = timestamp;
+
+                if (rangingSample.hasDistance() && rangingSample.getDistance() != row.distance) {
+                    row.distance = rangingSample.getDistance();
+                    row.changed |= CHANGED_DISTANCE;
+                }
+                if (rangingSample.hasAzimuth() && rangingSample.getAzimuth() != row.azimuth) {
+                    row.azimuth = rangingSample.getAzimuth();
+                    row.changed |= CHANGED_BEARING;
+                }
+            }
+
+            if (!row.queued) {
+                row.queued = true;
+                queuedRows.add(row);
+            }
+
+            schedule = !frameScheduled;
+            frameScheduled = true;
+        }
+
+        if (schedule) {
+            // Choreographer is per thread, the frames are those of the UI thread
+            uiHandler.post(scheduleFrame);
+        }
+    }
+
+    /**
+     * Updates the distance statistics of the listed peers, may be called from any thread
+     *
+     * @param peerStatistics Statistics of the peers over their window
+     */
+    public void onPeerStatistics(RangingStatisticsEngine.PeerStatistics[] peerStatistics) {
+        boolean schedule = false;
+        synchronized (lock) {
+            for (RangingStatisticsEngine.PeerStatistics statistics : peerStatistics) {
+                PeerRow row = rowsByDevice.get(statistics.getDevice());
+                if (row == null) {
+                    continue;
+                }
+
+                RangingStatisticsEngine.MetricStatistics distance = statistics.getDistance();
+                row.distanceP50 = distance.getP50();
+                row.distanceP95 = distance.getP95();
+                row.distanceStandardDeviation = distance.getStandardDeviation();
+                row.changed |= CHANGED_STATISTICS;
+
+                if (!row.queued) {
+                    row.queued = true;
+                    queuedRows.add(row);
+                }
+
+                schedule |= !frameScheduled;
+                frameScheduled = true;
+            }
+        }
+
+        if (schedule) {
+            uiHandler.post(scheduleFrame);
+        }
+    }
+
+    /**
+     * Removes all the peers, on the UI thread
+     */
+    public void clear() {
+        synchronized (lock) {
+            rowsByDevice.clear();
+            for (PeerRow row : queuedRows) {
+                row.queued = false;
+            }
+            queuedRows.clear();
+        }
+
+        int count = rows.size();
+        rows.clear();
+        notifyItemRangeRemoved(0, count);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        for (int i = 0; i < MAX_ROWS_PER_FRAME; i++) {
+            PeerRow row;
+            int changed;
+            boolean disconnected;
+            synchronized (lock) {
+                row = queuedRows.poll();
+                if (row == null) {
+                    break;
+                }
+
+                row.queued = false;
+                changed = row.changed;
+                row.changed = 0;
+                disconnected = row.disconnected;
+            }
+
+            if (disconnected) {
+                if (row.position != RecyclerView.NO_POSITION) {
+                    int position = row.position;
+                    rows.remove(position);
+                    row.position = RecyclerView.NO_POSITION;
+                    for (int j = position; j < rows.size(); j++) {
+                        rows.get(j).position = j;
+                    }
+                    notifyItemRemoved(position);
+                }
+            } else if (row.position == RecyclerView.NO_POSITION) {
+                row.position = rows.size();
+                rows.add(row);
+                notifyItemInserted(row.position);
+            } else if (changed != 0) {
+                notifyItemChanged(row.position, PAYLOADS[changed]);
+            }
+        }
+
+        boolean nextFrame;
+        synchronized (lock) {
+            nextFrame = !queuedRows.isEmpty();
+            frameScheduled = nextFrame;
+        }
+
+        if (nextFrame) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return rows.get(position).id;
+    }
+
+    @Override
+    public int getItemCount() {
+        return rows.size();
+    }
+
+    @NonNull
+    @Override
+    public PeerViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_peer, parent, false);
+        return new PeerViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull PeerViewHolder holder, int position) {
+        PeerRow row = rows.get(position);
+        holder.address.setText(row.address);
+        bind(holder, row, CHANGED_DISTANCE | CHANGED_BEARING | CHANGED_RATE | CHANGED_STATISTICS);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull PeerViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+
+        // Payloads of rebinds not yet applied are merged
+        int changed = 0;
+        for (int i = 0; i < payloads.size(); i++) {
+            changed |= (Integer) payloads.get(i);
+        }
+        bind(holder, rows.get(position), changed);
+    }
+
+    private void bind(PeerViewHolder holder, PeerRow row, int changed) {
+        float distance;
+        float azimuth;
+        float intervalNanos;
+        float distanceP50;
+        float distanceP95;
+        float distanceStandardDeviation;
+        synchronized (lock) {
+            distance = row.distance;
+            azimuth = row.azimuth;
+            intervalNanos = row.intervalNanos;
+            distanceP50 = row.distanceP50;
+            distanceP95 = row.distanceP95;
+            distanceStandardDeviation = row.distanceStandardDeviation;
+        }
+
+        if ((changed & CHANGED_DISTANCE) != 0) {
+            int length = Utils.formatFixed(text, 0, distance, 2);
+            text[length++] = ' ';
+            text[length++] = 'm';
+            holder.distance.setText(text, 0, length);
+        }
+
+        if ((changed & CHANGED_BEARING) != 0) {
+            int length = Utils.formatFixed(text, 0, azimuth, 0);
+            text[length++] = '\u00B0';
+            holder.bearing.setText(text, 0, length);
+            holder.arrow.setRotation(Float.isNaN(azimuth) ? 0f : azimuth);
+        }
+
+        if ((changed & CHANGED_RATE) != 0) {
+            float rate = intervalNanos > 0 ? 1e9f / intervalNanos : Float.NaN;
+            int length = Utils.formatFixed(text, 0, rate, 1);
+            text[length++] = ' ';
+            text[length++] = 'H';
+            text[length++] = 'z';
+            holder.rate.setText(text, 0, length);
+            holder.health.setBackgroundColor(healthColor(rate));
+        }
+
+        if ((changed & CHANGED_STATISTICS) != 0) {
+            int length = append(text, 0, "p50 ");
+            length = Utils.formatFixed(text, length, distanceP50, 2);
+            length = append(text, length, "  p95 ");
+            length = Utils.formatFixed(text, length, distanceP95, 2);
+            length = append(text, length, "  sd ");
+            length = Utils.formatFixed(text, length, distanceStandardDeviation, 2);
+            length = append(text, length, " m");
+            holder.statistics.setText(text, 0, length);
+        }
+    }
+
+    private static int append(char[] buffer, int offset, String value) {
+        value.getChars(0, value.length(), buffer, offset);
+        return offset + value.length();
+    }
+
+    private int healthColor(float rate) {
+        if (Float.isNaN(rate)) {
+            return Color.LTGRAY;
+        }
+
+        float ratio = rate / configuredRate;
+        if (ratio >= 0.8f) {
+            return Color.GREEN;
+        } else if (ratio >= 0.5f) {
+            return Color.YELLOW;
+        }
+
+        return Color.RED;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.views;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
+
+import com.jetpackexample.R;
+import com.jetpackexample.utils.Utils;
+
+/**
+ * Draws the ranging display: the arrow pointing at the tracked peer, its distance and azimuth,
+ * and every ranged peer as a dot on a radar around the arrow, all in a single onDraw pass.
+ * <p>
+ * Setters only store the values and invalidate, the view size never depends on them so a new
+ * sample never triggers a layout. Paints, text prefixes and the text buffers are created once,
+ * numbers are formatted into char arrays, nothing is allocated per sample or per frame.
+ * <p>
+ * Must be used from the UI thread.
+ */
+public class RangingView extends View {
+
+    public static final int MAX_PEERS = 16;
+
+    // Peers at this distance or further are drawn on the radar edge
+    private static final float RADAR_RANGE_M = 10f;
+    private static final float DISTANCE_TEXT_SP = 30f;
+    private static final float AZIMUTH_TEXT_SP = 24f;
+    private static final float PEER_TEXT_SP = 12f;
+    private static final float PEER_RADIUS_DP = 6f;
+    private static final float TEXT_MARGIN_DP = 10f;
+
+    private final Paint arrowPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+    private final Paint radarPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint peerPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint peerTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint distanceTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint azimuthTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private final Bitmap arrowBitmap;
+    private final RectF arrowRect = new RectF();
+    private final float peerRadius;
+    private final float textMargin;
+
+    private final char[] distanceLabel;
+    private final char[] distanceUnitM;
+    private final char[] distanceUnitCm;
+    private final char[] azimuthLabel;
+    private final char[] azimuthUnit;
+    private final char[] distanceText = new char[64];
+    private final char[] azimuthText = new char[64];
+    private final char[] peerText = new char[16];
+    private int distanceTextLength = 0;
+    private int azimuthTextLength = 0;
+
+    // Layout, computed on size changes
+    private float centerX;
+    private float centerY;
+    private float radarRadius;
+    private float distanceBaseline;
+    private float azimuthBaseline;
+
+    // Displayed values
+    private float arrowAzimuth = 0f;
+    private final float[] peerDistances = new float[MAX_PEERS];
+    private final float[] peerAzimuths = new float[MAX_PEERS];
+    private int peerCount = 0;
+
+    public RangingView(Context context) {
+        this(context, null);
+    }
+
+    public RangingView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        arrowBitmap = BitmapFactory.decodeResource(getResources(), R.drawable.black_arrow);
+
+        radarPaint.setStyle(Paint.Style.STROKE);
+        radarPaint.setStrokeWidth(dp(1));
+        radarPaint.setColor(Color.LTGRAY);
+        peerPaint.setColor(Color.DKGRAY);
+        peerTextPaint.setColor(Color.DKGRAY);
+        peerTextPaint.setTextSize(sp(PEER_TEXT_SP));
+        distanceTextPaint.setColor(Color.BLACK);
+        distanceTextPaint.setTextSize(sp(DISTANCE_TEXT_SP));
+        distanceTextPaint.setTextAlign(Paint.Align.CENTER);
+        azimuthTextPaint.setColor(Color.DKGRAY);
+        azimuthTextPaint.setTextSize(sp(AZIMUTH_TEXT_SP));
+        azimuthTextPaint.setTextAlign(Paint.Align.CENTER);
+
+        peerRadius = dp(PEER_RADIUS_DP);
+        textMargin = dp(TEXT_MARGIN_DP);
+
+        distanceLabel = getResources().getString(R.string.uwb_distance_label).toCharArray();
+        distanceUnitM = getResources().getString(R.string.uwb_distance_unit_m).toCharArray();
+        distanceUnitCm = getResources().getString(R.string.uwb_distance_unit_cm).toCharArray();
+        azimuthLabel = getResources().getString(R.string.uwb_aoa_label).toCharArray();
+        azimuthUnit = getResources().getString(R.string.uwb_aoa_unit).toCharArray();
+
+        reset();
+    }
+
+    /**
+     * Clears the values, back to the not started display
+     */
+    public void reset() {
+        arrowAzimuth = 0f;
+        peerCount = 0;
+        setDistance(Float.NaN);
+        setAzimuth(Float.NaN);
+    }
+
+    /**
+     * @param distance Distance shown as text (m), NaN when unknown
+     */
+    public void setDistance(float distance) {
+        int length = append(distanceText, 0, distanceLabel);
+        if (distance > 1 || Float.isNaN(distance)) {
+            length = Utils.formatFixed(distanceText, length, distance, 2);
+            length = append(distanceText, length, distanceUnitM);
+        } else {
+            length = Utils.formatFixed(distanceText, length, distance * 100, 0);
+            length = append(distanceText, length, distanceUnitCm);
+        }
+
+        distanceTextLength = length;
+        postInvalidateOnAnimation();
+    }
+
+    /**
+     * @param azimuth Azimuth shown as text (degrees), NaN when unknown
+     */
+    public void setAzimuth(float azimuth) {
+        int length = append(azimuthText, 0, azimuthLabel);
+        length = Utils.formatFixed(azimuthText, length, azimuth, 0);
+        azimuthTextLength = append(azimuthText, length, azimuthUnit);
+        postInvalidateOnAnimation();
+    }
+
+    /**
+     * @param azimuth Direction of the arrow (degrees, clockwise)
+     */
+    public void setArrowAzimuth(float azimuth) {
+        if (Float.isNaN(azimuth) || azimuth == arrowAzimuth) {
+            return;
+        }
+
+        arrowAzimuth = azimuth;
+        postInvalidateOnAnimation();
+    }
+
+    /**
+     * Sets the number of peers drawn on the radar, peers above the count are not drawn
+     *
+     * @param peerCount Number of peers, up to MAX_PEERS
+     */
+    public void setPeerCount(int peerCount) {
+        this.peerCount = Math.min(peerCount, MAX_PEERS);
+        postInvalidateOnAnimation();
+    }
+
+    /**
+     * @param index    Peer index, below the peer count
+     * @param distance Distance of the peer (m)
+     * @param azimuth  Azimuth of the peer (degrees)
+     */
+    public void setPeer(int index, float distance, float azimuth) {
+        if (index < 0 || index >= MAX_PEERS) {
+            return;
+        }
+
+        peerDistances[index] = distance;
+        peerAzimuths[index] = azimuth;
+        postInvalidateOnAnimation();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        float width = w - getPaddingLeft() - getPaddingRight();
+        float textHeight = distanceTextPaint.getFontSpacing() + azimuthTextPaint.getFontSpacing() + 2 * textMargin;
+        float height = Math.max(0f, h - getPaddingTop() - getPaddingBottom() - textHeight);
+
+        centerX = getPaddingLeft() + width / 2;
+        centerY = getPaddingTop() + height / 2;
+        radarRadius = Math.max(0f, Math.min(width, height) / 2 - peerRadius);
+
+        // Keep the arrow aspect ratio, inside the radar
+        float arrowHeight = radarRadius * 1.5f;
+        float arrowWidth = arrowBitmap != null && arrowBitmap.getHeight() > 0
+                ? arrowHeight * arrowBitmap.getWidth() / arrowBitmap.getHeight() : arrowHeight;
+        arrowRect.set(centerX - arrowWidth / 2, centerY - arrowHeight / 2, centerX + arrowWidth / 2, centerY + arrowHeight / 2);
+
+        distanceBaseline = getPaddingTop() + height + textMargin - distanceTextPaint.ascent();
+        azimuthBaseline = distanceBaseline + distanceTextPaint.descent() + textMargin - azimuthTextPaint.ascent();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        if (peerCount > 1) {
+            canvas.drawCircle(centerX, centerY, radarRadius, radarPaint);
+            for (int i = 0; i < peerCount; i++) {
+                drawPeer(canvas, peerDistances[i], peerAzimuths[i]);
+            }
+        }
+
+        if (arrowBitmap != null) {
+            canvas.save();
+            canvas.rotate(arrowAzimuth, centerX, centerY);
+            canvas.drawBitmap(arrowBitmap, null, arrowRect, arrowPaint);
+            canvas.restore();
+        }
+
+        canvas.drawText(distanceText, 0, distanceTextLength, centerX, distanceBaseline, distanceTextPaint);
+        canvas.drawText(azimuthText, 0, azimuthTextLength, centerX, azimuthBaseline, azimuthTextPaint);
+    }
+
+    private void drawPeer(Canvas canvas, float distance, float azimuth) {
+        if (Float.isNaN(distance) || Float.isNaN(azimuth)) {
+            return;
+        }
+
+        // Azimuth 0 is straight up, clockwise
+        float radius = radarRadius * Math.min(distance, RADAR_RANGE_M) / RADAR_RANGE_M;
+        double radians = Math.toRadians(azimuth);
+        float x = centerX + radius * (float) Math.sin(radians);
+        float y = centerY - radius * (float) Math.cos(radians);
+        canvas.drawCircle(x, y, peerRadius, peerPaint);
+
+        int length = Utils.formatFixed(peerText, 0, distance, 1);
+        canvas.drawText(peerText, 0, length, x + peerRadius * 1.5f, y - peerRadius, peerTextPaint);
+    }
+
+    private static int append(char[] buffer, int offset, char[] text) {
+        System.arraycopy(text, 0, buffer, offset, text.length);
+        return offset + text.length;
+    }
+
+    private float dp(float value) {
+        return TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, value, getResources().getDisplayMetrics());
+    }
+
+    private float sp(float value) {
+        return TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, value, getResources().getDisplayMetrics());
+    }
+}
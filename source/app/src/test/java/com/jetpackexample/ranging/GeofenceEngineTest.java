@@ -0,0 +1,177 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.core.uwb.UwbAddress;
+import androidx.core.uwb.UwbDevice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Zone events of the geofence engine: enter, exit and dwell, exit hysteresis, samples outside the
+ * grid and the grid growing its cells when the zones span a large area.
+ */
+public class GeofenceEngineTest {
+
+    private final List<String> events = new ArrayList<>();
+
+    private GeofenceEngine engineWith(float cellSize, float[][] zones, float hysteresis, long dwellMs) {
+        GeofenceEngine engine = new GeofenceEngine(zones.length, 2, cellSize);
+        for (int zone = 0; zone < zones.length; zone++) {
+            engine.addZone("zone" + zone, zones[zone][0], zones[zone][1], zones[zone][2], zones[zone][3], hysteresis, dwellMs);
+        }
+        engine.build();
+        engine.setGeofenceListener((tagIndex, zoneIndex, zoneName, event, timestampMs) ->
+                events.add(tagIndex + " " + zoneName + " " + event));
+        return engine;
+    }
+
+    private List<String> takeEvents() {
+        List<String> taken = new ArrayList<>(events);
+        events.clear();
+        return taken;
+    }
+
+    @Test
+    public void enterDwellExit() {
+        GeofenceEngine engine = engineWith(1f, new float[][]{{0, 0, 2, 2}}, 0, 1000);
+
+        engine.update(0, 0, 1, 1);
+        assertEquals(Collections.singletonList("0 zone0 enter"), takeEvents());
+
+        engine.update(0, 500, 1.5f, 1);
+        assertEquals(Collections.emptyList(), takeEvents());
+
+        engine.update(0, 1000, 1.5f, 1.5f);
+        assertEquals(Collections.singletonList("0 zone0 dwell"), takeEvents());
+
+        // Dwell is reported once per stay
+        engine.update(0, 2000, 1, 1);
+        assertEquals(Collections.emptyList(), takeEvents());
+
+        engine.update(0, 2100, 3, 1);
+        assertEquals(Collections.singletonList("0 zone0 exit"), takeEvents());
+
+        // A new stay, with its own dwell
+        engine.update(0, 3000, 1, 1);
+        engine.update(0, 4000, 1, 1);
+        assertEquals(Arrays.asList("0 zone0 enter", "0 zone0 dwell"), takeEvents());
+    }
+
+    @Test
+    public void tagsAreIndependent() {
+        GeofenceEngine engine = engineWith(1f, new float[][]{{0, 0, 2, 2}}, 0, 0);
+
+        engine.update(0, 0, 1, 1);
+        engine.update(1, 0, 5, 5);
+        engine.update(1, 100, 1, 1);
+        engine.update(0, 100, 5, 5);
+        assertEquals(Arrays.asList("0 zone0 enter", "1 zone0 enter", "0 zone0 exit"), takeEvents());
+    }
+
+    @Test
+    public void exitHysteresis() {
+        GeofenceEngine engine = engineWith(1f, new float[][]{{0, 0, 2, 2}}, 0.5f, 0);
+
+        engine.update(0, 0, 1, 1);
+        assertEquals(Collections.singletonList("0 zone0 enter"), takeEvents());
+
+        // Within the margin, still inside
+        engine.update(0, 100, 2.4f, 1);
+        engine.update(0, 200, 1, -0.4f);
+        assertEquals(Collections.emptyList(), takeEvents());
+
+        engine.update(0, 300, 2.6f, 1);
+        assertEquals(Collections.singletonList("0 zone0 exit"), takeEvents());
+
+        // Entering again needs the zone itself, not the margin
+        engine.update(0, 400, 2.4f, 1);
+        assertEquals(Collections.emptyList(), takeEvents());
+        engine.update(0, 500, 1.9f, 1);
+        assertEquals(Collections.singletonList("0 zone0 enter"), takeEvents());
+    }
+
+    @Test
+    public void samplesOutsideTheGrid() {
+        GeofenceEngine engine = engineWith(1f, new float[][]{{0, 0, 2, 2}, {4, 4, 6, 6}}, 0.5f, 0);
+
+        // Neither below nor beyond the grid enters anything
+        engine.update(0, 0, -10, -10);
+        engine.update(0, 100, 100, 100);
+        engine.update(0, 200, -10, 100);
+        assertEquals(Collections.emptyList(), takeEvents());
+
+        // Leaving the grid from inside a zone is an exit
+        engine.update(0, 300, 5, 5);
+        engine.update(0, 400, 100, 5);
+        engine.update(0, 500, 1, 1);
+        engine.update(0, 600, 1, -10);
+        assertEquals(Arrays.asList("0 zone1 enter", "0 zone1 exit", "0 zone0 enter", "0 zone0 exit"), takeEvents());
+    }
+
+    @Test
+    public void cellsGrowPastMaxGridCells() {
+        // 1000 m apart with 0.1 m cells would need 10^8 cells
+        float[][] zones = {{0, 0, 1, 1}, {1000, 1000, 1001, 1001}};
+        GeofenceEngine engine = engineWith(0.1f, zones, 0, 0);
+
+        assertTrue(engine.getCellSize() > 0.1f);
+        assertTrue(engine.getGridCellCount() <= GeofenceEngine.MAX_GRID_CELLS);
+
+        // Building again starts over from the configured size
+        float cellSize = engine.getCellSize();
+        engine.build();
+        assertEquals(cellSize, engine.getCellSize(), 0f);
+
+        // Both zones are still found, and their neighbourhood within a cell is not a zone
+        engine.update(0, 0, 0.5f, 0.5f);
+        engine.update(0, 100, 1.5f, 0.5f);
+        engine.update(0, 200, 1000.5f, 1000.5f);
+        engine.update(0, 300, 999.5f, 1000.5f);
+        assertEquals(Arrays.asList("0 zone0 enter", "0 zone0 exit", "0 zone1 enter", "0 zone1 exit"), takeEvents());
+    }
+
+    @Test
+    public void smallAreaKeepsConfiguredCells() {
+        GeofenceEngine engine = engineWith(0.5f, new float[][]{{0, 0, 10, 10}}, 0, 0);
+        assertEquals(0.5f, engine.getCellSize(), 0f);
+    }
+
+    @Test
+    public void positionsUseTheHorizontalPlane() {
+        GeofenceEngine engine = engineWith(1f, new float[][]{{-0.5f, 0.3f, 0.5f, 2f}}, 0, 0);
+        UwbDevice first = new UwbDevice(new UwbAddress(new byte[]{0x01, 0x02}));
+        UwbDevice second = new UwbDevice(new UwbAddress(new byte[]{0x03, 0x04}));
+        UwbDevice third = new UwbDevice(new UwbAddress(new byte[]{0x05, 0x06}));
+
+        // Ahead of the phone, whatever the height
+        engine.onPosition(first, 0, 0, 5f, 1f);
+        engine.onPosition(second, 0, 0, -5f, 1f);
+        // More peers than tags are ignored
+        engine.onPosition(third, 0, 0, 0, 1f);
+        engine.onPosition(first, 1000000L, 0, 0, 3f);
+        assertEquals(Arrays.asList("0 zone0 enter", "1 zone0 enter", "0 zone0 exit"), takeEvents());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.core.uwb.RangingMeasurement;
+import androidx.core.uwb.RangingPosition;
+import androidx.core.uwb.RangingResult;
+import androidx.core.uwb.UwbAddress;
+import androidx.core.uwb.UwbDevice;
+
+import com.jetpackexample.oob.ConnectionStateMachine;
+import com.jetpackexample.oob.ConnectionStateMachine.State;
+import com.jetpackexample.oob.MessageId;
+import com.jetpackexample.oob.OobMessageDispatcher;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation regression tests of the per-sample paths: OoB dispatch, ranging result parsing and
+ * stream frame formatting. Each path runs a warm-up round, then a measured round whose allocated
+ * bytes are read from the thread allocation counter.
+ */
+public class HotPathAllocationTest {
+
+    private static final int ITERATIONS = 100000;
+
+    // Fixed cost of reading the counter, some JDKs allocate an id array per read
+    private static final long COUNTER_SLACK_BYTES = 1024;
+
+    // Header, two references, a long and three floats, without compressed references
+    private static final long MAX_SAMPLE_BYTES = 64;
+
+    private static com.sun.management.ThreadMXBean threadMXBean;
+
+    private int receivedMessages = 0;
+    private RangingSample lastSample = null;
+
+    private interface Path {
+        void run(int iteration);
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private static long allocatedBytes() {
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long measure(Path path) {
+        for (int i = 0; i < ITERATIONS; i++) {
+            path.run(i);
+        }
+
+        long start = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            path.run(i);
+        }
+
+        return allocatedBytes() - start;
+    }
+
+    @Test
+    public void dispatchDoesNotAllocate() {
+        ConnectionStateMachine connectionStateMachine = new ConnectionStateMachine();
+        connectionStateMachine.moveTo(State.scanning);
+        connectionStateMachine.moveTo(State.connecting);
+        connectionStateMachine.moveTo(State.connected);
+        connectionStateMachine.moveTo(State.configuring);
+        connectionStateMachine.moveTo(State.ranging);
+
+        OobMessageDispatcher oobMessageDispatcher = new OobMessageDispatcher(connectionStateMachine);
+        oobMessageDispatcher.register(MessageId.uwbDidStart,
+                ConnectionStateMachine.maskOf(State.configuring, State.ranging), State.ranging,
+                message -> receivedMessages++);
+
+        byte[] message = {MessageId.uwbDidStart.getValue()};
+        long allocated = measure(iteration -> oobMessageDispatcher.dispatch(message));
+
+        assertEquals(2 * ITERATIONS, receivedMessages);
+        assertTrue("Dispatch allocated " + allocated + " bytes", allocated <= COUNTER_SLACK_BYTES);
+    }
+
+    @Test
+    public void parseAllocatesOnlyTheSample() {
+        UwbDevice device = new UwbDevice(new UwbAddress(new byte[]{0x12, 0x34}));
+        RangingResult rangingResult = new RangingResult.RangingResultPosition(device,
+                new RangingPosition(new RangingMeasurement(1.5f), new RangingMeasurement(-20f), null, 1000L));
+
+        long allocated = measure(iteration -> lastSample = RangingSample.fromRangingResult(rangingResult, iteration));
+
+        assertEquals(1.5f, lastSample.getDistance(), 0f);
+        assertTrue(Float.isNaN(lastSample.getElevation()));
+        assertTrue("Parsing allocated " + allocated + " bytes for " + ITERATIONS + " samples",
+                allocated <= ITERATIONS * MAX_SAMPLE_BYTES + COUNTER_SLACK_BYTES);
+    }
+
+    @Test
+    public void formatDoesNotAllocate() {
+        UwbDevice device = new UwbDevice(new UwbAddress(new byte[]{0x12, 0x34}));
+        ByteBuffer output = ByteBuffer.allocate(256);
+        byte type = (byte) RangingSample.Type.position.ordinal();
+
+        long allocated = measure(iteration -> {
+            output.clear();
+            RangingStreamServer.putSample(output, type, device, iteration, 1.5f, -20f, Float.NaN);
+        });
+
+        assertEquals(2 + 2 + 8 + 3 * 4, output.position());
+        assertTrue("Formatting allocated " + allocated + " bytes", allocated <= COUNTER_SLACK_BYTES);
+    }
+}
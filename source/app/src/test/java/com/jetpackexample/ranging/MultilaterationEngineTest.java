@@ -0,0 +1,171 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Position accuracy of the multilateration solver on exact ranges, in 2D with three anchors, in 3D
+ * with four spread anchors and in 3D with coplanar anchors.
+ */
+public class MultilaterationEngineTest {
+
+    private static final double TOLERANCE = 1e-3;
+    private static final long MAX_SAMPLE_AGE_MS = 1000;
+
+    private static double range(double[] anchor, double x, double y, double z) {
+        double dx = x - anchor[0];
+        double dy = y - anchor[1];
+        double dz = z - anchor[2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * Feeds the exact ranges of a position to every anchor
+     *
+     * @return the result of the last update
+     */
+    private static boolean feed(MultilaterationEngine engine, double[][] anchors, double x, double y, double z, long timestampMs) {
+        boolean solved = false;
+        for (int i = 0; i < anchors.length; i++) {
+            solved = engine.updateDistance(i, range(anchors[i], x, y, z), timestampMs);
+        }
+        return solved;
+    }
+
+    private static MultilaterationEngine engineWith(int dimensions, double[][] anchors) {
+        MultilaterationEngine engine = new MultilaterationEngine(dimensions, anchors.length, MAX_SAMPLE_AGE_MS);
+        for (double[] anchor : anchors) {
+            engine.addAnchor(anchor[0], anchor[1], anchor[2]);
+        }
+        return engine;
+    }
+
+    @Test
+    public void threeAnchorsIn2D() {
+        double[][] anchors = {{0, 0, 0}, {5, 0, 0}, {0, 4, 0}};
+        MultilaterationEngine engine = engineWith(2, anchors);
+
+        assertFalse(engine.updateDistance(0, 1, 0));
+        assertFalse(engine.updateDistance(1, 1, 0));
+
+        assertTrue(feed(engine, anchors, 1.5, 2.5, 0, 0));
+        assertEquals(1.5, engine.getX(), TOLERANCE);
+        assertEquals(2.5, engine.getY(), TOLERANCE);
+        assertEquals(0, engine.getZ(), 0);
+        assertEquals(3, engine.getAnchorsUsed());
+        assertEquals(0, engine.getRmsResidual(), TOLERANCE);
+    }
+
+    @Test
+    public void fourAnchorsIn3D() {
+        double[][] anchors = {{0, 0, 0}, {6, 0, 0.5}, {0, 5, 1}, {3, 3, 2.5}};
+        MultilaterationEngine engine = engineWith(3, anchors);
+
+        assertTrue(feed(engine, anchors, 2, 1.5, 1.2, 0));
+        assertFalse(engine.isPlanar());
+        assertEquals(2, engine.getX(), TOLERANCE);
+        assertEquals(1.5, engine.getY(), TOLERANCE);
+        assertEquals(1.2, engine.getZ(), TOLERANCE);
+        assertEquals(0, engine.getMaxResidual(), TOLERANCE);
+
+        // The next update starts from the previous solution
+        assertTrue(feed(engine, anchors, 2.2, 1.4, 1.1, 100));
+        assertEquals(2.2, engine.getX(), TOLERANCE);
+        assertEquals(1.4, engine.getY(), TOLERANCE);
+        assertEquals(1.1, engine.getZ(), TOLERANCE);
+        assertTrue(engine.getIterations() < 10);
+    }
+
+    @Test
+    public void coplanarAnchorsAreSolvedInTheirPlane() {
+        // Anchors mounted at the same height
+        double[][] anchors = {{0, 0, 2.5}, {6, 0, 2.5}, {6, 5, 2.5}, {0, 5, 2.5}};
+        MultilaterationEngine engine = engineWith(3, anchors);
+
+        assertTrue(feed(engine, anchors, 2, 3, 3.7, 0));
+        assertTrue(engine.isPlanar());
+        assertEquals(2, engine.getX(), TOLERANCE);
+        assertEquals(3, engine.getY(), TOLERANCE);
+        // The side of the plane is not observable, +z is assumed initially
+        assertEquals(3.7, engine.getZ(), TOLERANCE);
+        assertEquals(0, engine.getRmsResidual(), TOLERANCE);
+
+        // A tag in the anchor plane
+        engine.reset();
+        assertTrue(feed(engine, anchors, 4, 1, 2.5, 0));
+        assertEquals(4, engine.getX(), TOLERANCE);
+        assertEquals(1, engine.getY(), TOLERANCE);
+        assertEquals(2.5, engine.getZ(), 0.05);
+    }
+
+    @Test
+    public void tiltedCoplanarAnchors() {
+        // Anchors on a tilted plane
+        double[][] anchors = {{0, 0, 0}, {4, 0, 2}, {0, 4, 0}, {4, 4, 2}};
+        MultilaterationEngine engine = engineWith(3, anchors);
+
+        assertTrue(feed(engine, anchors, 2, 2, 3, 0));
+        assertTrue(engine.isPlanar());
+        assertEquals(2, engine.getX(), TOLERANCE);
+        assertEquals(2, engine.getY(), TOLERANCE);
+        assertEquals(3, engine.getZ(), TOLERANCE);
+
+        assertTrue(feed(engine, anchors, 2.1, 1.9, 3.1, 100));
+        assertEquals(2.1, engine.getX(), TOLERANCE);
+        assertEquals(1.9, engine.getY(), TOLERANCE);
+        assertEquals(3.1, engine.getZ(), TOLERANCE);
+    }
+
+    @Test
+    public void staleDistancesAreNotUsed() {
+        double[][] anchors = {{0, 0, 0}, {5, 0, 0}, {0, 4, 0}};
+        MultilaterationEngine engine = engineWith(2, anchors);
+
+        engine.updateDistance(0, range(anchors[0], 1, 1, 0), 0);
+        engine.updateDistance(1, range(anchors[1], 1, 1, 0), 0);
+        assertFalse(engine.updateDistance(2, range(anchors[2], 1, 1, 0), MAX_SAMPLE_AGE_MS + 1));
+        assertFalse(engine.isSolved());
+    }
+
+    @Test
+    public void anchorsAgingOutDropTheSolution() {
+        double[][] anchors = {{0, 0, 0}, {5, 0, 0}, {0, 4, 0}};
+        MultilaterationEngine engine = engineWith(2, anchors);
+
+        assertTrue(feed(engine, anchors, 1, 1, 0, 0));
+        assertTrue(engine.isSolved());
+        assertEquals(3, engine.getAnchorsUsed());
+
+        // Only anchor 0 keeps ranging, the others age out
+        assertFalse(engine.updateDistance(0, range(anchors[0], 1, 1, 0), MAX_SAMPLE_AGE_MS + 1));
+        assertFalse(engine.isSolved());
+        assertEquals(0, engine.getAnchorsUsed());
+        assertTrue(Double.isNaN(engine.getRmsResidual()));
+        assertTrue(Double.isNaN(engine.getMaxResidual()));
+
+        // A new fix once the anchors are heard again
+        assertTrue(feed(engine, anchors, 2, 1, 0, MAX_SAMPLE_AGE_MS + 100));
+        assertEquals(2, engine.getX(), TOLERANCE);
+        assertEquals(1, engine.getY(), TOLERANCE);
+        assertEquals(3, engine.getAnchorsUsed());
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.SystemClock;
+
+import androidx.core.uwb.UwbAddress;
+import androidx.core.uwb.UwbDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rule transitions of the proximity rule engine: distance and cone hysteresis, debounce over
+ * consecutive samples and dwell time before becoming active.
+ */
+public class ProximityRuleEngineTest {
+
+    private static final long PERIOD_NANOS = 100000000L;
+    private static final UwbDevice PEER = new UwbDevice(new UwbAddress(new byte[]{0x01, 0x02}));
+
+    private final List<Boolean> events = new ArrayList<>();
+    private long timestamp;
+
+    @Before
+    public void setUp() {
+        // Measurements from the past, so that firing latencies are positive
+        timestamp = SystemClock.elapsedRealtimeNanos() - 1000 * PERIOD_NANOS;
+    }
+
+    private ProximityRuleEngine engineWith(ProximityRuleEngine.Rule rule) {
+        ProximityRuleEngine engine = new ProximityRuleEngine();
+        engine.addRule(rule);
+        engine.compile();
+        engine.setProximityRuleListener((ruleIndex, ruleName, active, latencyNanos) -> events.add(active));
+        return engine;
+    }
+
+    private boolean evaluate(ProximityRuleEngine engine, float distance, float azimuth) {
+        timestamp += PERIOD_NANOS;
+        engine.evaluate(distance, azimuth, 0, timestamp);
+        return engine.isActive(0);
+    }
+
+    @Test
+    public void distanceHysteresis() {
+        ProximityRuleEngine engine = engineWith(new ProximityRuleEngine.Rule("near", 1.0f, 1.5f,
+                ProximityRuleEngine.ANY_ANGLE, ProximityRuleEngine.ANY_ANGLE, 0, 1));
+
+        assertFalse(evaluate(engine, 1.2f, 0));
+        assertTrue(evaluate(engine, 0.9f, 0));
+        // Between the thresholds the rule keeps its state
+        assertTrue(evaluate(engine, 1.2f, 0));
+        assertTrue(evaluate(engine, 1.5f, 0));
+        assertFalse(evaluate(engine, 1.6f, 0));
+        assertFalse(evaluate(engine, 1.2f, 0));
+        assertTrue(evaluate(engine, 1.0f, 0));
+
+        assertEquals(3, events.size());
+        assertTrue(events.get(0));
+        assertFalse(events.get(1));
+        assertTrue(events.get(2));
+    }
+
+    @Test
+    public void coneHysteresis() {
+        ProximityRuleEngine engine = engineWith(new ProximityRuleEngine.Rule("pointing", ProximityRuleEngine.ANY_DISTANCE,
+                ProximityRuleEngine.ANY_DISTANCE, 20f, 30f, 0, 1));
+
+        assertFalse(evaluate(engine, 3f, 25f));
+        assertTrue(evaluate(engine, 3f, -15f));
+        assertTrue(evaluate(engine, 3f, 25f));
+        assertFalse(evaluate(engine, 3f, -35f));
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void debounceNeedsConsecutiveSamples() {
+        ProximityRuleEngine engine = engineWith(new ProximityRuleEngine.Rule("near", 1.0f, 1.5f,
+                ProximityRuleEngine.ANY_ANGLE, ProximityRuleEngine.ANY_ANGLE, 0, 3));
+
+        // An outlier in between restarts the count
+        assertFalse(evaluate(engine, 0.5f, 0));
+        assertFalse(evaluate(engine, 0.5f, 0));
+        assertFalse(evaluate(engine, 2f, 0));
+        assertFalse(evaluate(engine, 0.5f, 0));
+        assertFalse(evaluate(engine, 0.5f, 0));
+        assertTrue(evaluate(engine, 0.5f, 0));
+
+        // Exit is debounced the same way
+        assertTrue(evaluate(engine, 2f, 0));
+        assertTrue(evaluate(engine, 2f, 0));
+        assertTrue(evaluate(engine, 0.5f, 0));
+        assertTrue(evaluate(engine, 2f, 0));
+        assertTrue(evaluate(engine, 2f, 0));
+        assertFalse(evaluate(engine, 2f, 0));
+
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void dwellDelaysEnterOnly() {
+        ProximityRuleEngine engine = engineWith(new ProximityRuleEngine.Rule("near", 1.0f, 1.5f,
+                ProximityRuleEngine.ANY_ANGLE, ProximityRuleEngine.ANY_ANGLE, 300, 1));
+
+        // The enter condition first holds at the first sample, the rule is active 300 ms later
+        assertFalse(evaluate(engine, 0.5f, 0));
+        assertFalse(evaluate(engine, 0.5f, 0));
+        assertFalse(evaluate(engine, 0.5f, 0));
+        assertTrue(evaluate(engine, 0.5f, 0));
+
+        // Leaving is immediate
+        assertFalse(evaluate(engine, 2f, 0));
+
+        // Leaving before the dwell time restarts it
+        assertFalse(evaluate(engine, 0.5f, 0));
+        assertFalse(evaluate(engine, 0.5f, 0));
+        assertFalse(evaluate(engine, 2f, 0));
+        assertFalse(evaluate(engine, 0.5f, 0));
+        assertFalse(evaluate(engine, 0.5f, 0));
+        assertFalse(evaluate(engine, 0.5f, 0));
+        assertTrue(evaluate(engine, 0.5f, 0));
+
+        assertEquals(3, events.size());
+    }
+
+    @Test
+    public void latencyTrackedWithoutListener() {
+        ProximityRuleEngine engine = new ProximityRuleEngine();
+        engine.addRule(new ProximityRuleEngine.Rule("near", 1.0f, 1.5f,
+                ProximityRuleEngine.ANY_ANGLE, ProximityRuleEngine.ANY_ANGLE, 0, 1));
+        engine.compile();
+
+        evaluate(engine, 0.5f, 0);
+        evaluate(engine, 2f, 0);
+
+        assertEquals(2, engine.getFiringCount());
+        assertTrue(engine.getLastFiringLatencyNanos() > 0);
+        assertTrue(engine.getMaxFiringLatencyNanos() >= engine.getLastFiringLatencyNanos());
+        assertTrue(engine.getMeanFiringLatencyNanos() > 0);
+    }
+
+    @Test
+    public void samplesWithoutDistanceAreIgnored() {
+        ProximityRuleEngine engine = engineWith(new ProximityRuleEngine.Rule("near", 1.0f, 1.5f,
+                ProximityRuleEngine.ANY_ANGLE, ProximityRuleEngine.ANY_ANGLE, 0, 1));
+
+        engine.onRangingSample(new RangingSample(RangingSample.Type.position, PEER, timestamp, 0.5f, Float.NaN, Float.NaN));
+        assertTrue(engine.isActive(0));
+
+        // Neither a sample without distance nor a disconnection is a sample far away
+        engine.onRangingSample(new RangingSample(RangingSample.Type.position, PEER, timestamp, Float.NaN, 10f, 0f));
+        engine.onRangingSample(new RangingSample(RangingSample.Type.peerDisconnected, PEER, timestamp, Float.NaN, Float.NaN, Float.NaN));
+        assertTrue(engine.isActive(0));
+        assertEquals(1, events.size());
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.core.uwb.UwbAddress;
+import androidx.core.uwb.UwbDevice;
+
+import com.jetpackexample.UwbDeviceConfigData;
+import com.jetpackexample.UwbPhoneConfigData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.reactivex.rxjava3.processors.PublishProcessor;
+
+/**
+ * Round trip of the binary export: samples written by RangingSessionExporter, with gaps in every
+ * column, several peers and several batches, are read back by RangingSessionReader.
+ */
+public class RangingSessionReaderTest {
+
+    private static final int BATCH_SIZE = 16;
+    private static final int SAMPLES = 200;
+    private static final long TIMEOUT_MS = 5000;
+
+    // Quantization of the format: mm and 0.01 degree
+    private static final float DISTANCE_TOLERANCE = 0.0005f + 1e-5f;
+    private static final float ANGLE_TOLERANCE = 0.005f + 1e-4f;
+
+    private static final UwbPhoneConfigData PHONE_CONFIG = new UwbPhoneConfigData((short) 1, (short) 0, 0x12345678,
+            (byte) 10, (byte) 9, (byte) 1, (byte) 0, new byte[]{0x11, 0x22});
+    private static final UwbDeviceConfigData DEVICE_CONFIG = new UwbDeviceConfigData((short) 1, (short) 1,
+            new byte[]{0x01, 0x02}, new byte[]{0x03, 0x04}, new byte[]{0x05, 0x06, 0x07}, 0x3, (byte) 0x2,
+            new byte[]{0x33, 0x44});
+
+    private File binaryFile;
+
+    @Before
+    public void setUp() throws IOException {
+        binaryFile = File.createTempFile("ranging", ".urb");
+    }
+
+    @After
+    public void tearDown() {
+        binaryFile.delete();
+    }
+
+    private static List<RangingSample> generateSamples() {
+        UwbDevice[] peers = {
+                new UwbDevice(new UwbAddress(new byte[]{0x01, 0x02})),
+                new UwbDevice(new UwbAddress(new byte[]{0x03, 0x04})),
+                new UwbDevice(new UwbAddress(new byte[]{0x05, 0x06}))};
+        Random random = new Random(42);
+        List<RangingSample> samples = new ArrayList<>();
+        long timestamp = 123456789L;
+        for (int i = 0; i < SAMPLES; i++) {
+            // Mostly regular, sometimes out of order across peers
+            timestamp += 100000000L + random.nextInt(20000000) - 10000000;
+            // Peers appear one after the other, so that later batches bring new peers
+            UwbDevice peer = peers[random.nextInt(Math.min(peers.length, 1 + i / (SAMPLES / peers.length)))];
+            if (i % 37 == 36) {
+                samples.add(new RangingSample(RangingSample.Type.peerDisconnected, peer, timestamp,
+                        Float.NaN, Float.NaN, Float.NaN));
+                continue;
+            }
+
+            samples.add(new RangingSample(RangingSample.Type.position, peer, timestamp,
+                    random.nextInt(5) == 0 ? Float.NaN : random.nextFloat() * 20f,
+                    random.nextInt(4) == 0 ? Float.NaN : random.nextFloat() * 360f - 180f,
+                    random.nextInt(3) == 0 ? Float.NaN : random.nextFloat() * 180f - 90f));
+        }
+        return samples;
+    }
+
+    private void export(List<RangingSample> samples, boolean gzip) throws InterruptedException {
+        PublishProcessor<RangingSample> processor = PublishProcessor.create();
+        RangingSessionExporter exporter = new RangingSessionExporter(binaryFile, gzip, null, BATCH_SIZE);
+        exporter.start(processor, PHONE_CONFIG, DEVICE_CONFIG);
+
+        for (int i = 0; i < samples.size(); i++) {
+            processor.onNext(samples.get(i));
+
+            // Let the writer keep up so that nothing is dropped
+            if ((i + 1) % BATCH_SIZE == 0) {
+                long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+                while (exporter.getExportedSamples() < i + 1 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+
+        exporter.stop();
+        assertTrue(exporter.awaitStopped(TIMEOUT_MS));
+        assertEquals(0, exporter.getDroppedSamples());
+        assertEquals(samples.size(), exporter.getExportedSamples());
+    }
+
+    private static void assertValue(float expected, float actual, float tolerance) {
+        if (Float.isNaN(expected)) {
+            assertTrue("Expected a gap, got " + actual, Float.isNaN(actual));
+        } else {
+            assertEquals(expected, actual, tolerance);
+        }
+    }
+
+    private void assertRoundTrip(boolean gzip) throws IOException, InterruptedException {
+        List<RangingSample> samples = generateSamples();
+        export(samples, gzip);
+
+        try (RangingSessionReader reader = RangingSessionReader.open(binaryFile)) {
+            UwbPhoneConfigData phoneConfig = reader.getUwbPhoneConfigData();
+            assertEquals(PHONE_CONFIG.getSessionId(), phoneConfig.getSessionId());
+            assertEquals(PHONE_CONFIG.getChannel(), phoneConfig.getChannel());
+            assertEquals(PHONE_CONFIG.getPreambleId(), phoneConfig.getPreambleId());
+            assertArrayEquals(PHONE_CONFIG.getPhoneMacAddress(), phoneConfig.getPhoneMacAddress());
+            UwbDeviceConfigData deviceConfig = reader.getUwbDeviceConfigData();
+            assertArrayEquals(DEVICE_CONFIG.getChipId(), deviceConfig.getChipId());
+            assertArrayEquals(DEVICE_CONFIG.getDeviceMacAddress(), deviceConfig.getDeviceMacAddress());
+            assertEquals(DEVICE_CONFIG.getSupportedUwbProfileIds(), deviceConfig.getSupportedUwbProfileIds());
+
+            for (int i = 0; i < samples.size(); i++) {
+                RangingSample expected = samples.get(i);
+                RangingSample actual = reader.next();
+                assertNotNull("Missing sample " + i, actual);
+                assertEquals(expected.getType(), actual.getType());
+                assertEquals(expected.getDevice(), actual.getDevice());
+                assertEquals(expected.getElapsedRealtimeNanos(), actual.getElapsedRealtimeNanos());
+                assertValue(expected.getDistance(), actual.getDistance(), DISTANCE_TOLERANCE);
+                assertValue(expected.getAzimuth(), actual.getAzimuth(), ANGLE_TOLERANCE);
+                assertValue(expected.getElevation(), actual.getElevation(), ANGLE_TOLERANCE);
+            }
+
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException, InterruptedException {
+        assertRoundTrip(false);
+    }
+
+    @Test
+    public void gzipRoundTrip() throws IOException, InterruptedException {
+        assertRoundTrip(true);
+    }
+
+    @Test
+    public void emptyExport() throws IOException, InterruptedException {
+        export(new ArrayList<>(), false);
+
+        try (RangingSessionReader reader = RangingSessionReader.open(binaryFile)) {
+            assertEquals(PHONE_CONFIG.getSessionId(), reader.getUwbPhoneConfigData().getSessionId());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() {
+        try {
+            new RangingSessionReader(new ByteArrayInputStream(new byte[]{'U', 'R', 'B', 'S', 0, 0, 0, 0}));
+            fail("Read a file that is not an export");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
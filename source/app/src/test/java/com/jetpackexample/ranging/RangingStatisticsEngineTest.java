@@ -0,0 +1,238 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.os.SystemClock;
+
+import androidx.core.uwb.UwbAddress;
+import androidx.core.uwb.UwbDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the sliding window statistics against a brute-force recomputation over the samples that
+ * should be in the window, after many additions and evictions so that the rings wrap around.
+ */
+public class RangingStatisticsEngineTest {
+
+    private static final long WINDOW_MS = 1000;
+    private static final long PERIOD_NANOS = 10000000L;
+    private static final UwbDevice PEER = new UwbDevice(new UwbAddress(new byte[]{0x01, 0x02}));
+
+    private static final float DISTANCE_BIN_WIDTH = 0.05f;
+
+    // Samples fed so far: timestamps and distances
+    private final List<Long> timestamps = new ArrayList<>();
+    private final List<Float> distances = new ArrayList<>();
+    private long timestamp;
+
+    @Before
+    public void setUp() {
+        // Statistics are read over the window ending now, the samples must not be older than that
+        timestamp = SystemClock.elapsedRealtimeNanos();
+    }
+
+    private void add(RangingStatisticsEngine engine, long interval, float distance) {
+        timestamp += interval;
+        timestamps.add(timestamp);
+        distances.add(distance);
+        engine.onRangingSample(new RangingSample(RangingSample.Type.position, PEER, timestamp, distance, Float.NaN, Float.NaN));
+    }
+
+    /**
+     * @return the distances that should be in the window after the last sample, oldest first
+     */
+    private float[] expectedWindow(int capacity) {
+        long oldest = timestamp - WINDOW_MS * 1000000L;
+        List<Float> window = new ArrayList<>();
+        for (int i = 0; i < distances.size(); i++) {
+            if (timestamps.get(i) >= oldest) {
+                window.add(distances.get(i));
+            }
+        }
+
+        int from = Math.max(0, window.size() - capacity);
+        float[] values = new float[window.size() - from];
+        for (int i = from; i < window.size(); i++) {
+            values[i - from] = window.get(i);
+        }
+        return values;
+    }
+
+    private static void assertMatches(float[] window, RangingStatisticsEngine.MetricStatistics statistics) {
+        assertEquals(window.length, statistics.getCount());
+
+        double sum = 0;
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (float value : window) {
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        double mean = sum / window.length;
+
+        double squares = 0;
+        for (float value : window) {
+            squares += (value - mean) * (value - mean);
+        }
+        double standardDeviation = window.length > 1 ? Math.sqrt(squares / (window.length - 1)) : 0;
+
+        assertEquals(mean, statistics.getMean(), 1e-4);
+        assertEquals(standardDeviation, statistics.getStandardDeviation(), 1e-3);
+        assertEquals(min, statistics.getMin(), 0f);
+        assertEquals(max, statistics.getMax(), 0f);
+    }
+
+    private static float nearestRank(float[] window, float q) {
+        float[] sorted = window.clone();
+        Arrays.sort(sorted);
+        return sorted[(int) (q * (sorted.length - 1))];
+    }
+
+    @Test
+    public void welfordMatchesRecomputationAcrossEvictions() {
+        RangingStatisticsEngine engine = new RangingStatisticsEngine(WINDOW_MS, 10000, 1);
+        Random random = new Random(1);
+
+        // Irregular intervals, so that evictions remove 0 to several samples at a time
+        for (int i = 0; i < 20000; i++) {
+            add(engine, random.nextInt(4) * PERIOD_NANOS, 1f + random.nextFloat() * 10f);
+
+            if (i % 997 == 0) {
+                assertMatches(expectedWindow(10000), engine.getStatistics(PEER).getDistance());
+            }
+        }
+
+        assertMatches(expectedWindow(10000), engine.getStatistics(PEER).getDistance());
+    }
+
+    @Test
+    public void minAndMaxAfterWraparound() {
+        // A capacity smaller than the window, the ring and the deques wrap around many times
+        int capacity = 16;
+        RangingStatisticsEngine engine = new RangingStatisticsEngine(WINDOW_MS, capacity, 1);
+        Random random = new Random(2);
+
+        for (int i = 0; i < 5000; i++) {
+            float distance;
+            switch ((i / 50) % 4) {
+                case 0:
+                    // Increasing run, every sample stays in the min deque
+                    distance = 1f + (i % 50) * 0.1f;
+                    break;
+                case 1:
+                    // Decreasing run, every sample stays in the max deque
+                    distance = 10f - (i % 50) * 0.1f;
+                    break;
+                case 2:
+                    // Repeated values
+                    distance = 5f;
+                    break;
+                default:
+                    distance = random.nextFloat() * 20f;
+                    break;
+            }
+
+            add(engine, PERIOD_NANOS, distance);
+            RangingStatisticsEngine.MetricStatistics statistics = engine.getStatistics(PEER).getDistance();
+            float[] window = expectedWindow(capacity);
+            assertEquals("min at " + i, min(window), statistics.getMin(), 0f);
+            assertEquals("max at " + i, max(window), statistics.getMax(), 0f);
+        }
+    }
+
+    @Test
+    public void minAndMaxAfterTimeEviction() {
+        RangingStatisticsEngine engine = new RangingStatisticsEngine(WINDOW_MS, 10000, 1);
+
+        add(engine, PERIOD_NANOS, 0.5f);
+        add(engine, PERIOD_NANOS, 9.5f);
+        for (int i = 0; i < 200; i++) {
+            add(engine, PERIOD_NANOS, 5f);
+        }
+
+        // The extremes left the window
+        RangingStatisticsEngine.MetricStatistics statistics = engine.getStatistics(PEER).getDistance();
+        assertEquals(5f, statistics.getMin(), 0f);
+        assertEquals(5f, statistics.getMax(), 0f);
+        assertEquals(0f, statistics.getStandardDeviation(), 1e-4);
+    }
+
+    @Test
+    public void quantilesWithinHalfABin() {
+        RangingStatisticsEngine engine = new RangingStatisticsEngine(WINDOW_MS, 10000, 1);
+        Random random = new Random(3);
+
+        for (int i = 0; i < 3000; i++) {
+            // Skewed, so that p50 and p95 are far apart
+            float distance = (float) (2.0 + Math.abs(random.nextGaussian()) * 1.5);
+            add(engine, PERIOD_NANOS, distance);
+
+            if (i % 101 == 100) {
+                RangingStatisticsEngine.MetricStatistics statistics = engine.getStatistics(PEER).getDistance();
+                float[] window = expectedWindow(10000);
+                assertEquals(nearestRank(window, 0.5f), statistics.getP50(), DISTANCE_BIN_WIDTH / 2 + 1e-4f);
+                assertEquals(nearestRank(window, 0.95f), statistics.getP95(), DISTANCE_BIN_WIDTH / 2 + 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    public void sampleRateAndGaps() {
+        RangingStatisticsEngine engine = new RangingStatisticsEngine(WINDOW_MS, 10000, 1);
+        for (int i = 0; i < 50; i++) {
+            timestamp += PERIOD_NANOS;
+            // Every other sample without a distance
+            float distance = i % 2 == 0 ? 1f : Float.NaN;
+            engine.onRangingSample(new RangingSample(RangingSample.Type.position, PEER, timestamp, distance, Float.NaN, Float.NaN));
+        }
+
+        RangingStatisticsEngine.PeerStatistics statistics = engine.getStatistics(PEER);
+        assertNotNull(statistics);
+        assertEquals(50, statistics.getSampleCount());
+        assertEquals(1e9f / PERIOD_NANOS, statistics.getSampleRate(), 1e-3f);
+        assertEquals(25, statistics.getDistance().getCount());
+        assertEquals(0, statistics.getAzimuth().getCount());
+        assertEquals(Float.NaN, statistics.getAzimuth().getMean(), 0f);
+    }
+
+    private static float min(float[] values) {
+        float min = Float.MAX_VALUE;
+        for (float value : values) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    private static float max(float[] values) {
+        float max = -Float.MAX_VALUE;
+        for (float value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2022 NXP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jetpackexample.ranging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.core.uwb.UwbAddress;
+import androidx.core.uwb.UwbDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import io.reactivex.rxjava3.processors.PublishProcessor;
+
+public class RangingStreamServerTest {
+
+    private static final String TOKEN = "0123456789ABCDEF";
+    private static final int QUEUE_CAPACITY = 16;
+    private static final long TIMEOUT_MS = 5000;
+    private static final byte[] ADDRESS = {0x12, 0x34};
+
+    private final UwbDevice device = new UwbDevice(new UwbAddress(ADDRESS));
+    private PublishProcessor<RangingSample> rangingSamples;
+    private RangingStreamServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        rangingSamples = PublishProcessor.create();
+        server = new RangingStreamServer(InetAddress.getLoopbackAddress(), 0, QUEUE_CAPACITY, TOKEN);
+        server.start(rangingSamples);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private RangingSample sample(long elapsedRealtimeNanos) {
+        return new RangingSample(RangingSample.Type.position, device, elapsedRealtimeNanos,
+                elapsedRealtimeNanos / 1000f, -20f, Float.NaN);
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        socket.setSoTimeout((int) TIMEOUT_MS);
+        return socket;
+    }
+
+    private void sendTcpHello(Socket socket, String token) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        output.write("URBS".getBytes(StandardCharsets.US_ASCII));
+        output.write(token.length());
+        output.write(token.getBytes(StandardCharsets.US_ASCII));
+        output.flush();
+    }
+
+    private void awaitClientCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (server.getClientCount() != count) {
+            assertTrue("Client count still " + server.getClientCount(), System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Reads the samples of a frame payload and returns their timestamps
+     */
+    private long[] readFrame(DataInputStream input) throws IOException {
+        assertEquals(1, input.readUnsignedByte());
+        long[] timestamps = new long[input.readUnsignedShort()];
+        for (int i = 0; i < timestamps.length; i++) {
+            assertEquals(RangingSample.Type.position.ordinal(), input.readUnsignedByte());
+            byte[] address = new byte[input.readUnsignedByte()];
+            input.readFully(address);
+            assertArrayEquals(ADDRESS, address);
+            timestamps[i] = input.readLong();
+            assertEquals(timestamps[i] / 1000f, input.readFloat(), 0f);
+            assertEquals(-20f, input.readFloat(), 0f);
+            assertTrue(Float.isNaN(input.readFloat()));
+        }
+
+        return timestamps;
+    }
+
+    @Test
+    public void tcpClientReceivesLengthPrefixedFrames() throws Exception {
+        try (Socket socket = connect()) {
+            sendTcpHello(socket, TOKEN);
+            awaitClientCount(1);
+
+            rangingSamples.onNext(sample(1000));
+            rangingSamples.onNext(sample(2000));
+
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            long received = 0;
+            while (received < 2) {
+                int length = input.readInt();
+                long[] timestamps = readFrame(input);
+                assertEquals(3 + timestamps.length * (2 + ADDRESS.length + 8 + 3 * 4), length);
+                for (long timestamp : timestamps) {
+                    assertEquals(++received * 1000, timestamp);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tcpClientWithWrongTokenIsDisconnected() throws Exception {
+        try (Socket socket = connect()) {
+            sendTcpHello(socket, "wrong");
+            assertEquals(-1, socket.getInputStream().read());
+            assertEquals(0, server.getClientCount());
+        }
+    }
+
+    @Test
+    public void webSocketClientReceivesBinaryMessages() throws Exception {
+        try (Socket socket = connect()) {
+            OutputStream output = socket.getOutputStream();
+            output.write(("GET /?token=" + TOKEN + " HTTP/1.1\r\n"
+                    + "Host: localhost\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            output.flush();
+
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            String response = readHttpResponse(input);
+            assertTrue(response, response.startsWith("HTTP/1.1 101 "));
+            // Example of RFC 6455
+            assertTrue(response, response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+            awaitClientCount(1);
+
+            rangingSamples.onNext(sample(1000));
+
+            // FIN and binary opcode, unmasked with a 7 bit length
+            assertEquals(0x82, input.readUnsignedByte());
+            int length = input.readUnsignedByte();
+            assertTrue(length < 126);
+            long[] timestamps = readFrame(input);
+            assertEquals(3 + timestamps.length * (2 + ADDRESS.length + 8 + 3 * 4), length);
+            assertArrayEquals(new long[]{1000}, timestamps);
+
+            // Masked close frame from the client
+            output.write(new byte[]{(byte) 0x88, (byte) 0x80, 1, 2, 3, 4});
+            output.flush();
+            assertEquals(-1, input.read());
+            awaitClientCount(0);
+        }
+    }
+
+    @Test
+    public void webSocketClientWithoutTokenIsRefused() throws Exception {
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write(("GET / HTTP/1.1\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            String response = readHttpResponse(input);
+            assertTrue(response, response.startsWith("HTTP/1.1 401 "));
+            assertEquals(-1, input.read());
+        }
+    }
+
+    @Test
+    public void slowClientDropsOldestSamples() throws Exception {
+        try (Socket socket = new Socket()) {
+            // A tiny window, the server runs out of socket buffer and queues
+            socket.setReceiveBufferSize(1024);
+            socket.connect(new java.net.InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            sendTcpHello(socket, TOKEN);
+            awaitClientCount(1);
+
+            // Far more than the socket buffers hold while the client does not read
+            final int published = 300000;
+            for (int i = 1; i <= published; i++) {
+                rangingSamples.onNext(sample(i));
+            }
+
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            long received = 0;
+            long last = 0;
+            while (last != published) {
+                input.readInt();
+                for (long timestamp : readFrame(input)) {
+                    assertTrue("Samples out of order", timestamp > last);
+                    last = timestamp;
+                    received++;
+                }
+            }
+
+            // Every sample was either sent or dropped, and the newest ones were kept
+            long dropped = server.getDroppedSamples();
+            assertTrue("No sample dropped", dropped > 0);
+            assertEquals(published, received + dropped);
+        }
+    }
+
+    private static String readHttpResponse(InputStream input) throws IOException {
+        StringBuilder response = new StringBuilder();
+        while (response.length() < 4 || !response.substring(response.length() - 4).equals("\r\n\r\n")) {
+            int c = input.read();
+            if (c < 0) {
+                throw new EOFException("Response truncated: " + response);
+            }
+            response.append((char) c);
+        }
+
+        return response.toString();
+    }
+}